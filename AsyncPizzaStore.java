@@ -0,0 +1,218 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class offers the data-access methods of PizzaStore as
+ * CompletableFutures. Each call runs on its own thread (a virtual thread
+ * where the JVM has them) and borrows a pooled connection like any other
+ * caller, so independent queries issued together run at the same time
+ * and a screen that needs several of them waits about as long as the
+ * slowest one, not the sum of all of them.
+ *
+ * At most maxConcurrency calls run at once; the others queue for a
+ * permit before they touch the pool, so a burst of calls waits in memory
+ * instead of running into the pool's acquire timeout. Futures fail with
+ * the SQLException of the call. A call runs on the replica route of the
+ * thread that made it.
+ *
+ */
+public class AsyncPizzaStore {
+
+   /**
+    * A blocking data-access call.
+    */
+   public interface Call<T> {
+      T call() throws SQLException;
+   }//end Call
+
+   private final PizzaStore _esql;
+   private final ExecutorService _executor;
+   private final Semaphore _permits;
+
+   /**
+    * @param esql the blocking data-access layer the calls run on
+    * @param maxConcurrency calls running at once, usually the pool size
+    * @param virtualThreads run calls on virtual threads when the JVM has
+    *        them, otherwise on a fixed pool of maxConcurrency platform threads
+    */
+   public AsyncPizzaStore(PizzaStore esql, int maxConcurrency, boolean virtualThreads) {
+      this._esql = esql;
+      this._permits = new Semaphore(Math.max(1, maxConcurrency), true);
+      if (virtualThreads){
+         this._executor = VirtualThreads.newThreadPerTaskExecutor("pizzastore-async");
+      }else{
+         final AtomicInteger count = new AtomicInteger();
+         this._executor = Executors.newFixedThreadPool(Math.max(1, maxConcurrency), r -> {
+            Thread t = new Thread(r, "pizzastore-async-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         });
+      }//end if
+   }//end AsyncPizzaStore
+
+   /**
+    * Runs any blocking call asynchronously.
+    *
+    * @param call the call
+    * @return a future completed with the result or the failure of the call
+    */
+   public <T> CompletableFuture<T> supply(Call<T> call) {
+      CompletableFuture<T> future = new CompletableFuture<T>();
+      // the route is kept per thread, so the worker opens the caller's again
+      final ReplicaRouter.Scope caller = this._esql.currentRoute();
+      try{
+         this._executor.execute(() -> {
+            try{
+               this._permits.acquire();
+            }catch (InterruptedException e){
+               Thread.currentThread().interrupt();
+               future.completeExceptionally(e);
+               return;
+            }//end try
+            ReplicaRouter.Scope route = caller == null ? null : this._esql.route(caller.session, caller.readOnly);
+            try{
+               future.complete(call.call());
+            }catch (Throwable e){
+               future.completeExceptionally(e);
+            }finally{
+               if (route != null)
+                  route.close();
+               this._permits.release();
+            }//end try
+         });
+      }catch (RejectedExecutionException e){
+         future.completeExceptionally(e);
+      }//end try
+      return future;
+   }//end supply
+
+   public CompletableFuture<QueryResult> getMenu(int storeID) {
+      return supply(() -> this._esql.getMenu(storeID));
+   }
+
+   public CompletableFuture<QueryResult> getStores() {
+      return supply(this._esql::getStores);
+   }
+
+   public CompletableFuture<QueryResult> getProfile(String login) {
+      return supply(() -> this._esql.getProfile(login));
+   }
+
+   public CompletableFuture<QueryResult> getRecentOrders(String login, int limit) {
+      return supply(() -> this._esql.getRecentOrders(login, limit));
+   }
+
+   public CompletableFuture<OrderPage> getOrderPage(String login, String cursor, int pageSize) {
+      return supply(() -> this._esql.getOrderPage(login, cursor, pageSize));
+   }
+
+   public CompletableFuture<QueryResult> getOrder(int orderID) {
+      return supply(() -> this._esql.getOrder(orderID));
+   }
+
+   public CompletableFuture<QueryResult> fetchResult(String query, Object... params) {
+      return supply(() -> this._esql.fetchResult(query, params));
+   }
+
+   public <T> CompletableFuture<List<T>> query(String query, RowMapper<T> mapper, Object... params) {
+      return supply(() -> this._esql.query(query, mapper, params));
+   }
+
+   public CompletableFuture<Integer> executeUpdate(String sql, Object... params) {
+      return supply(() -> this._esql.executeUpdate(sql, params));
+   }
+
+   public CompletableFuture<Integer> submitOrder(String login, int storeID, Map<String, Integer> items) {
+      return supply(() -> this._esql.submitOrder(login, storeID, items));
+   }
+
+   public CompletableFuture<List<Integer>> advanceOrders(Collection<Integer> orderIDs, OrderStatus target) {
+      return supply(() -> this._esql.advanceOrders(orderIDs, target));
+   }
+
+   public CompletableFuture<Session> authenticate(String login, String password) {
+      return supply(() -> this._esql.authenticate(login, password));
+   }
+
+   /**
+    * Fetches the menu of a store, the store list and the recent orders of
+    * a user at the same time, for the home screen of a terminal.
+    *
+    * @param login the user login
+    * @param storeID the store whose menu is shown
+    * @return "menu", "stores" and "orders" -> result, in that order
+    */
+   public CompletableFuture<Map<String, QueryResult>> getHomeScreen(String login, int storeID) {
+      Map<String, CompletableFuture<QueryResult>> parts = new LinkedHashMap<String, CompletableFuture<QueryResult>>();
+      parts.put("menu", getMenu(storeID));
+      parts.put("stores", getStores());
+      parts.put("orders", getRecentOrders(login, 5));
+      return joinAll(parts);
+   }//end getHomeScreen
+
+   /**
+    * Joins futures that were started independently.
+    *
+    * @param futures the futures, in the order of the results
+    * @return a future of all the results; it fails as soon as one of the futures fails
+    */
+   public static <T> CompletableFuture<List<T>> joinAll(List<CompletableFuture<T>> futures) {
+      CompletableFuture<List<T>> all = new CompletableFuture<List<T>>();
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+         if (e != null){
+            all.completeExceptionally(e);
+            return;
+         }//end if
+         List<T> results = new ArrayList<T>(futures.size());
+         for (CompletableFuture<T> f : futures)
+            results.add(f.join());
+         all.complete(results);
+      });
+      for (CompletableFuture<T> f : futures)
+         f.whenComplete((v, e) -> {
+            if (e != null)
+               all.completeExceptionally(e);
+         });
+      return all;
+   }//end joinAll
+
+   /**
+    * Joins named futures that were started independently.
+    *
+    * @param futures name -> future
+    * @return a future of name -> result, in the order of futures
+    */
+   public static <T> CompletableFuture<Map<String, T>> joinAll(Map<String, CompletableFuture<T>> futures) {
+      List<String> names = new ArrayList<String>(futures.keySet());
+      return joinAll(new ArrayList<CompletableFuture<T>>(futures.values())).thenApply(results -> {
+         Map<String, T> named = new LinkedHashMap<String, T>();
+         for (int i = 0; i < names.size(); ++i)
+            named.put(names.get(i), results.get(i));
+         return named;
+      });
+   }//end joinAll
+
+   /**
+    * Stops accepting calls and waits briefly for running ones.
+    */
+   public void close() {
+      this._executor.shutdown();
+      try{
+         this._executor.awaitTermination(5, TimeUnit.SECONDS);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end close
+
+}//end AsyncPizzaStore
@@ -0,0 +1,444 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * This class bulk loads CSV files into the database through the COPY
+ * protocol of the PostgreSQL driver. Every file is named after the table
+ * it is loaded into (items.csv, foodorder.csv, ...) and starts with a
+ * header line naming the columns it holds.
+ *
+ * Before loading, the foreign keys of the loaded tables and their
+ * secondary indexes are dropped; primary keys and unique constraints stay.
+ * With no foreign keys left the tables are independent of each other, so
+ * they are loaded in parallel, each file streamed in one COPY on its own
+ * pooled connection. Afterwards the indexes are rebuilt in parallel, the
+ * foreign keys are added back (which checks every loaded row once) and
+ * the tables are analyzed. The definitions of the dropped objects are
+ * kept in the bulk_load_deferred table until they are restored, so a load
+ * that died halfway is finished by the next one.
+ *
+ * While loading, the progress of every table is printed periodically,
+ * and a summary with the rows per second of every table at the end.
+ *
+ */
+public class BulkLoader {
+
+   // bytes handed to the driver per write
+   static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+   // how often the progress is printed
+   static final long PROGRESS_INTERVAL_MS = Long.getLong("pizzastore.load.progressMs", 2000L);
+
+   // memory for each index build after the load
+   static final String MAINTENANCE_WORK_MEM = System.getProperty("pizzastore.load.maintenanceWorkMem", "256MB");
+
+   private final ConnectionPool _pool;
+   private final int _threads;
+   private final PrintStream _out;
+
+   /**
+    * @param pool the pool to borrow the loading connections from
+    * @param threads how many tables are loaded at the same time
+    * @param out where progress is printed
+    */
+   public BulkLoader(ConnectionPool pool, int threads, PrintStream out) {
+      this._pool = pool;
+      this._threads = Math.max(1, threads);
+      this._out = out;
+   }//end BulkLoader
+
+   /**
+    * Loads every *.csv file of a directory into the table of the same name.
+    *
+    * @param dir the directory holding the files
+    * @return table -> rows loaded
+    * @throws java.sql.SQLException when a file names no table, or a load failed
+    * @throws java.io.IOException when a file cannot be read
+    */
+   public Map<String, Long> load(File dir) throws SQLException, IOException {
+      File[] csv = dir.listFiles((d, name) -> name.toLowerCase().endsWith(".csv"));
+      if (csv == null)
+         throw new IOException("Not a directory: " + dir);
+      Arrays.sort(csv);
+      Map<String, File> files = new LinkedHashMap<String, File>();
+      for (File f : csv)
+         files.put(f.getName().substring(0, f.getName().length() - 4).toLowerCase(), f);
+      return load(files);
+   }//end load
+
+   /**
+    * @param files table -> CSV file with a header line
+    * @return table -> rows loaded
+    * @throws java.sql.SQLException when a table does not exist, or a load failed
+    * @throws java.io.IOException when a file cannot be read
+    */
+   public Map<String, Long> load(Map<String, File> files) throws SQLException, IOException {
+      if (files.isEmpty())
+         return new LinkedHashMap<String, Long>();
+
+      // the tables of the files, as the catalog names them
+      List<String> tables = new ArrayList<String>();
+      ConnectionPool.PooledConnection pc = this._pool.acquire();
+      try{
+         Connection c = pc.getConnection();
+         for (String table : files.keySet()){
+            try (PreparedStatement ps = c.prepareStatement("SELECT to_regclass(?)::text")){
+               ps.setString(1, table);
+               try (ResultSet rs = ps.executeQuery()){
+                  if (!rs.next() || rs.getString(1) == null)
+                     throw new SQLException("No table named " + table + " for " + files.get(table));
+                  tables.add(rs.getString(1));
+               }//end try
+            }//end try
+         }//end for
+         // finish a load that died before restoring
+         restore(c);
+         defer(c, tables);
+      }finally{
+         this._pool.release(pc);
+      }//end try
+
+      ExecutorService workers = Executors.newFixedThreadPool(Math.min(this._threads, tables.size()), r -> {
+         Thread t = new Thread(r, "pizzastore-loader");
+         t.setDaemon(true);
+         return t;
+      });
+      ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "pizzastore-loader-progress");
+         t.setDaemon(true);
+         return t;
+      });
+      List<TableLoad> loads = new ArrayList<TableLoad>();
+      int i = 0;
+      for (File f : files.values())
+         loads.add(new TableLoad(tables.get(i++), f));
+      long start = System.nanoTime();
+      reporter.scheduleAtFixedRate(() -> progress(loads), PROGRESS_INTERVAL_MS, PROGRESS_INTERVAL_MS,
+                                   TimeUnit.MILLISECONDS);
+      try{
+         List<Future<Long>> results = new ArrayList<Future<Long>>();
+         for (TableLoad load : loads)
+            results.add(workers.submit(load::copy));
+         Exception failure = null;
+         for (Future<Long> result : results){
+            try{
+               result.get();
+            }catch (ExecutionException e){
+               if (failure == null)
+                  failure = (Exception) e.getCause();
+            }catch (InterruptedException e){
+               Thread.currentThread().interrupt();
+               throw new SQLException("Interrupted while loading", e);
+            }//end try
+         }//end for
+         reporter.shutdownNow();
+         summary(loads, System.nanoTime() - start);
+         if (failure instanceof SQLException)
+            throw (SQLException) failure;
+         if (failure instanceof IOException)
+            throw (IOException) failure;
+         if (failure != null)
+            throw new SQLException(failure.getMessage(), failure);
+      }finally{
+         reporter.shutdownNow();
+         long rebuild = System.nanoTime();
+         this._out.println("Rebuilding indexes and foreign keys...");
+         try{
+            rebuild(workers, tables);
+         }finally{
+            workers.shutdownNow();
+         }//end try
+         this._out.println(String.format("Rebuilt in %.1f s", (System.nanoTime() - rebuild) / 1e9));
+      }//end try
+
+      Map<String, Long> rows = new LinkedHashMap<String, Long>();
+      for (TableLoad load : loads)
+         rows.put(load.table, load.rows.get());
+      return rows;
+   }//end load
+
+   /*
+    * Drops the foreign keys and secondary indexes of the tables, saving
+    * their definitions in bulk_load_deferred in the same transaction.
+    **/
+   private void defer(Connection c, List<String> tables) throws SQLException {
+      c.setAutoCommit(false);
+      try (Statement stmt = c.createStatement()){
+         stmt.execute("CREATE TABLE IF NOT EXISTS bulk_load_deferred (" +
+                      "id SERIAL PRIMARY KEY, kind TEXT NOT NULL, drop_sql TEXT NOT NULL, create_sql TEXT NOT NULL)");
+         try (PreparedStatement ps = c.prepareStatement(
+                 "INSERT INTO bulk_load_deferred (kind, drop_sql, create_sql) " +
+                 "SELECT 'index', 'DROP INDEX ' || i.indexrelid::regclass, pg_get_indexdef(i.indexrelid) " +
+                 "FROM pg_index i WHERE i.indrelid = ANY(?::regclass[]) " +
+                 "AND NOT EXISTS (SELECT 1 FROM pg_constraint k WHERE k.conindid = i.indexrelid) " +
+                 "UNION ALL " +
+                 "SELECT 'fkey', 'ALTER TABLE ' || k.conrelid::regclass || ' DROP CONSTRAINT ' || quote_ident(k.conname), " +
+                 "'ALTER TABLE ' || k.conrelid::regclass || ' ADD CONSTRAINT ' || quote_ident(k.conname) || ' ' || pg_get_constraintdef(k.oid) " +
+                 "FROM pg_constraint k WHERE k.contype = 'f' AND k.conrelid = ANY(?::regclass[])")){
+            ps.setArray(1, c.createArrayOf("text", tables.toArray()));
+            ps.setArray(2, c.createArrayOf("text", tables.toArray()));
+            ps.executeUpdate();
+         }//end try
+         // foreign keys go first, an index may back one of them
+         List<String> drops = new ArrayList<String>();
+         try (ResultSet rs = stmt.executeQuery(
+                 "SELECT drop_sql FROM bulk_load_deferred ORDER BY kind = 'index', id")){
+            while (rs.next())
+               drops.add(rs.getString(1));
+         }//end try
+         for (String drop : drops)
+            stmt.execute(drop);
+         c.commit();
+         if (!drops.isEmpty())
+            this._out.println("Deferred " + drops.size() + " foreign key(s) and index(es) until the load is done");
+      }catch (SQLException e){
+         c.rollback();
+         throw e;
+      }finally{
+         c.setAutoCommit(true);
+      }//end try
+   }//end defer
+
+   /*
+    * Rebuilds the deferred indexes in parallel, then adds the foreign keys
+    * back one at a time and analyzes the loaded tables.
+    **/
+   private void rebuild(ExecutorService workers, List<String> tables) throws SQLException {
+      List<Object[]> indexes = new ArrayList<Object[]>();
+      ConnectionPool.PooledConnection pc = this._pool.acquire();
+      try (Statement stmt = pc.getConnection().createStatement()){
+         ResultSet rs = stmt.executeQuery(
+            "SELECT id, create_sql FROM bulk_load_deferred WHERE kind = 'index' ORDER BY id");
+         while (rs.next())
+            indexes.add(new Object[] { rs.getInt(1), rs.getString(2) });
+         rs.close();
+      }finally{
+         this._pool.release(pc);
+      }//end try
+
+      List<Future<?>> builds = new ArrayList<Future<?>>();
+      for (Object[] index : indexes)
+         builds.add(workers.submit(() -> {
+            ConnectionPool.PooledConnection ic = this._pool.acquire();
+            try (Statement stmt = ic.getConnection().createStatement()){
+               stmt.execute("SET maintenance_work_mem = '" + MAINTENANCE_WORK_MEM + "'");
+               stmt.execute((String) index[1]);
+               stmt.execute("DELETE FROM bulk_load_deferred WHERE id = " + index[0]);
+               stmt.execute("RESET maintenance_work_mem");
+            }finally{
+               this._pool.release(ic);
+            }//end try
+            return null;
+         }));
+      SQLException failure = null;
+      for (Future<?> build : builds){
+         try{
+            build.get();
+         }catch (ExecutionException e){
+            if (failure == null)
+               failure = new SQLException("Rebuilding an index failed: " + e.getCause().getMessage(), e.getCause());
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while rebuilding indexes", e);
+         }//end try
+      }//end for
+      if (failure != null)
+         throw failure;
+
+      pc = this._pool.acquire();
+      try{
+         Connection c = pc.getConnection();
+         restore(c);
+         try (Statement stmt = c.createStatement()){
+            for (String table : tables)
+               stmt.execute("ANALYZE " + table);
+         }//end try
+      }finally{
+         this._pool.release(pc);
+      }//end try
+   }//end rebuild
+
+   /*
+    * Re-creates whatever bulk_load_deferred still holds, indexes first.
+    **/
+   private void restore(Connection c) throws SQLException {
+      try (Statement stmt = c.createStatement()){
+         if (!exists(stmt, "bulk_load_deferred"))
+            return;
+         List<Object[]> pending = new ArrayList<Object[]>();
+         try (ResultSet rs = stmt.executeQuery(
+                 "SELECT id, create_sql FROM bulk_load_deferred ORDER BY kind = 'fkey', id")){
+            while (rs.next())
+               pending.add(new Object[] { rs.getInt(1), rs.getString(2) });
+         }//end try
+         for (Object[] p : pending){
+            c.setAutoCommit(false);
+            try{
+               stmt.execute((String) p[1]);
+               stmt.execute("DELETE FROM bulk_load_deferred WHERE id = " + p[0]);
+               c.commit();
+            }catch (SQLException e){
+               c.rollback();
+               throw new SQLException("Restoring \"" + p[1] + "\" failed, it is kept in bulk_load_deferred: "
+                                      + e.getMessage(), e.getSQLState(), e);
+            }finally{
+               c.setAutoCommit(true);
+            }//end try
+         }//end for
+      }//end try
+   }//end restore
+
+   private static boolean exists(Statement stmt, String table) throws SQLException {
+      try (ResultSet rs = stmt.executeQuery("SELECT to_regclass('" + table + "') IS NOT NULL")){
+         return rs.next() && rs.getBoolean(1);
+      }//end try
+   }//end exists
+
+   private void progress(List<TableLoad> loads) {
+      StringBuilder sb = new StringBuilder();
+      for (TableLoad load : loads){
+         if (load.state.get() != TableLoad.RUNNING)
+            continue;
+         double secs = (System.nanoTime() - load.started) / 1e9;
+         sb.append(String.format("  %-16s %5.1f%% %,12d rows %,10.0f rows/s%n", load.table,
+                                 100.0 * load.bytes.get() / Math.max(1L, load.size),
+                                 load.rows.get(), load.rows.get() / Math.max(secs, 1e-3)));
+      }//end for
+      if (sb.length() > 0)
+         this._out.print(sb);
+   }//end progress
+
+   private void summary(List<TableLoad> loads, long nanos) {
+      long total = 0;
+      for (TableLoad load : loads){
+         double secs = load.nanos / 1e9;
+         total += load.rows.get();
+         this._out.println(String.format("  %-16s %,12d rows in %6.1f s %,10.0f rows/s%s", load.table,
+                                         load.rows.get(), secs, load.rows.get() / Math.max(secs, 1e-3),
+                                         load.state.get() == TableLoad.FAILED ? "  FAILED" : ""));
+      }//end for
+      double secs = nanos / 1e9;
+      this._out.println(String.format("  %-16s %,12d rows in %6.1f s %,10.0f rows/s", "total",
+                                      total, secs, total / Math.max(secs, 1e-3)));
+   }//end summary
+
+   /*
+    * The load of one file, with its progress counters.
+    **/
+   private class TableLoad {
+      static final int WAITING = 0, RUNNING = 1, DONE = 2, FAILED = 3;
+
+      final String table;
+      final File file;
+      final long size;
+      final AtomicInteger state = new AtomicInteger(WAITING);
+      final AtomicLong bytes = new AtomicLong();
+      // lines sent while running, the exact count from COPY once done
+      final AtomicLong rows = new AtomicLong();
+      volatile long started;
+      volatile long nanos;
+
+      TableLoad(String table, File file) {
+         this.table = table;
+         this.file = file;
+         this.size = file.length();
+      }
+
+      Long copy() throws SQLException, IOException {
+         this.started = System.nanoTime();
+         this.state.set(RUNNING);
+         ConnectionPool.PooledConnection pc = BulkLoader.this._pool.acquire();
+         CopyIn copy = null;
+         try (InputStream in = new BufferedInputStream(new FileInputStream(this.file), COPY_BUFFER_SIZE)){
+            String columns = header(in);
+            copy = pc.getConnection().unwrap(PGConnection.class).getCopyAPI().copyIn(
+               "COPY " + this.table + " (" + columns + ") FROM STDIN WITH (FORMAT csv, ENCODING 'UTF8')");
+            byte[] buf = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buf)) > 0){
+               copy.writeToCopy(buf, 0, n);
+               int lines = 0;
+               for (int i = 0; i < n; ++i)
+                  if (buf[i] == '\n')
+                     ++lines;
+               this.bytes.addAndGet(n);
+               this.rows.addAndGet(lines);
+            }//end while
+            long count = copy.endCopy();
+            this.rows.set(count);
+            this.state.set(DONE);
+            return count;
+         }catch (SQLException | IOException | RuntimeException e){
+            this.state.set(FAILED);
+            if (copy != null && copy.isActive()){
+               try{
+                  copy.cancelCopy();
+               }catch (SQLException ce){
+                  // ignored, the connection is reset by the pool.
+               }//end try
+            }//end if
+            if (e instanceof SQLException)
+               throw new SQLException("Loading " + this.file + " failed: " + e.getMessage(),
+                                      ((SQLException) e).getSQLState(), e);
+            throw e;
+         }finally{
+            this.nanos = System.nanoTime() - this.started;
+            BulkLoader.this._pool.release(pc);
+         }//end try
+      }
+
+      /*
+       * Reads the header line and returns it as a column list for COPY.
+       **/
+      private String header(InputStream in) throws IOException {
+         ByteArrayOutputStream line = new ByteArrayOutputStream();
+         int b;
+         while ((b = in.read()) >= 0 && b != '\n')
+            line.write(b);
+         this.bytes.addAndGet(line.size() + 1);
+         String text = new String(line.toByteArray(), StandardCharsets.UTF_8).trim();
+         if (text.startsWith("\uFEFF"))
+            text = text.substring(1);
+         StringBuilder columns = new StringBuilder();
+         for (String column : text.split(",")){
+            String name = column.trim();
+            if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\""))
+               name = name.substring(1, name.length() - 1);
+            if (!name.matches("[A-Za-z_][A-Za-z0-9_]*"))
+               throw new IOException("Bad column name \"" + name + "\" in the header of " + this.file);
+            if (columns.length() > 0)
+               columns.append(", ");
+            columns.append(name);
+         }//end for
+         return columns.toString();
+      }
+   }//end TableLoad
+
+}//end BulkLoader
@@ -0,0 +1,18 @@
+import java.sql.SQLException;
+
+/**
+ * A unit of work that runs on one borrowed pooled connection, for example
+ * all the statements of a transaction.
+ *
+ * @param <T> the type of the result
+ */
+public interface ConnectionCallback<T> {
+
+   /**
+    * @param pc the borrowed connection, with its statement cache
+    * @return the result of the work
+    * @throws java.sql.SQLException when a statement fails
+    */
+   T doInConnection(ConnectionPool.PooledConnection pc) throws SQLException;
+
+}//end ConnectionCallback
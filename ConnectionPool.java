@@ -0,0 +1,376 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines a small bounded pool of physical JDBC connections.
+ * Callers borrow a connection with acquire() and hand it back with
+ * release(). The pool never opens more than maxSize connections, keeps at
+ * least minSize of them around, validates connections that sat idle for a
+ * while before handing them out and closes connections that stayed idle
+ * for too long.
+ *
+ */
+public class ConnectionPool {
+
+   // how long Connection.isValid may take when validating on borrow (seconds)
+   private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+   // connections idle for less than this are handed out without a validation round trip
+   private static final long VALIDATION_IDLE_MILLIS = 5000L;
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _acquireTimeoutMillis;
+   private final long _idleTimeoutMillis;
+   private final int _statementCacheSize;
+
+   // idle connections, most recently returned first
+   private final LinkedBlockingDeque<PooledConnection> _idle = new LinkedBlockingDeque<PooledConnection>();
+
+   // one permit per connection that may be handed out
+   private final Semaphore _permits;
+
+   // background idle eviction
+   private final ScheduledExecutorService _evictor;
+
+   private volatile boolean _closed = false;
+
+   // pool-wide metrics
+   private final AtomicInteger _total = new AtomicInteger();
+   private final AtomicInteger _active = new AtomicInteger();
+   private final AtomicLong _borrows = new AtomicLong();
+   private final AtomicLong _timeouts = new AtomicLong();
+   private final AtomicLong _created = new AtomicLong();
+   private final AtomicLong _destroyed = new AtomicLong();
+   private final AtomicLong _validationFailures = new AtomicLong();
+   private final AtomicLong _waitNanos = new AtomicLong();
+   private final AtomicLong _maxWaitNanos = new AtomicLong();
+   private final StatementCache.Counters _statementCounters = new StatementCache.Counters();
+
+   /**
+    * Creates a new pool and opens minSize connections right away so that a
+    * bad URL or password is reported at startup.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize number of connections kept open even when idle
+    * @param maxSize upper bound on open connections
+    * @param acquireTimeoutMillis how long acquire() waits for a free connection
+    * @param idleTimeoutMillis how long a connection above minSize may stay idle
+    * @param statementCacheSize PreparedStatements cached per connection, 0 disables
+    * @throws java.sql.SQLException when failed to open the initial connections
+    */
+   public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+                         long acquireTimeoutMillis, long idleTimeoutMillis,
+                         int statementCacheSize) throws SQLException {
+      if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+         throw new IllegalArgumentException("Invalid pool size: min=" + minSize + " max=" + maxSize);
+
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._minSize = minSize;
+      this._maxSize = maxSize;
+      this._acquireTimeoutMillis = acquireTimeoutMillis;
+      this._idleTimeoutMillis = idleTimeoutMillis;
+      this._statementCacheSize = statementCacheSize;
+      this._permits = new Semaphore(maxSize, true);
+
+      try{
+         for (int i = 0; i < minSize; ++i)
+            this._idle.addLast(open());
+      }catch (SQLException e){
+         closeIdle();
+         throw e;
+      }//end try
+
+      this._evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "pizzastore-pool-evictor");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = Math.max(1000L, idleTimeoutMillis / 2);
+      this._evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection from the pool, waiting up to the acquire timeout
+    * for one to become free. Connections idle for longer than a few seconds
+    * are validated before they are handed out; broken ones are discarded
+    * and replaced. A connection that breaks while in use is closed by the
+    * driver and dropped by release().
+    *
+    * @return a pooled connection that must be given back with release()
+    * @throws java.sql.SQLException when the pool is exhausted or closed
+    */
+   public PooledConnection acquire() throws SQLException {
+      if (this._closed)
+         throw new SQLException("Connection pool is closed");
+
+      long start = System.nanoTime();
+      try{
+         if (!this._permits.tryAcquire(this._acquireTimeoutMillis, TimeUnit.MILLISECONDS)){
+            this._timeouts.incrementAndGet();
+            throw new SQLException("Timed out after " + this._acquireTimeoutMillis
+                                   + " ms waiting for a database connection");
+         }
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a database connection", e);
+      }//end try
+      recordWait(System.nanoTime() - start);
+
+      try{
+         PooledConnection pc;
+         while ((pc = this._idle.pollFirst()) != null){
+            if (pc.getLastUsed() > System.currentTimeMillis() - VALIDATION_IDLE_MILLIS || validate(pc))
+               break;
+            this._validationFailures.incrementAndGet();
+            destroy(pc);
+         }//end while
+         if (pc == null)
+            pc = open();
+
+         this._borrows.incrementAndGet();
+         this._active.incrementAndGet();
+         return pc;
+      }catch (SQLException | RuntimeException e){
+         this._permits.release();
+         throw e;
+      }//end try
+   }//end acquire
+
+   /**
+    * Gives a borrowed connection back to the pool. Connections left inside
+    * an open transaction are rolled back first.
+    *
+    * @param pc the connection obtained from acquire()
+    */
+   public void release(PooledConnection pc) {
+      if (pc == null)
+         return;
+      this._active.decrementAndGet();
+      try{
+         Connection c = pc.getConnection();
+         if (this._closed || c.isClosed()){
+            destroy(pc);
+            return;
+         }//end if
+         if (!c.getAutoCommit()){
+            c.rollback();
+            c.setAutoCommit(true);
+         }//end if
+         pc.touch();
+         this._idle.addFirst(pc);
+      }catch (SQLException e){
+         destroy(pc);
+      }finally{
+         this._permits.release();
+      }//end try
+   }//end release
+
+   /**
+    * Closes every idle connection and refuses further borrows. Connections
+    * still on loan are closed as they come back.
+    */
+   public void close() {
+      this._closed = true;
+      this._evictor.shutdownNow();
+      closeIdle();
+   }//end close
+
+   /**
+    * @return a point-in-time copy of the pool metrics
+    */
+   public Stats getStats() {
+      return new Stats(this._total.get(), this._active.get(), this._idle.size(), this._maxSize,
+                       this._borrows.get(), this._timeouts.get(), this._created.get(),
+                       this._destroyed.get(), this._validationFailures.get(),
+                       this._waitNanos.get(), this._maxWaitNanos.get(),
+                       this._permits.getQueueLength());
+   }//end getStats
+
+   /**
+    * @return the JDBC URL the pool connects to
+    */
+   public String getUrl() {
+      return this._url;
+   }//end getUrl
+
+   /**
+    * Opens a connection that is not part of the pool, for work that holds
+    * it for the life of the process (e.g. LISTEN). The caller closes it.
+    *
+    * @return a new connection to the pool's database
+    * @throws java.sql.SQLException when the connection cannot be opened
+    */
+   public Connection openUnpooled() throws SQLException {
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }//end openUnpooled
+
+   /**
+    * @return hit/miss counters of the per-connection statement caches
+    */
+   public StatementCache.Counters getStatementCacheCounters() {
+      return this._statementCounters;
+   }//end getStatementCacheCounters
+
+   private PooledConnection open() throws SQLException {
+      Connection c = DriverManager.getConnection(this._url, this._user, this._passwd);
+      this._total.incrementAndGet();
+      this._created.incrementAndGet();
+      return new PooledConnection(this, c, new StatementCache(c, this._statementCacheSize, this._statementCounters));
+   }//end open
+
+   private boolean validate(PooledConnection pc) {
+      try{
+         return pc.getConnection().isValid(VALIDATION_TIMEOUT_SECONDS);
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end validate
+
+   private void destroy(PooledConnection pc) {
+      this._total.decrementAndGet();
+      this._destroyed.incrementAndGet();
+      pc.closeQuietly();
+   }//end destroy
+
+   private void closeIdle() {
+      PooledConnection pc;
+      while ((pc = this._idle.pollFirst()) != null)
+         destroy(pc);
+   }//end closeIdle
+
+   private void recordWait(long nanos) {
+      this._waitNanos.addAndGet(nanos);
+      long max;
+      while (nanos > (max = this._maxWaitNanos.get()))
+         if (this._maxWaitNanos.compareAndSet(max, nanos))
+            break;
+   }//end recordWait
+
+   /*
+    * Closes connections that have been idle longer than the idle timeout,
+    * oldest first, without dropping below minSize.
+    **/
+   private void evictIdle() {
+      long cutoff = System.currentTimeMillis() - this._idleTimeoutMillis;
+      List<PooledConnection> expired = new ArrayList<PooledConnection>();
+      PooledConnection pc;
+      while (this._total.get() - expired.size() > this._minSize
+             && (pc = this._idle.peekLast()) != null
+             && pc.getLastUsed() < cutoff){
+         if (this._idle.removeLastOccurrence(pc))
+            expired.add(pc);
+      }//end while
+      for (PooledConnection e : expired)
+         destroy(e);
+   }//end evictIdle
+
+   /**
+    * A physical connection owned by the pool.
+    */
+   public static class PooledConnection {
+      private final ConnectionPool _pool;
+      private final Connection _connection;
+      private final StatementCache _statements;
+      private volatile long _lastUsed = System.currentTimeMillis();
+
+      PooledConnection(ConnectionPool pool, Connection connection, StatementCache statements) {
+         this._pool = pool;
+         this._connection = connection;
+         this._statements = statements;
+      }
+
+      /**
+       * @return the pool the connection must be released to
+       */
+      public ConnectionPool getPool() {
+         return this._pool;
+      }
+
+      public Connection getConnection() {
+         return this._connection;
+      }
+
+      public StatementCache getStatementCache() {
+         return this._statements;
+      }
+
+      long getLastUsed() {
+         return this._lastUsed;
+      }
+
+      void touch() {
+         this._lastUsed = System.currentTimeMillis();
+      }
+
+      void closeQuietly() {
+         this._statements.close();
+         try{
+            this._connection.close();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }
+   }//end PooledConnection
+
+   /**
+    * Snapshot of the pool metrics.
+    */
+   public static class Stats {
+      public final int total;
+      public final int active;
+      public final int idle;
+      public final int maxSize;
+      public final long borrows;
+      public final long timeouts;
+      public final long created;
+      public final long destroyed;
+      public final long validationFailures;
+      public final long totalWaitNanos;
+      public final long maxWaitNanos;
+      public final int waiting;
+
+      Stats(int total, int active, int idle, int maxSize, long borrows, long timeouts,
+            long created, long destroyed, long validationFailures, long totalWaitNanos,
+            long maxWaitNanos, int waiting) {
+         this.total = total;
+         this.active = active;
+         this.idle = idle;
+         this.maxSize = maxSize;
+         this.borrows = borrows;
+         this.timeouts = timeouts;
+         this.created = created;
+         this.destroyed = destroyed;
+         this.validationFailures = validationFailures;
+         this.totalWaitNanos = totalWaitNanos;
+         this.maxWaitNanos = maxWaitNanos;
+         this.waiting = waiting;
+      }
+
+      public String toString() {
+         double avgWaitMs = borrows == 0 ? 0.0 : totalWaitNanos / 1e6 / borrows;
+         return String.format("pool: total=%d active=%d idle=%d max=%d waiting=%d borrows=%d timeouts=%d "
+                              + "created=%d destroyed=%d invalid=%d avgWait=%.3fms maxWait=%.3fms",
+                              total, active, idle, maxSize, waiting, borrows, timeouts, created,
+                              destroyed, validationFailures, avgWaitMs, maxWaitNanos / 1e6);
+      }
+   }//end Stats
+
+}//end ConnectionPool
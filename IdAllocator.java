@@ -0,0 +1,210 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class hands out the IDs of one entity (orders, ...) from memory.
+ * IDs are reserved from a PostgreSQL sequence in blocks: the increment of
+ * the sequence is the block size, and every nextval() it returns is the
+ * highest ID of a block nobody else holds (the "pooled" hi/lo scheme). The
+ * IDs of the block are then given out with an atomic increment, without a
+ * lock or a round trip, until the block is used up.
+ *
+ * Every process that allocates from the same sequence gets disjoint
+ * blocks, so IDs never collide; they are unique but not gap free, as the
+ * unused rest of a block is lost when the process ends. The block size is
+ * the one the sequence was created with, read back with every block, so
+ * processes configured with another one still agree on it.
+ *
+ * prepare() moves the sequence forward while others reserve from it. It
+ * holds an advisory lock on the sequence that every reservation takes
+ * shared, so no nextval() runs between its read and its setval().
+ *
+ * prepare() and reserve() take a lock rather than being synchronized, as
+ * they wait for the pool and the database, and a virtual thread blocked
+ * in a synchronized method pins its carrier thread.
+ *
+ */
+public class IdAllocator {
+
+   private final ConnectionPool _pool;
+   private final String _sequence;
+   private final String _table;
+   private final String _column;
+   // the increment of the sequence, once it was read
+   private volatile int _blockSize;
+
+   // the block IDs are currently taken from
+   private volatile Block _block = Block.EMPTY;
+   // held while the sequence is prepared or a block reserved
+   private final ReentrantLock _lock = new ReentrantLock();
+
+   private final AtomicLong _allocated = new AtomicLong();
+   private final AtomicLong _blocksReserved = new AtomicLong();
+
+   /**
+    * @param pool the pool the blocks are reserved through
+    * @param sequence the sequence the blocks are reserved from
+    * @param table the table whose key the IDs are
+    * @param column the key column, IDs above its largest value are handed out
+    * @param blockSize IDs reserved per round trip, when the sequence has to be created
+    */
+   public IdAllocator(ConnectionPool pool, String sequence, String table, String column, int blockSize) {
+      if (blockSize < 1)
+         throw new IllegalArgumentException("Invalid block size: " + blockSize);
+      this._pool = pool;
+      this._sequence = sequence;
+      this._table = table;
+      this._column = column;
+      this._blockSize = blockSize;
+   }//end IdAllocator
+
+   /**
+    * Creates the sequence if it is missing and moves it past the largest ID
+    * already in the table, so that IDs inserted without the allocator (e.g.
+    * bulk loaded) are never handed out. The sequence only ever moves
+    * forward. The block held in memory is dropped.
+    *
+    * @throws java.sql.SQLException when the sequence cannot be prepared
+    */
+   public void prepare() throws SQLException {
+      this._lock.lock();
+      ConnectionPool.PooledConnection pc = null;
+      try{
+         pc = this._pool.acquire();
+         Connection c = pc.getConnection();
+         try (Statement stmt = c.createStatement()){
+            stmt.executeUpdate("CREATE SEQUENCE IF NOT EXISTS " + this._sequence + " INCREMENT BY " + this._blockSize);
+         }//end try
+         c.setAutoCommit(false);
+         try (PreparedStatement lock = c.prepareStatement("SELECT pg_advisory_xact_lock(hashtext(?))");
+              Statement stmt = c.createStatement()){
+            lock.setString(1, this._sequence);
+            lock.executeQuery().close();
+            // a sequence never called yet hands out last_value itself, which is no block's high end
+            stmt.executeQuery(
+               "SELECT setval('" + this._sequence + "', GREATEST(t.m, s.last_value, 1)) " +
+               "FROM (SELECT COALESCE(MAX(" + this._column + "), 0) AS m FROM " + this._table + ") t, " + this._sequence + " s " +
+               "WHERE t.m > s.last_value OR NOT s.is_called").close();
+            c.commit();
+         }catch (SQLException e){
+            c.rollback();
+            throw e;
+         }finally{
+            c.setAutoCommit(true);
+         }//end try
+         this._block = Block.EMPTY;
+      }finally{
+         if (pc != null)
+            this._pool.release(pc);
+         this._lock.unlock();
+      }//end try
+   }//end prepare
+
+   /**
+    * @return a new ID, never handed out before by any process
+    * @throws java.sql.SQLException when a new block had to be reserved and that failed
+    */
+   public long next() throws SQLException {
+      while (true){
+         Block b = this._block;
+         long id = b.next.getAndIncrement();
+         if (id <= b.hi){
+            this._allocated.incrementAndGet();
+            return id;
+         }//end if
+         reserve(b);
+      }//end while
+   }//end next
+
+   /**
+    * @return a new ID for an int key
+    * @throws java.sql.SQLException when a new block had to be reserved and that failed
+    * @throws ArithmeticException when the IDs outgrew the int range
+    */
+   public int nextInt() throws SQLException {
+      return Math.toIntExact(next());
+   }//end nextInt
+
+   /**
+    * @return IDs handed out since startup
+    */
+   public long getAllocated() {
+      return this._allocated.get();
+   }
+
+   /**
+    * @return blocks reserved from the sequence since startup
+    */
+   public long getBlocksReserved() {
+      return this._blocksReserved.get();
+   }
+
+   public String getSequence() {
+      return this._sequence;
+   }
+
+   public int getBlockSize() {
+      return this._blockSize;
+   }
+
+   /*
+    * Replaces the used up block by a new one. Only the first thread that
+    * finds exhausted still current reserves; the others wait for it and
+    * then take IDs from its block.
+    **/
+   private void reserve(Block exhausted) throws SQLException {
+      this._lock.lock();
+      try{
+         if (this._block != exhausted)
+            return;
+         long hi;
+         int size;
+         ConnectionPool.PooledConnection pc = this._pool.acquire();
+         try (PreparedStatement stmt = pc.getConnection().prepareStatement(
+                 "SELECT pg_advisory_xact_lock_shared(hashtext(?)), nextval(?::regclass), seqincrement " +
+                 "FROM pg_sequence WHERE seqrelid = ?::regclass")){
+            stmt.setString(1, this._sequence);
+            stmt.setString(2, this._sequence);
+            stmt.setString(3, this._sequence);
+            try (ResultSet rs = stmt.executeQuery()){
+               rs.next();
+               hi = rs.getLong(2);
+               size = Math.toIntExact(rs.getLong(3));
+            }//end try
+         }finally{
+            this._pool.release(pc);
+         }//end try
+         this._blocksReserved.incrementAndGet();
+         this._blockSize = size;
+         this._block = new Block(hi - size + 1, hi);
+      }finally{
+         this._lock.unlock();
+      }//end try
+   }//end reserve
+
+   /*
+    * The IDs lo..hi, of which the ones below next were handed out.
+    **/
+   private static class Block {
+      static final Block EMPTY = new Block(1, 0);
+
+      final long hi;
+      final AtomicLong next;
+
+      Block(long lo, long hi) {
+         this.hi = hi;
+         this.next = new AtomicLong(lo);
+      }
+   }//end Block
+
+   public String toString() {
+      return String.format("ids: %s blockSize=%d allocated=%d blocks=%d",
+                           this._sequence, this._blockSize, this._allocated.get(), this._blocksReserved.get());
+   }
+
+}//end IdAllocator
@@ -0,0 +1,425 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * This class searches the menu by ingredient, type and price from memory.
+ * Every item has a slot, and every ingredient token points to the bitmap
+ * of the items that contain it (an inverted index), as does every item
+ * type. A search such as "vegetarian, no mushrooms, under 12" intersects
+ * and subtracts a few bitmaps instead of matching the text of every item.
+ *
+ * Ingredients are split at commas, semicolons, slashes and "and"; every
+ * ingredient is indexed as a whole ("tomato sauce") and word by word
+ * ("tomato", "sauce"), with plurals folded ("mushrooms" finds "mushroom").
+ * When the database has an AvailableAt (storeID, itemName) table, a
+ * search for a store only returns the items listed for it; a store
+ * without any rows there carries the whole menu, as do all stores when
+ * the table does not exist.
+ *
+ * The index is immutable and replaced as a whole. updateMenu reloads the
+ * items it changed, a bulk load reloads everything.
+ *
+ */
+public class IngredientIndex {
+
+   // ingredients that make an item not vegetarian
+   static final Set<String> MEAT = new LinkedHashSet<String>(Arrays.asList(
+      "pepperoni", "sausage", "ham", "bacon", "chicken", "beef", "meatball", "meat", "salami",
+      "prosciutto", "pork", "steak", "turkey", "anchovy", "anchovie", "tuna", "shrimp", "fish"));
+
+   // columns of a search result
+   static final List<String> COLUMNS = Arrays.asList("itemname", "typeofitem", "price", "ingredients");
+
+   private final ConnectionPool _pool;
+
+   // the current index
+   private volatile Index _index;
+
+   /**
+    * Loads every item.
+    *
+    * @param pool the pool the items are read through
+    * @throws java.sql.SQLException when the items cannot be loaded
+    */
+   public IngredientIndex(ConnectionPool pool) throws SQLException {
+      this._pool = pool;
+      reload();
+   }//end IngredientIndex
+
+   /**
+    * Finds the items that match a filter, in item name order.
+    *
+    * @param filter what to look for
+    * @return the matching items
+    */
+   public List<Item> search(Filter filter) {
+      Index index = this._index;
+      BitSet match = (BitSet) index.all.clone();
+      if (filter.storeID != null){
+         BitSet available = index.byStore.get(filter.storeID);
+         if (available != null)
+            match.and(available);
+      }//end if
+      for (String token : filter.include){
+         BitSet items = index.byToken.get(token);
+         if (items == null)
+            return new ArrayList<Item>();
+         match.and(items);
+      }//end for
+      for (String token : filter.exclude){
+         BitSet items = index.byToken.get(token);
+         if (items != null)
+            match.andNot(items);
+      }//end for
+      if (!filter.types.isEmpty()){
+         BitSet typed = new BitSet();
+         for (String type : filter.types){
+            BitSet items = index.byType.get(type);
+            if (items != null)
+               typed.or(items);
+         }//end for
+         match.and(typed);
+      }//end if
+      if (filter.minPrice != null || filter.maxPrice != null)
+         match.and(index.priceRange(filter.minPrice, filter.maxPrice));
+
+      List<Item> found = new ArrayList<Item>(match.cardinality());
+      for (int slot = match.nextSetBit(0); slot >= 0; slot = match.nextSetBit(slot + 1))
+         found.add(index.items[slot]);
+      return found;
+   }//end search
+
+   /**
+    * @return the number of items in the index
+    */
+   public int size() {
+      return this._index.items.length;
+   }
+
+   /**
+    * Reads every item (and the AvailableAt table when there is one) and
+    * replaces the index.
+    *
+    * @throws java.sql.SQLException when the items cannot be read
+    */
+   public synchronized void reload() throws SQLException {
+      ConnectionPool.PooledConnection pc = this._pool.acquire();
+      try{
+         Connection c = pc.getConnection();
+         TreeMap<String, Item> items = new TreeMap<String, Item>();
+         Statement stmt = c.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT " + Item.COLUMNS + " FROM Items");
+         while (rs.next()){
+            Item item = Item.MAPPER.mapRow(rs, items.size());
+            items.put(item.itemName(), item);
+         }//end while
+         rs.close();
+
+         Map<Integer, Set<String>> available = new HashMap<Integer, Set<String>>();
+         rs = stmt.executeQuery("SELECT to_regclass('availableat') IS NOT NULL");
+         rs.next();
+         boolean hasAvailableAt = rs.getBoolean(1);
+         rs.close();
+         if (hasAvailableAt){
+            rs = stmt.executeQuery("SELECT storeID::text, itemName FROM AvailableAt");
+            while (rs.next()){
+               try{
+                  available.computeIfAbsent(Integer.valueOf(rs.getString(1).trim()), k -> new LinkedHashSet<String>())
+                           .add(rs.getString(2).trim());
+               }catch (NumberFormatException e){
+                  // not a store of the Store table.
+               }//end try
+            }//end while
+            rs.close();
+         }//end if
+         stmt.close();
+         this._index = new Index(items, available);
+      }finally{
+         this._pool.release(pc);
+      }//end try
+   }//end reload
+
+   /**
+    * Reads one item again after it was added, changed or deleted.
+    *
+    * @param itemName the item
+    * @throws java.sql.SQLException when the item cannot be read
+    */
+   public synchronized void reloadItem(String itemName) throws SQLException {
+      Item item = null;
+      ConnectionPool.PooledConnection pc = this._pool.acquire();
+      try{
+         PreparedStatement stmt = pc.getConnection().prepareStatement(
+            "SELECT " + Item.COLUMNS + " FROM Items WHERE itemName = ?");
+         stmt.setString(1, itemName);
+         ResultSet rs = stmt.executeQuery();
+         if (rs.next())
+            item = Item.MAPPER.mapRow(rs, 0);
+         rs.close();
+         stmt.close();
+      }finally{
+         this._pool.release(pc);
+      }//end try
+
+      Index current = this._index;
+      TreeMap<String, Item> items = new TreeMap<String, Item>();
+      for (Item i : current.items)
+         items.put(i.itemName(), i);
+      if (item == null)
+         items.remove(itemName.trim());
+      else
+         items.put(item.itemName(), item);
+      this._index = new Index(items, current.available);
+   }//end reloadItem
+
+   /**
+    * @param items items as returned by search()
+    * @return the items with the columns of a search result
+    */
+   public static QueryResult toResult(List<Item> items) {
+      List<List<String>> rows = new ArrayList<List<String>>(items.size());
+      for (Item i : items)
+         rows.add(Arrays.asList(i.itemName(), i.typeOfItem(), i.price() == null ? null : i.price().toPlainString(),
+                                i.ingredients()));
+      return new QueryResult(COLUMNS, rows);
+   }//end toResult
+
+   /**
+    * Splits an ingredient list into its index tokens: every ingredient
+    * and every word of it, lower case, plurals folded.
+    *
+    * @param ingredients the ingredient text
+    * @return the tokens
+    */
+   public static Set<String> tokens(String ingredients) {
+      Set<String> tokens = new LinkedHashSet<String>();
+      if (ingredients == null)
+         return tokens;
+      for (String part : ingredients.toLowerCase().split("[,;/&]|\\band\\b")){
+         String phrase = phrase(part);
+         if (phrase.isEmpty())
+            continue;
+         tokens.add(phrase);
+         tokens.addAll(Arrays.asList(phrase.split(" ")));
+      }//end for
+      return tokens;
+   }//end tokens
+
+   /*
+    * @return the words of text, folded and separated by single blanks
+    **/
+   private static String phrase(String text) {
+      StringBuilder sb = new StringBuilder();
+      for (String word : text.toLowerCase().split("[^a-z0-9]+")){
+         if (word.isEmpty())
+            continue;
+         if (sb.length() > 0)
+            sb.append(' ');
+         sb.append(fold(word));
+      }//end for
+      return sb.toString();
+   }//end phrase
+
+   /*
+    * Folds a plural into its singular: berries -> berry, tomatoes ->
+    * tomato, mushrooms -> mushroom.
+    **/
+   private static String fold(String word) {
+      int n = word.length();
+      if (n > 4 && word.endsWith("ies"))
+         return word.substring(0, n - 3) + "y";
+      if (n > 4 && word.endsWith("oes"))
+         return word.substring(0, n - 2);
+      if (n > 3 && word.endsWith("s") && !word.endsWith("ss"))
+         return word.substring(0, n - 1);
+      return word;
+   }//end fold
+
+   /**
+    * What a search looks for. Ingredients and types are folded like the
+    * index, so they may be given in any case and in plural.
+    */
+   public static class Filter {
+      public final Integer storeID;
+      public final Set<String> include;
+      public final Set<String> exclude;
+      public final Set<String> types;
+      public final BigDecimal minPrice;
+      public final BigDecimal maxPrice;
+
+      /**
+       * @param storeID only items available at this store, null for any store
+       * @param include ingredients every item must contain
+       * @param exclude ingredients no item may contain
+       * @param types item types, any of which an item must have; empty for all types
+       * @param minPrice the lowest price, null for none
+       * @param maxPrice the highest price, null for none
+       */
+      public Filter(Integer storeID, Collection<String> include, Collection<String> exclude,
+                    Collection<String> types, BigDecimal minPrice, BigDecimal maxPrice) {
+         this.storeID = storeID;
+         this.include = folded(include);
+         this.exclude = folded(exclude);
+         this.types = folded(types);
+         this.minPrice = minPrice;
+         this.maxPrice = maxPrice;
+      }
+
+      /**
+       * Parses a filter typed by a customer: comma separated terms, each
+       * an ingredient to include, "no <ingredient>" (or "without", or a
+       * leading "-") to exclude, "vegetarian", "type <type>",
+       * "under <price>" or "over <price>". For example
+       * "vegetarian, no mushrooms, type entree, under 12".
+       *
+       * @param storeID only items available at this store, null for any store
+       * @param text the filter
+       * @return the filter
+       * @throws IllegalArgumentException when a price is not a number
+       */
+      public static Filter parse(Integer storeID, String text) {
+         List<String> include = new ArrayList<String>();
+         List<String> exclude = new ArrayList<String>();
+         List<String> types = new ArrayList<String>();
+         BigDecimal min = null, max = null;
+         for (String term : text.toLowerCase().split(",")){
+            term = term.trim();
+            if (term.isEmpty())
+               continue;
+            if (term.equals("vegetarian") || term.equals("veggie"))
+               exclude.addAll(MEAT);
+            else if (term.startsWith("no "))
+               exclude.add(term.substring(3));
+            else if (term.startsWith("without "))
+               exclude.add(term.substring(8));
+            else if (term.startsWith("-"))
+               exclude.add(term.substring(1));
+            else if (term.startsWith("type "))
+               types.add(term.substring(5));
+            else if (term.startsWith("under "))
+               max = price(term.substring(6));
+            else if (term.startsWith("over "))
+               min = price(term.substring(5));
+            else
+               include.add(term);
+         }//end for
+         return new Filter(storeID, include, exclude, types, min, max);
+      }//end parse
+
+      private static BigDecimal price(String text) {
+         try{
+            return new BigDecimal(text.trim().replace("$", ""));
+         }catch (NumberFormatException e){
+            throw new IllegalArgumentException("Not a price: " + text);
+         }//end try
+      }//end price
+
+      private static Set<String> folded(Collection<String> terms) {
+         Set<String> folded = new LinkedHashSet<String>();
+         if (terms != null)
+            for (String t : terms){
+               String p = phrase(t);
+               if (!p.isEmpty())
+                  folded.add(p);
+            }//end for
+         return folded;
+      }//end folded
+   }//end Filter
+
+   /*
+    * An immutable snapshot of the items and their bitmaps. Slots follow
+    * the item name order.
+    **/
+   private static class Index {
+      final Item[] items;
+      final Map<String, BitSet> byToken = new HashMap<String, BitSet>();
+      final Map<String, BitSet> byType = new HashMap<String, BitSet>();
+      final Map<Integer, Set<String>> available;
+      final Map<Integer, BitSet> byStore = new HashMap<Integer, BitSet>();
+      final BitSet all;
+      // slots ordered by price, and their prices; unpriced items are left out
+      final int[] byPrice;
+      final BigDecimal[] prices;
+
+      Index(TreeMap<String, Item> items, Map<Integer, Set<String>> available) {
+         this.items = items.values().toArray(new Item[0]);
+         this.available = available;
+         this.all = new BitSet(this.items.length);
+         this.all.set(0, this.items.length);
+         Map<String, Integer> slotOf = new HashMap<String, Integer>();
+         for (int slot = 0; slot < this.items.length; ++slot){
+            Item item = this.items[slot];
+            slotOf.put(item.itemName(), slot);
+            for (String token : tokens(item.ingredients()))
+               this.byToken.computeIfAbsent(token, k -> new BitSet()).set(slot);
+            if (item.typeOfItem() != null)
+               this.byType.computeIfAbsent(phrase(item.typeOfItem()), k -> new BitSet()).set(slot);
+         }//end for
+         for (Map.Entry<Integer, Set<String>> store : available.entrySet()){
+            BitSet slots = new BitSet(this.items.length);
+            for (String itemName : store.getValue()){
+               Integer slot = slotOf.get(itemName);
+               if (slot != null)
+                  slots.set(slot);
+            }//end for
+            this.byStore.put(store.getKey(), slots);
+         }//end for
+
+         List<Integer> priced = new ArrayList<Integer>();
+         for (int slot = 0; slot < this.items.length; ++slot)
+            if (this.items[slot].price() != null)
+               priced.add(slot);
+         final Item[] it = this.items;
+         priced.sort((a, b) -> it[a].price().compareTo(it[b].price()));
+         this.byPrice = new int[priced.size()];
+         this.prices = new BigDecimal[priced.size()];
+         for (int i = 0; i < this.byPrice.length; ++i){
+            this.byPrice[i] = priced.get(i);
+            this.prices[i] = this.items[priced.get(i)].price();
+         }//end for
+      }//end Index
+
+      /*
+       * @return the slots of the items priced from min to max, both inclusive
+       **/
+      BitSet priceRange(BigDecimal min, BigDecimal max) {
+         int from = min == null ? 0 : lowerBound(min, false);
+         int to = max == null ? this.prices.length : lowerBound(max, true);
+         BitSet slots = new BitSet(this.items.length);
+         for (int i = from; i < to; ++i)
+            slots.set(this.byPrice[i]);
+         return slots;
+      }//end priceRange
+
+      /*
+       * @return the first position whose price is above price (after) or not below it
+       **/
+      private int lowerBound(BigDecimal price, boolean after) {
+         int lo = 0, hi = this.prices.length;
+         while (lo < hi){
+            int mid = (lo + hi) >>> 1;
+            int cmp = this.prices[mid].compareTo(price);
+            if (cmp < 0 || (after && cmp == 0))
+               lo = mid + 1;
+            else
+               hi = mid;
+         }//end while
+         return lo;
+      }//end lowerBound
+   }//end Index
+
+}//end IngredientIndex
@@ -0,0 +1,20 @@
+import java.math.BigDecimal;
+
+/**
+ * One row of Items, read with typed accessors instead of as strings.
+ *
+ * @param price null when the item has no price
+ */
+public record Item(String itemName, String ingredients, String typeOfItem, BigDecimal price, String description) {
+
+   // the select list MAPPER reads, by position
+   public static final String COLUMNS = "itemName, ingredients, typeOfItem, price, description";
+
+   public static final RowMapper<Item> MAPPER = (rs, rowNum) -> new Item(
+      RowMapper.text(rs, 1), RowMapper.text(rs, 2), RowMapper.text(rs, 3), rs.getBigDecimal(4), RowMapper.text(rs, 5));
+
+   public String toString() {
+      return this.itemName;
+   }
+
+}//end Item
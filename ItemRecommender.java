@@ -0,0 +1,401 @@
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class suggests items while an order is being placed: the items
+ * most often ordered together with the ones already in the cart. Every
+ * item gets a number, and every item a sparse counter of how often each
+ * other item was ordered (or viewed) together with it, kept in primitive
+ * open addressing tables instead of boxed maps. A suggestion adds up the
+ * counters of the cart items and picks the top ones, without querying
+ * the database.
+ *
+ * rebuild() streams the whole order history (and the Views table of the
+ * users, when there is one) into a new model and swaps it in. After that
+ * every order placed through submitOrder is added as it commits. An order
+ * that commits while a rebuild streams is added to the live model and
+ * remembered; once the stream ended, the ones the rebuild's snapshot did
+ * not see are added to the new model as well, so none is lost or counted
+ * twice.
+ *
+ * Two items in one order count ORDER_WEIGHT, two items viewed by one user
+ * count 1: an order says more than a look.
+ *
+ */
+public class ItemRecommender {
+
+   // weight of two items ordered together, two items viewed together weigh 1
+   static final int ORDER_WEIGHT = 2;
+
+   // rows fetched per round trip while streaming the history
+   static final int FETCH_SIZE = 5000;
+
+   private final ConnectionPool _pool;
+
+   // the model, replaced by rebuild(); guarded by _lock
+   private Model _model = new Model();
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+
+   // orders recorded while a rebuild streams, null when none runs; guarded by _lock
+   private Map<Integer, Collection<String>> _pending = null;
+
+   // metrics
+   private final AtomicLong _suggestions = new AtomicLong();
+   private final AtomicLong _ordersRecorded = new AtomicLong();
+   private final AtomicLong _rebuilds = new AtomicLong();
+
+   /**
+    * @param pool the pool the history is read through
+    */
+   public ItemRecommender(ConnectionPool pool) {
+      this._pool = pool;
+   }//end ItemRecommender
+
+   /**
+    * Suggests the items most often ordered together with the cart, the
+    * most ordered items when the cart is empty or has no known partners.
+    * Items of the cart are never suggested.
+    *
+    * @param cart item names already chosen
+    * @param limit the most items suggested
+    * @return the suggested item names, best first
+    */
+   public List<String> suggest(Collection<String> cart, int limit) {
+      this._suggestions.incrementAndGet();
+      List<String> suggested = new ArrayList<String>();
+      if (limit <= 0)
+         return suggested;
+      this._lock.readLock().lock();
+      try{
+         Model m = this._model;
+         Counter scores = new Counter(16);
+         Set<Integer> chosen = new LinkedHashSet<Integer>();
+         for (String itemName : cart){
+            Integer item = m.idOf.get(key(itemName));
+            if (item != null)
+               chosen.add(item);
+         }//end for
+         for (int item : chosen){
+            Counter partners = m.partners.get(item);
+            for (int i = 0; i < partners.keys.length; ++i)
+               if (partners.keys[i] != Counter.FREE && !chosen.contains(partners.keys[i]))
+                  scores.add(partners.keys[i], partners.values[i]);
+         }//end for
+         if (scores.size == 0)
+            for (int item = 0; item < m.names.size(); ++item)
+               if (m.ordered.get(item) > 0 && !chosen.contains(item))
+                  scores.add(item, m.ordered.get(item));
+         for (int item : top(scores, m, limit))
+            suggested.add(m.names.get(item));
+         return suggested;
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end suggest
+
+   /**
+    * Adds an order that was just committed.
+    *
+    * @param orderID the order
+    * @param items the item names of the order
+    */
+   public void recordOrder(int orderID, Collection<String> items) {
+      this._lock.writeLock().lock();
+      try{
+         this._model.addBasket(items, ORDER_WEIGHT, true);
+         if (this._pending != null)
+            this._pending.put(orderID, new ArrayList<String>(items));
+         this._ordersRecorded.incrementAndGet();
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end recordOrder
+
+   /**
+    * Streams the order history (and the views, when the Views table
+    * exists) into a new model and swaps it in.
+    *
+    * @return the orders read
+    * @throws java.sql.SQLException when the history cannot be read
+    */
+   public synchronized long rebuild() throws SQLException {
+      this._lock.writeLock().lock();
+      try{
+         this._pending = new HashMap<Integer, Collection<String>>();
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+
+      Model model = new Model();
+      long orders = 0;
+      ConnectionPool.PooledConnection pc = this._pool.acquire();
+      try{
+         Connection c = pc.getConnection();
+         c.setAutoCommit(false);
+         Statement stmt = c.createStatement();
+         // one snapshot for the history and the check of the pending orders
+         stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+         orders = stream(c, "SELECT orderID::text, itemName FROM ItemsInOrder ORDER BY orderID",
+                         model, ORDER_WEIGHT, true);
+         ResultSet rs = stmt.executeQuery("SELECT to_regclass('views') IS NOT NULL");
+         rs.next();
+         boolean hasViews = rs.getBoolean(1);
+         rs.close();
+         if (hasViews)
+            stream(c, "SELECT phoneNum, itemName FROM Views ORDER BY phoneNum", model, 1, false);
+         stmt.close();
+
+         while (true){
+            Map<Integer, Collection<String>> pending;
+            this._lock.writeLock().lock();
+            try{
+               if (this._pending.isEmpty()){
+                  this._pending = null;
+                  this._model = model;
+                  break;
+               }//end if
+               pending = this._pending;
+               this._pending = new HashMap<Integer, Collection<String>>();
+            }finally{
+               this._lock.writeLock().unlock();
+            }//end try
+            // orders the snapshot saw are in the model already
+            PreparedStatement seen = c.prepareStatement("SELECT orderID FROM FoodOrder WHERE orderID = ANY(?)");
+            Array ids = c.createArrayOf("integer", pending.keySet().toArray());
+            seen.setArray(1, ids);
+            rs = seen.executeQuery();
+            while (rs.next())
+               pending.remove(rs.getInt(1));
+            rs.close();
+            seen.close();
+            for (Collection<String> items : pending.values())
+               model.addBasket(items, ORDER_WEIGHT, true);
+         }//end while
+         c.commit();
+      }finally{
+         this._lock.writeLock().lock();
+         try{
+            this._pending = null;
+         }finally{
+            this._lock.writeLock().unlock();
+         }//end try
+         this._pool.release(pc);
+      }//end try
+      this._rebuilds.incrementAndGet();
+      return orders;
+   }//end rebuild
+
+   public String toString() {
+      this._lock.readLock().lock();
+      try{
+         return String.format("recommender: items=%d pairs=%d suggestions=%d ordersRecorded=%d rebuilds=%d",
+                              this._model.names.size(), this._model.pairs() / 2, this._suggestions.get(),
+                              this._ordersRecorded.get(), this._rebuilds.get());
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end toString
+
+   /*
+    * Reads (group, itemName) rows ordered by group through a cursor and
+    * adds every group as one basket.
+    *
+    * @return the groups read
+    **/
+   private static long stream(Connection c, String query, Model model, int weight, boolean order)
+      throws SQLException {
+      long groups = 0;
+      try (Statement stmt = c.createStatement()){
+         stmt.setFetchSize(FETCH_SIZE);
+         ResultSet rs = stmt.executeQuery(query);
+         String group = null;
+         List<String> basket = new ArrayList<String>();
+         while (rs.next()){
+            String g = rs.getString(1);
+            if (!g.equals(group)){
+               if (!basket.isEmpty()){
+                  model.addBasket(basket, weight, order);
+                  ++groups;
+               }//end if
+               basket.clear();
+               group = g;
+            }//end if
+            if (rs.getString(2) != null)
+               basket.add(rs.getString(2));
+         }//end while
+         if (!basket.isEmpty()){
+            model.addBasket(basket, weight, order);
+            ++groups;
+         }//end if
+         rs.close();
+      }//end try
+      return groups;
+   }//end stream
+
+   /*
+    * @return the limit items of scores with the highest score, best
+    * first, ties by name
+    **/
+   private static int[] top(Counter scores, Model m, int limit) {
+      int[] best = new int[Math.min(limit, scores.size)];
+      int n = 0;
+      for (int i = 0; i < scores.keys.length; ++i){
+         int item = scores.keys[i];
+         if (item == Counter.FREE)
+            continue;
+         int score = scores.values[i];
+         // insertion into the short sorted list of the best so far
+         int pos = n;
+         while (pos > 0 && better(item, score, best[pos - 1], scores.get(best[pos - 1]), m))
+            --pos;
+         if (pos >= best.length)
+            continue;
+         int end = Math.min(n, best.length - 1);
+         System.arraycopy(best, pos, best, pos + 1, end - pos);
+         best[pos] = item;
+         n = Math.min(n + 1, best.length);
+      }//end for
+      return Arrays.copyOf(best, n);
+   }//end top
+
+   private static boolean better(int a, int scoreA, int b, int scoreB, Model m) {
+      if (scoreA != scoreB)
+         return scoreA > scoreB;
+      return m.names.get(a).compareTo(m.names.get(b)) < 0;
+   }//end better
+
+   private static String key(String itemName) {
+      return itemName.trim();
+   }
+
+   /*
+    * The numbered items, how often each was ordered and its partners.
+    **/
+   private static class Model {
+      final Map<String, Integer> idOf = new HashMap<String, Integer>();
+      final List<String> names = new ArrayList<String>();
+      final List<Counter> partners = new ArrayList<Counter>();
+      final Counter ordered = new Counter(64);
+
+      int id(String itemName) {
+         String k = key(itemName);
+         Integer id = this.idOf.get(k);
+         if (id == null){
+            id = this.names.size();
+            this.idOf.put(k, id);
+            this.names.add(k);
+            this.partners.add(new Counter(8));
+         }//end if
+         return id;
+      }//end id
+
+      /*
+       * Counts every pair of distinct items of a basket, both ways.
+       **/
+      void addBasket(Collection<String> items, int weight, boolean order) {
+         int[] ids = new int[items.size()];
+         int n = 0;
+         for (String itemName : items){
+            int id = id(itemName);
+            boolean dup = false;
+            for (int i = 0; i < n && !dup; ++i)
+               dup = ids[i] == id;
+            if (!dup)
+               ids[n++] = id;
+         }//end for
+         for (int i = 0; i < n; ++i){
+            if (order)
+               this.ordered.add(ids[i], 1);
+            Counter p = this.partners.get(ids[i]);
+            for (int j = 0; j < n; ++j)
+               if (j != i)
+                  p.add(ids[j], weight);
+         }//end for
+      }//end addBasket
+
+      long pairs() {
+         long pairs = 0;
+         for (Counter p : this.partners)
+            pairs += p.size;
+         return pairs;
+      }//end pairs
+   }//end Model
+
+   /*
+    * A sparse int -> int counter: open addressing with linear probing
+    * over two int arrays, kept at most half full. Keys are item numbers,
+    * never negative.
+    **/
+   static final class Counter {
+      static final int FREE = -1;
+
+      int[] keys;
+      int[] values;
+      int size = 0;
+
+      Counter(int capacity) {
+         int cap = Integer.highestOneBit(Math.max(4, capacity) * 2 - 1);
+         this.keys = new int[cap];
+         this.values = new int[cap];
+         Arrays.fill(this.keys, FREE);
+      }
+
+      void add(int key, int delta) {
+         int mask = this.keys.length - 1;
+         int i = mix(key) & mask;
+         while (this.keys[i] != FREE){
+            if (this.keys[i] == key){
+               this.values[i] += delta;
+               return;
+            }//end if
+            i = (i + 1) & mask;
+         }//end while
+         this.keys[i] = key;
+         this.values[i] = delta;
+         if (++this.size * 2 > this.keys.length)
+            grow();
+      }//end add
+
+      int get(int key) {
+         int mask = this.keys.length - 1;
+         int i = mix(key) & mask;
+         while (this.keys[i] != FREE){
+            if (this.keys[i] == key)
+               return this.values[i];
+            i = (i + 1) & mask;
+         }//end while
+         return 0;
+      }//end get
+
+      private void grow() {
+         int[] keys = this.keys, values = this.values;
+         this.keys = new int[keys.length * 2];
+         this.values = new int[keys.length * 2];
+         Arrays.fill(this.keys, FREE);
+         this.size = 0;
+         for (int i = 0; i < keys.length; ++i)
+            if (keys[i] != FREE)
+               add(keys[i], values[i]);
+      }//end grow
+
+      private static int mix(int key) {
+         int h = key * 0x9E3779B9;
+         return h ^ (h >>> 16);
+      }
+   }//end Counter
+
+}//end ItemRecommender
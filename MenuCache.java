@@ -0,0 +1,296 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is an in-process read-through cache of the per-store menus
+ * and of the store list. Items and stores only change through updateMenu
+ * (or a bulk load), so those paths invalidate the affected entries and
+ * every other read is served from memory.
+ *
+ * Menus are kept in an LRU map bounded to maxMenus entries; every entry
+ * also expires ttlMillis after it was loaded. Each invalidation bumps a
+ * version number, and a load that raced with an invalidation is returned
+ * to its caller but not cached, so a stale menu can never be put back.
+ * With reloadOnInvalidate set, the invalidated menus are reloaded right
+ * away by the invalidating thread instead of by the next reader.
+ *
+ */
+public class MenuCache {
+
+   /**
+    * Loads a cache entry from the database on a miss.
+    */
+   public interface Loader<K> {
+      QueryResult load(K key) throws SQLException;
+   }//end Loader
+
+   private static final Object STORES_KEY = new Object();
+
+   private final int _maxMenus;
+   private final long _ttlNanos;
+   private final boolean _reloadOnInvalidate;
+   private final Loader<Integer> _menuLoader;
+   private final Loader<Object> _storeLoader;
+
+   // storeID -> menu, access-ordered for LRU eviction; guarded by this
+   private final LinkedHashMap<Integer, Entry> _menus;
+
+   // the store list; guarded by this
+   private Entry _stores = null;
+
+   // bumped by every invalidation
+   private final AtomicLong _version = new AtomicLong();
+
+   // metrics
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _misses = new AtomicLong();
+   private final AtomicLong _loads = new AtomicLong();
+   private final AtomicLong _loadNanos = new AtomicLong();
+   private final AtomicLong _maxLoadNanos = new AtomicLong();
+   private final AtomicLong _evictions = new AtomicLong();
+   private final AtomicLong _expirations = new AtomicLong();
+   private final AtomicLong _invalidations = new AtomicLong();
+
+   /**
+    * @param maxMenus the most store menus kept at once
+    * @param ttlMillis how long an entry is served before it is reloaded
+    * @param reloadOnInvalidate reload invalidated menus eagerly
+    * @param menuLoader loads the menu of one store
+    * @param storeLoader loads the store list
+    */
+   public MenuCache(int maxMenus, long ttlMillis, boolean reloadOnInvalidate,
+                    Loader<Integer> menuLoader, Loader<Object> storeLoader) {
+      this._maxMenus = maxMenus;
+      this._ttlNanos = ttlMillis * 1000000L;
+      this._reloadOnInvalidate = reloadOnInvalidate;
+      this._menuLoader = menuLoader;
+      this._storeLoader = storeLoader;
+      this._menus = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            if (size() <= MenuCache.this._maxMenus)
+               return false;
+            MenuCache.this._evictions.incrementAndGet();
+            return true;
+         }
+      };
+   }//end MenuCache
+
+   /**
+    * @param storeID the store whose menu is wanted
+    * @return the menu, from memory when a fresh copy is cached
+    * @throws java.sql.SQLException when the menu had to be loaded and that failed
+    */
+   public QueryResult getMenu(int storeID) throws SQLException {
+      Integer key = Integer.valueOf(storeID);
+      synchronized (this){
+         Entry e = this._menus.get(key);
+         if (isFresh(e)){
+            this._hits.incrementAndGet();
+            return e.value;
+         }//end if
+         if (e != null){
+            this._menus.remove(key);
+            this._expirations.incrementAndGet();
+         }//end if
+      }//end synchronized
+      this._misses.incrementAndGet();
+
+      long version = this._version.get();
+      QueryResult menu = timedLoad(this._menuLoader, key);
+      synchronized (this){
+         if (version == this._version.get())
+            this._menus.put(key, new Entry(menu, version));
+      }//end synchronized
+      return menu;
+   }//end getMenu
+
+   /**
+    * @return the store list, from memory when a fresh copy is cached
+    * @throws java.sql.SQLException when the list had to be loaded and that failed
+    */
+   public QueryResult getStores() throws SQLException {
+      synchronized (this){
+         if (isFresh(this._stores)){
+            this._hits.incrementAndGet();
+            return this._stores.value;
+         }//end if
+         if (this._stores != null){
+            this._stores = null;
+            this._expirations.incrementAndGet();
+         }//end if
+      }//end synchronized
+      this._misses.incrementAndGet();
+
+      long version = this._version.get();
+      QueryResult stores = timedLoad(this._storeLoader, STORES_KEY);
+      synchronized (this){
+         if (version == this._version.get())
+            this._stores = new Entry(stores, version);
+      }//end synchronized
+      return stores;
+   }//end getStores
+
+   /**
+    * Drops every cached menu that lists the item. Menus list every item
+    * (see PizzaStore.viewMenu), so a newly added item drops all of them.
+    *
+    * @param itemName the item that was added or changed
+    * @param added true when the item did not exist before
+    */
+   public void invalidateItem(String itemName, boolean added) {
+      String name = itemName.trim();
+      List<Integer> dropped = new ArrayList<Integer>();
+      synchronized (this){
+         this._version.incrementAndGet();
+         Iterator<Map.Entry<Integer, Entry>> it = this._menus.entrySet().iterator();
+         while (it.hasNext()){
+            Map.Entry<Integer, Entry> e = it.next();
+            if (added || lists(e.getValue().value, name)){
+               dropped.add(e.getKey());
+               it.remove();
+            }//end if
+         }//end while
+      }//end synchronized
+      this._invalidations.addAndGet(dropped.size());
+      reload(dropped);
+   }//end invalidateItem
+
+   /**
+    * Drops the cached store list.
+    */
+   public void invalidateStores() {
+      synchronized (this){
+         this._version.incrementAndGet();
+         if (this._stores != null)
+            this._invalidations.incrementAndGet();
+         this._stores = null;
+      }//end synchronized
+   }//end invalidateStores
+
+   /**
+    * Drops every cached entry.
+    */
+   public void invalidateAll() {
+      synchronized (this){
+         this._version.incrementAndGet();
+         this._invalidations.addAndGet(this._menus.size() + (this._stores == null ? 0 : 1));
+         this._menus.clear();
+         this._stores = null;
+      }//end synchronized
+   }//end invalidateAll
+
+   /**
+    * @return a point-in-time copy of the cache metrics
+    */
+   public Stats getStats() {
+      int size;
+      synchronized (this){
+         size = this._menus.size() + (this._stores == null ? 0 : 1);
+      }//end synchronized
+      return new Stats(size, this._hits.get(), this._misses.get(), this._loads.get(),
+                       this._loadNanos.get(), this._maxLoadNanos.get(), this._evictions.get(),
+                       this._expirations.get(), this._invalidations.get(), this._version.get());
+   }//end getStats
+
+   private boolean isFresh(Entry e) {
+      return e != null && System.nanoTime() - e.loadedAt < this._ttlNanos;
+   }//end isFresh
+
+   private <K> QueryResult timedLoad(Loader<K> loader, K key) throws SQLException {
+      long start = System.nanoTime();
+      try{
+         return loader.load(key);
+      }finally{
+         long nanos = System.nanoTime() - start;
+         this._loads.incrementAndGet();
+         this._loadNanos.addAndGet(nanos);
+         long max;
+         while (nanos > (max = this._maxLoadNanos.get()))
+            if (this._maxLoadNanos.compareAndSet(max, nanos))
+               break;
+      }//end try
+   }//end timedLoad
+
+   private void reload(List<Integer> storeIDs) {
+      if (!this._reloadOnInvalidate)
+         return;
+      for (Integer storeID : storeIDs){
+         try{
+            getMenu(storeID.intValue());
+         }catch (SQLException e){
+            // ignored, the next reader loads it again.
+         }//end try
+      }//end for
+   }//end reload
+
+   private static boolean lists(QueryResult menu, String itemName) {
+      for (List<String> row : menu.getRows())
+         if (row.get(0) != null && row.get(0).trim().equals(itemName))
+            return true;
+      return false;
+   }//end lists
+
+   private static class Entry {
+      final QueryResult value;
+      final long version;
+      final long loadedAt = System.nanoTime();
+
+      Entry(QueryResult value, long version) {
+         this.value = value;
+         this.version = version;
+      }
+   }//end Entry
+
+   /**
+    * Snapshot of the cache metrics.
+    */
+   public static class Stats {
+      public final int size;
+      public final long hits;
+      public final long misses;
+      public final long loads;
+      public final long totalLoadNanos;
+      public final long maxLoadNanos;
+      public final long evictions;
+      public final long expirations;
+      public final long invalidations;
+      public final long version;
+
+      Stats(int size, long hits, long misses, long loads, long totalLoadNanos, long maxLoadNanos,
+            long evictions, long expirations, long invalidations, long version) {
+         this.size = size;
+         this.hits = hits;
+         this.misses = misses;
+         this.loads = loads;
+         this.totalLoadNanos = totalLoadNanos;
+         this.maxLoadNanos = maxLoadNanos;
+         this.evictions = evictions;
+         this.expirations = expirations;
+         this.invalidations = invalidations;
+         this.version = version;
+      }
+
+      public double getHitRate() {
+         long total = hits + misses;
+         return total == 0 ? 0.0 : (double) hits / total;
+      }
+
+      public double getAverageLoadMillis() {
+         return loads == 0 ? 0.0 : totalLoadNanos / 1e6 / loads;
+      }
+
+      public String toString() {
+         return String.format("menu cache: size=%d hits=%d misses=%d hitRate=%.3f loads=%d "
+                              + "avgLoad=%.3fms maxLoad=%.3fms evictions=%d expirations=%d "
+                              + "invalidations=%d version=%d",
+                              size, hits, misses, getHitRate(), loads, getAverageLoadMillis(),
+                              maxLoadNanos / 1e6, evictions, expirations, invalidations, version);
+      }
+   }//end Stats
+
+}//end MenuCache
@@ -0,0 +1,40 @@
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One row of FoodOrder, read with typed accessors instead of as strings.
+ *
+ * @param storeID null when the order has no store
+ */
+public record Order(int orderID, String login, Integer storeID, BigDecimal totalPrice,
+                    Timestamp orderTimestamp, String orderStatus) {
+
+   // the select list MAPPER reads, by position
+   public static final String COLUMNS = "orderID, login, storeID, totalPrice, orderTimestamp, orderStatus";
+
+   public static final RowMapper<Order> MAPPER = (rs, rowNum) -> new Order(
+      rs.getInt(1), RowMapper.text(rs, 2), rs.getObject(3, Integer.class), rs.getBigDecimal(4), rs.getTimestamp(5), RowMapper.text(rs, 6));
+
+   // timestamps as PostgreSQL prints them: microseconds, trailing zeros dropped
+   static final DateTimeFormatter TIMESTAMP = new DateTimeFormatterBuilder()
+      .appendPattern("yyyy-MM-dd HH:mm:ss")
+      .appendFraction(ChronoField.NANO_OF_SECOND, 0, 6, true)
+      .toFormatter();
+
+   /**
+    * @return the columns of COLUMNS as text, for display
+    */
+   public List<String> toRow() {
+      return Arrays.asList(String.valueOf(this.orderID), this.login,
+                           this.storeID == null ? null : this.storeID.toString(),
+                           this.totalPrice == null ? null : this.totalPrice.toPlainString(),
+                           this.orderTimestamp == null ? null : TIMESTAMP.format(this.orderTimestamp.toLocalDateTime()),
+                           this.orderStatus);
+   }//end toRow
+
+}//end Order
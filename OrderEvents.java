@@ -0,0 +1,287 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class pushes order status changes to the sessions that watch them,
+ * so customers and drivers no longer poll FoodOrder. The transactions
+ * that place an order or change its status publish an event with
+ * pg_notify(); PostgreSQL only delivers it once the transaction commits,
+ * and drops it on a rollback. One dispatcher thread LISTENs on its own
+ * connection and hands every event to the subscribers of the order, of
+ * its store and of the customer who placed it.
+ *
+ * The dispatcher starts with the first subscription. When its connection
+ * breaks it reconnects; events published meanwhile are lost, so a watcher
+ * that must not miss one reads the order again. Listeners run on the
+ * dispatcher thread and must return quickly.
+ *
+ */
+public class OrderEvents {
+
+   // the NOTIFY channel, shared by every process using the database
+   static final String CHANNEL = "pizzastore_orders";
+
+   // how long the dispatcher waits for notifications before checking for close()
+   static final int POLL_MILLIS = 500;
+
+   // wait before a broken LISTEN connection is opened again
+   static final long RECONNECT_MILLIS = 2000L;
+
+   private final ConnectionPool _pool;
+
+   // "order:<id>", "store:<id>" or "login:<login>" -> subscriptions
+   private final ConcurrentHashMap<String, Set<Subscription>> _subscriptions =
+      new ConcurrentHashMap<String, Set<Subscription>>();
+
+   private Thread _dispatcher = null;
+   private volatile boolean _closed = false;
+
+   private final AtomicLong _received = new AtomicLong();
+   private final AtomicLong _delivered = new AtomicLong();
+   private final AtomicLong _reconnects = new AtomicLong();
+
+   /**
+    * @param pool the pool of the primary, whose URL and credentials the LISTEN connection uses
+    */
+   public OrderEvents(ConnectionPool pool) {
+      this._pool = pool;
+   }//end OrderEvents
+
+   /**
+    * Publishes events from inside the transaction that caused them; they
+    * reach the subscribers when it commits.
+    *
+    * @param pc the connection, inside the transaction
+    * @param events the events
+    * @throws java.sql.SQLException when the statement fails
+    */
+   public static void publish(ConnectionPool.PooledConnection pc, List<Event> events) throws SQLException {
+      if (events.isEmpty())
+         return;
+      String[] payloads = new String[events.size()];
+      for (int i = 0; i < payloads.length; ++i)
+         payloads[i] = events.get(i).toPayload();
+      StatementCache cache = pc.getStatementCache();
+      PreparedStatement stmt = cache.prepare("SELECT pg_notify(?, p) FROM unnest(?::text[]) p");
+      try{
+         stmt.setString(1, CHANNEL);
+         stmt.setArray(2, pc.getConnection().createArrayOf("text", payloads));
+         stmt.executeQuery().close();
+      }finally{
+         cache.release(stmt);
+      }//end try
+   }//end publish
+
+   /**
+    * @param orderID the order
+    * @param listener called for every status change of the order
+    * @return the subscription, closed to stop
+    */
+   public Subscription watchOrder(int orderID, Listener listener) {
+      return subscribe("order:" + orderID, listener);
+   }
+
+   /**
+    * @param storeID the store
+    * @param listener called for every order placed at the store and every status change of one
+    * @return the subscription, closed to stop
+    */
+   public Subscription watchStore(int storeID, Listener listener) {
+      return subscribe("store:" + storeID, listener);
+   }
+
+   /**
+    * @param login the customer
+    * @param listener called for every order the customer places and every status change of one
+    * @return the subscription, closed to stop
+    */
+   public Subscription watchCustomer(String login, Listener listener) {
+      return subscribe("login:" + login.trim(), listener);
+   }
+
+   /**
+    * Stops the dispatcher. Open subscriptions get no more events.
+    */
+   public void close() {
+      this._closed = true;
+      Thread t;
+      synchronized (this){
+         t = this._dispatcher;
+      }//end synchronized
+      if (t != null){
+         t.interrupt();
+         try{
+            t.join(POLL_MILLIS * 2L);
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }//end try
+      }//end if
+   }//end close
+
+   public String toString() {
+      int subscriptions = 0;
+      for (Set<Subscription> s : this._subscriptions.values())
+         subscriptions += s.size();
+      return String.format("order events: subscriptions=%d received=%d delivered=%d reconnects=%d",
+                           subscriptions, this._received.get(), this._delivered.get(), this._reconnects.get());
+   }//end toString
+
+   private Subscription subscribe(String key, Listener listener) {
+      Subscription s = new Subscription(key, listener);
+      this._subscriptions.computeIfAbsent(key, k -> new CopyOnWriteArraySet<Subscription>()).add(s);
+      start();
+      return s;
+   }//end subscribe
+
+   private synchronized void start() {
+      if (this._dispatcher != null || this._closed)
+         return;
+      this._dispatcher = new Thread(this::dispatch, "pizzastore-order-events");
+      this._dispatcher.setDaemon(true);
+      this._dispatcher.start();
+   }//end start
+
+   /*
+    * The dispatcher loop: LISTEN, then hand every notification to the
+    * subscribers until close() is called, reconnecting when the connection
+    * breaks.
+    **/
+   private void dispatch() {
+      Connection c = null;
+      while (!this._closed){
+         try{
+            if (c == null){
+               c = this._pool.openUnpooled();
+               try (Statement stmt = c.createStatement()){
+                  stmt.execute("LISTEN " + CHANNEL);
+               }//end try
+            }//end if
+            PGNotification[] notifications = c.unwrap(PGConnection.class).getNotifications(POLL_MILLIS);
+            if (notifications == null)
+               continue;
+            for (PGNotification n : notifications){
+               this._received.incrementAndGet();
+               Event e = Event.parse(n.getParameter());
+               if (e != null)
+                  deliver(e);
+            }//end for
+         }catch (SQLException e){
+            if (this._closed)
+               break;
+            System.err.println("Order events connection lost: " + e.getMessage());
+            close(c);
+            c = null;
+            this._reconnects.incrementAndGet();
+            try{
+               Thread.sleep(RECONNECT_MILLIS);
+            }catch (InterruptedException ie){
+               break;
+            }//end try
+         }//end try
+      }//end while
+      close(c);
+   }//end dispatch
+
+   private void deliver(Event e) {
+      for (String key : new String[] { "order:" + e.orderID, "store:" + e.storeID, "login:" + e.login }){
+         Set<Subscription> subscribers = this._subscriptions.get(key);
+         if (subscribers == null)
+            continue;
+         for (Subscription s : subscribers){
+            try{
+               s.listener.onEvent(e);
+               this._delivered.incrementAndGet();
+            }catch (RuntimeException ex){
+               System.err.println("Order event listener failed: " + ex.getMessage());
+            }//end try
+         }//end for
+      }//end for
+   }//end deliver
+
+   private static void close(Connection c) {
+      try{
+         if (c != null)
+            c.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end close
+
+   /**
+    * Receives the events of a subscription.
+    */
+   public interface Listener {
+      void onEvent(Event event);
+   }//end Listener
+
+   /**
+    * A subscription to the events of one order, store or customer.
+    */
+   public final class Subscription implements AutoCloseable {
+      private final String _key;
+      final Listener listener;
+
+      private Subscription(String key, Listener listener) {
+         this._key = key;
+         this.listener = listener;
+      }
+
+      public void close() {
+         OrderEvents.this._subscriptions.computeIfPresent(this._key, (k, set) -> {
+            set.remove(this);
+            return set.isEmpty() ? null : set;
+         });
+      }
+   }//end Subscription
+
+   /**
+    * An order that was placed or whose status changed.
+    */
+   public static class Event {
+      public final int orderID;
+      public final int storeID;
+      public final String status;
+      public final String login;
+
+      public Event(int orderID, int storeID, String status, String login) {
+         this.orderID = orderID;
+         this.storeID = storeID;
+         this.status = status == null ? "" : status.trim();
+         this.login = login == null ? "" : login.trim();
+      }
+
+      /*
+       * orderID, storeID, status and login, separated by TABs; the login
+       * comes last so that it may hold anything but a line break.
+       **/
+      String toPayload() {
+         return this.orderID + "\t" + this.storeID + "\t" + this.status.replace('\t', ' ') + "\t" + this.login;
+      }
+
+      static Event parse(String payload) {
+         String[] f = payload == null ? new String[0] : payload.split("\t", 4);
+         if (f.length < 4)
+            return null;
+         try{
+            return new Event(Integer.parseInt(f[0]), Integer.parseInt(f[1]), f[2], f[3]);
+         }catch (NumberFormatException e){
+            return null;
+         }//end try
+      }//end parse
+
+      public String toString() {
+         return "order " + this.orderID + " at store " + this.storeID + ": " + this.status;
+      }
+   }//end Event
+
+}//end OrderEvents
@@ -0,0 +1,91 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * This class holds one page of a user's order history, newest first,
+ * together with the cursor tokens of the pages before and after it.
+ *
+ * Pages are found by keyset (seek) pagination on (orderTimestamp,
+ * orderID): a cursor records the key of the first or last order of the
+ * page it came from, and the next page is read straight from the order
+ * history index starting at that key. Reading page 1000 therefore costs
+ * the same as reading page 1, and orders placed meanwhile do not shift
+ * the pages. Cursors are opaque to clients; they are only handed back to
+ * PizzaStore.getOrderPage.
+ *
+ */
+public class OrderPage {
+
+   private final QueryResult _orders;
+   private final String _nextCursor;
+   private final String _previousCursor;
+
+   /**
+    * @param orders the orders of the page, newest first
+    * @param nextCursor cursor of the next (older) page, null on the last page
+    * @param previousCursor cursor of the previous (newer) page, null on the first page
+    */
+   public OrderPage(QueryResult orders, String nextCursor, String previousCursor) {
+      this._orders = orders;
+      this._nextCursor = nextCursor;
+      this._previousCursor = previousCursor;
+   }//end OrderPage
+
+   public QueryResult getOrders() {
+      return this._orders;
+   }
+
+   public String getNextCursor() {
+      return this._nextCursor;
+   }
+
+   public String getPreviousCursor() {
+      return this._previousCursor;
+   }
+
+   public boolean hasNext() {
+      return this._nextCursor != null;
+   }
+
+   public boolean hasPrevious() {
+      return this._previousCursor != null;
+   }
+
+   /**
+    * The decoded form of a cursor token: the key an adjacent page starts
+    * after, and whether that page lies after (older) or before (newer)
+    * the key.
+    */
+   static class Cursor {
+      final boolean after;
+      final String orderTimestamp;
+      final int orderID;
+
+      Cursor(boolean after, String orderTimestamp, int orderID) {
+         this.after = after;
+         this.orderTimestamp = orderTimestamp;
+         this.orderID = orderID;
+      }
+
+      String encode() {
+         String key = (this.after ? "a" : "b") + "|" + this.orderID + "|" + this.orderTimestamp;
+         return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+      }
+
+      /**
+       * @throws IllegalArgumentException when the token was not made by encode()
+       */
+      static Cursor decode(String token) {
+         try{
+            String key = new String(Base64.getUrlDecoder().decode(token.trim()), StandardCharsets.UTF_8);
+            String[] parts = key.split("\\|", 3);
+            if (parts.length == 3 && (parts[0].equals("a") || parts[0].equals("b")))
+               return new Cursor(parts[0].equals("a"), parts[2], Integer.parseInt(parts[1]));
+         }catch (IllegalArgumentException e){
+            // falls through, NumberFormatException is one too.
+         }//end try
+         throw new IllegalArgumentException("Invalid page cursor: " + token);
+      }
+   }//end Cursor
+
+}//end OrderPage
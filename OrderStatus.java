@@ -0,0 +1,58 @@
+/**
+ * The statuses an order moves through, in order. An order only ever moves
+ * one step forward: Pending, Preparing, Out for delivery, Delivered.
+ *
+ */
+public enum OrderStatus {
+
+   PENDING("Pending"),
+   PREPARING("Preparing"),
+   OUT_FOR_DELIVERY("Out for delivery"),
+   DELIVERED("Delivered");
+
+   private final String _label;
+
+   OrderStatus(String label) {
+      this._label = label;
+   }
+
+   /**
+    * @return the status as stored in FoodOrder.orderStatus
+    */
+   public String getLabel() {
+      return this._label;
+   }
+
+   /**
+    * @return the status an order must have to move to this one, null for PENDING
+    */
+   public OrderStatus getPrevious() {
+      return ordinal() == 0 ? null : values()[ordinal() - 1];
+   }
+
+   /**
+    * Parses a status, ignoring case, blanks and punctuation, so that
+    * "Out for delivery", "out_for_delivery" and "OUT-FOR-DELIVERY" are the
+    * same status.
+    *
+    * @param text the status to parse
+    * @return the status
+    * @throws IllegalArgumentException when there is no such status
+    */
+   public static OrderStatus parse(String text) {
+      String key = normalize(text);
+      for (OrderStatus s : values())
+         if (normalize(s._label).equals(key))
+            return s;
+      throw new IllegalArgumentException("Unknown order status: " + text);
+   }
+
+   private static String normalize(String text) {
+      return text == null ? "" : text.replaceAll("[^A-Za-z]", "").toLowerCase();
+   }
+
+   public String toString() {
+      return this._label;
+   }
+
+}//end OrderStatus
@@ -20,13 +20,33 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.lang.Math;
 import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalTime;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -35,8 +55,136 @@ import java.util.Scanner;
  */
 public class PizzaStore {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by every session.
+   private ConnectionPool _pool = null;
+
+   // sends the reads of read-only handlers to the replicas, if any
+   private ReplicaRouter _router = null;
+
+   // ID allocators by sequence, and the one of the orders
+   private final Map<String, IdAllocator> _idAllocators = new HashMap<String, IdAllocator>();
+   private IdAllocator _orderIds = null;
+   // guards _idAllocators; a lock, as a sequence is prepared while holding it
+   private final ReentrantLock _idLock = new ReentrantLock();
+
+   // rows fetched per round trip by streaming queries
+   private volatile int _fetchSize = DEFAULT_FETCH_SIZE;
+
+   // menus and store list, invalidated by updateMenu
+   private MenuCache _menuCache = null;
+
+   // stores indexed by state, city, open status and rating
+   private StoreLocator _storeLocator = null;
+
+   // items indexed by ingredient, type and price, kept in sync by updateMenu
+   private IngredientIndex _ingredientIndex = null;
+
+   // items ordered together, updated by every order placed
+   private ItemRecommender _recommender = null;
+
+   // order status changes pushed to watching sessions
+   private OrderEvents _orderEvents = null;
+
+   // items users looked at, written to Views in the background
+   private ViewRecorder _viewRecorder = null;
+
+   // per-statement latency, row and pool wait metrics
+   private QueryMetrics _metrics = null;
+
+   // CompletableFuture variants of the data methods, created on first use
+   private AsyncPizzaStore _async = null;
+
+   // live sessions of logged in users
+   private final SessionRegistry _sessions = new SessionRegistry(SESSION_TTL_MS);
+
+   // pool sizing, overridable with -Dpizzastore.pool.<name>=<value>
+   static final int POOL_MIN_SIZE = Integer.getInteger("pizzastore.pool.min", 2);
+   static final int POOL_MAX_SIZE = Integer.getInteger("pizzastore.pool.max", 10);
+   static final long POOL_ACQUIRE_TIMEOUT_MS = Long.getLong("pizzastore.pool.acquireTimeoutMs", 5000L);
+   static final long POOL_IDLE_TIMEOUT_MS = Long.getLong("pizzastore.pool.idleTimeoutMs", 300000L);
+
+   // read/write splitting: the primary JDBC URL (default: localhost, the
+   // given port and database), comma separated replica JDBC URLs or
+   // host:port pairs, how often replicas are checked, the replay lag above
+   // which a replica is skipped (0 ignores lag) and how long a session
+   // reads from the primary after it wrote (0 never pins)
+   static final String PRIMARY_URL = System.getProperty("pizzastore.primary");
+   static final String REPLICA_URLS = System.getProperty("pizzastore.replicas", "");
+   static final long REPLICA_CHECK_MS = Long.getLong("pizzastore.replicas.checkMs", 5000L);
+   static final long REPLICA_MAX_LAG_MS = Long.getLong("pizzastore.replicas.maxLagMs", 0L);
+   static final long READ_YOUR_WRITES_MS = Long.getLong("pizzastore.replicas.readYourWritesMs", 5000L);
+
+   // menu choices that only read: view profile, menu, order history, recent orders, stores and sales
+   static final Set<Integer> READ_ONLY_CHOICES = new HashSet<Integer>(Arrays.asList(1, 3, 5, 6, 8, 13));
+
+   // sequence the order IDs are drawn from
+   static final String ORDER_ID_SEQUENCE = "FoodOrder_orderID_seq";
+
+   // IDs reserved from a sequence per round trip, used when the sequence is created
+   static final int ID_BLOCK_SIZE = Integer.getInteger("pizzastore.ids.blockSize", 50);
+
+   // columns of an order history page, read by Order.MAPPER
+   static final String ORDER_PAGE_SELECT = "SELECT " + Order.COLUMNS + " FROM FoodOrder ";
+
+   // column names of an order history page, as the database reports them
+   static final List<String> ORDER_PAGE_COLUMNS =
+      Arrays.asList("orderid", "login", "storeid", "totalprice", "ordertimestamp", "orderstatus");
+
+   // orders per page of the interactive order history, unless a display page size is set
+   static final int ORDER_PAGE_SIZE = Integer.getInteger("pizzastore.orders.pageSize", 10);
+
+   // tables bulk loaded at the same time, overridable with -Dpizzastore.load.threads
+   static final int LOAD_THREADS = Integer.getInteger("pizzastore.load.threads", 4);
+
+   // async calls running at once, and whether they run on virtual threads
+   static final int ASYNC_MAX_CONCURRENCY = Integer.getInteger("pizzastore.async.maxConcurrency", POOL_MAX_SIZE);
+   static final boolean ASYNC_VIRTUAL_THREADS = Boolean.parseBoolean(
+      System.getProperty("pizzastore.async.virtualThreads", "true"));
+
+   // rows fetched per round trip when streaming a result through a cursor
+   static final int DEFAULT_FETCH_SIZE = Integer.getInteger("pizzastore.fetchSize", 500);
+
+   // menu cache sizing, overridable with -Dpizzastore.cache.<name>=<value>
+   static final int MENU_CACHE_SIZE = Integer.getInteger("pizzastore.cache.menus", 256);
+   static final long MENU_CACHE_TTL_MS = Long.getLong("pizzastore.cache.ttlMs", 60000L);
+   static final boolean MENU_CACHE_RELOAD = Boolean.getBoolean("pizzastore.cache.reloadOnInvalidate");
+
+   // how often the store locator reads the stores that changed, 0 only on a bulk load
+   static final long STORE_REFRESH_MS = Long.getLong("pizzastore.stores.refreshMs", 5000L);
+
+   // items suggested while an order is placed, 0 turns suggestions off
+   static final int SUGGESTION_COUNT = Integer.getInteger("pizzastore.suggestions", 3);
+
+   // write-behind of the Views table: queue bound, rows per INSERT, time between writes,
+   // and how long a recorded view is not written again
+   static final int VIEW_QUEUE_SIZE = Integer.getInteger("pizzastore.views.queueSize", 10000);
+   static final int VIEW_BATCH_SIZE = Integer.getInteger("pizzastore.views.batchSize", 500);
+   static final long VIEW_FLUSH_MS = Long.getLong("pizzastore.views.flushMs", 1000L);
+   static final long VIEW_WINDOW_MS = Long.getLong("pizzastore.views.windowMs", 600000L);
+
+   // idle time after which a login session expires
+   static final long SESSION_TTL_MS = Long.getLong("pizzastore.session.ttlMs", 1800000L);
+
+   // PreparedStatements cached per pooled connection, 0 disables the cache
+   static final int STATEMENT_CACHE_SIZE = Integer.getInteger("pizzastore.statementCacheSize", 64);
+
+   // apply pending schema migrations at startup, -Dpizzastore.migrate=false skips them
+   static final boolean MIGRATE = Boolean.parseBoolean(System.getProperty("pizzastore.migrate", "true"));
+
+   // query metrics: statements slower than slowMs are logged (negative disables),
+   // dumpSeconds > 0 prints all metrics periodically; both go to standard
+   // error unless -Dpizzastore.metrics.slowLog / dumpFile name a file
+   static final long METRICS_SLOW_MS = Long.getLong("pizzastore.metrics.slowMs", 500L);
+   static final String METRICS_SLOW_LOG = System.getProperty("pizzastore.metrics.slowLog");
+   static final long METRICS_DUMP_SECONDS = Long.getLong("pizzastore.metrics.dumpSeconds", 0L);
+   static final String METRICS_DUMP_FILE = System.getProperty("pizzastore.metrics.dumpFile");
+
+   // how query results are shown on the console, overridable with
+   // -Dpizzastore.output.<name>=<value> and from the Display Settings menu
+   static volatile ResultRenderer.Format outputFormat = ResultRenderer.Format.valueOf(
+      System.getProperty("pizzastore.output.format", "TSV").toUpperCase());
+   static volatile int pageSize = Integer.getInteger("pizzastore.output.pageSize", 0);
+   static volatile int rowLimit = Integer.getInteger("pizzastore.output.rowLimit", 0);
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -57,11 +205,68 @@ public class PizzaStore {
       System.out.print("Connecting to database...");
       try{
          // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+         String url = PRIMARY_URL != null ? PRIMARY_URL : "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // statements are timed from the first one on
+         this._metrics = new QueryMetrics(METRICS_SLOW_MS, openLog(METRICS_SLOW_LOG));
+         this._metrics.register(dbname);
+         this._metrics.startDump(METRICS_DUMP_SECONDS, openLog(METRICS_DUMP_FILE));
+
+         // open the connection pool
+         this._pool = new ConnectionPool(url, user, passwd, POOL_MIN_SIZE, POOL_MAX_SIZE,
+                                         POOL_ACQUIRE_TIMEOUT_MS, POOL_IDLE_TIMEOUT_MS,
+                                         STATEMENT_CACHE_SIZE);
+
+         // replicas open their connections on demand so that one that is
+         // down does not stop the startup; the router checks them instead
+         Map<String, ConnectionPool> replicas = new LinkedHashMap<String, ConnectionPool>();
+         for (String replica : REPLICA_URLS.split(",")){
+            replica = replica.trim();
+            if (replica.isEmpty())
+               continue;
+            if (!replica.startsWith("jdbc:"))
+               replica = "jdbc:postgresql://" + replica + "/" + dbname;
+            System.out.println ("Replica URL: " + replica);
+            replicas.put(replica, new ConnectionPool(replica, user, passwd, 0, POOL_MAX_SIZE,
+                                                     POOL_ACQUIRE_TIMEOUT_MS, POOL_IDLE_TIMEOUT_MS,
+                                                     STATEMENT_CACHE_SIZE));
+         }//end for
+         this._router = new ReplicaRouter(this._pool, replicas, REPLICA_CHECK_MS,
+                                          REPLICA_MAX_LAG_MS, READ_YOUR_WRITES_MS);
+         if (MIGRATE)
+            new SchemaMigrator(this._pool, SchemaMigrator.migrations()).migrate();
+         this._orderIds = getIdAllocator(ORDER_ID_SEQUENCE, "FoodOrder", "orderID");
+
+         // menus and the store list are served from memory between updates
+         this._menuCache = new MenuCache(MENU_CACHE_SIZE, MENU_CACHE_TTL_MS, MENU_CACHE_RELOAD,
+            // loaded from the primary, a lagging replica would be cached for the whole TTL
+            storeID -> {
+               ReplicaRouter.Scope primary = this._router.open(null, false);
+               try{
+                  return fetchResult(
+                     "SELECT DISTINCT i.itemName, i.price, i.description " +
+                     "FROM Items i " +
+                     "JOIN Store s ON 1=1 " + // This join ensures all items are listed for any store
+                     "WHERE s.storeID = ?;", storeID);
+               }finally{
+                  primary.close();
+               }//end try
+            },
+            key -> {
+               ReplicaRouter.Scope primary = this._router.open(null, false);
+               try{
+                  return fetchResult("SELECT storeID, address, city, state, isOpen, reviewScore FROM store;");
+               }finally{
+                  primary.close();
+               }//end try
+            });
+         this._storeLocator = new StoreLocator(this._pool, STORE_REFRESH_MS);
+         this._ingredientIndex = new IngredientIndex(this._pool);
+         this._recommender = new ItemRecommender(this._pool);
+         this._recommender.rebuild();
+         this._orderEvents = new OrderEvents(this._pool);
+         this._viewRecorder = new ViewRecorder(this._pool, VIEW_QUEUE_SIZE, VIEW_BATCH_SIZE, VIEW_FLUSH_MS, VIEW_WINDOW_MS);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -78,14 +283,59 @@ public class PizzaStore {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+      QueryMetrics.Timer timer = this._metrics.start(sql, false);
+      ConnectionPool.PooledConnection pc = acquire(timer);
+      try{
+         // creates a statement object
+         Statement stmt = pc.getConnection().createStatement ();
+
+         // issues the update instruction
+         timer.rows(stmt.executeUpdate (sql));
+         this._router.recordWrite();
+
+         // close the instruction
+         stmt.close ();
+      }catch (SQLException | RuntimeException e){
+         timer.failed();
+         throw e;
+      }finally{
+         release(pc);
+         timer.end();
+      }//end try
+   }//end executeUpdate
 
-      // close the instruction
-      stmt.close ();
+   /**
+    * Method to execute a parameterized update SQL statement. The SQL
+    * template uses ? placeholders that are bound, in order, to params. The
+    * PreparedStatement is cached per connection and keyed by the template.
+    *
+    * @param sql the SQL template
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      QueryMetrics.Timer timer = this._metrics.start(sql, true);
+      ConnectionPool.PooledConnection pc = acquire(timer);
+      try{
+         StatementCache cache = pc.getStatementCache();
+         PreparedStatement stmt = cache.prepare(sql);
+         try{
+            bind(stmt, params);
+            int rows = stmt.executeUpdate();
+            timer.rows(rows);
+            this._router.recordWrite();
+            return rows;
+         }finally{
+            cache.release(stmt);
+         }//end try
+      }catch (SQLException | RuntimeException e){
+         timer.failed();
+         throw e;
+      }finally{
+         release(pc);
+         timer.end();
+      }//end try
    }//end executeUpdate
 
    /**
@@ -98,39 +348,22 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close();
-      return rowCount;
+      return printRows(query, null);
    }//end executeQuery
 
+   /**
+    * Parameterized variant of executeQueryAndPrintResult(String) that runs
+    * on a cached PreparedStatement.
+    *
+    * @param query the SQL template
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      return printRows(query, params);
+   }//end executeQueryAndPrintResult
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
@@ -141,33 +374,373 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+      ResultCollector collector = new ResultCollector();
+      scan(query, null, collector, false, 0);
+      return collector.result;
    }//end executeQueryAndReturnResult
 
+   /**
+    * Parameterized variant of executeQueryAndReturnResult(String) that runs
+    * on a cached PreparedStatement.
+    *
+    * @param query the SQL template
+    * @param params the values bound to the placeholders
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      ResultCollector collector = new ResultCollector();
+      scan(query, params, collector, false, 0);
+      return collector.result;
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute a query and return the column names together with
+    * the records, for results that are kept around (e.g. cached).
+    *
+    * @param query the SQL template
+    * @param params the values bound to the placeholders
+    * @return the column names and records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public QueryResult fetchResult (String query, Object... params) throws SQLException {
+      ResultCollector collector = new ResultCollector();
+      scan(query, params, collector, false, 0);
+      return new QueryResult(collector.columns, collector.result);
+   }//end fetchResult
+
+   /**
+    * @param storeID the store whose menu is wanted
+    * @return the menu of the store, served from the menu cache
+    * @throws java.sql.SQLException when the menu had to be loaded and that failed
+    */
+   public QueryResult getMenu (int storeID) throws SQLException {
+      return this._menuCache.getMenu(storeID);
+   }//end getMenu
+
+   /**
+    * @return the list of stores, served from the menu cache
+    * @throws java.sql.SQLException when the list had to be loaded and that failed
+    */
+   public QueryResult getStores () throws SQLException {
+      return this._menuCache.getStores();
+   }//end getStores
+
+   /**
+    * @param login the user login
+    * @return the profile row of the user
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public QueryResult getProfile (String login) throws SQLException {
+      return fetchResult("SELECT * FROM Users WHERE login = ?;", login);
+   }//end getProfile
+
+   /**
+    * Method to stream every order of a user to a callback, without holding
+    * the order history in memory.
+    *
+    * @param login the user login
+    * @param callback receives each order row
+    * @return the number of orders
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int forEachOrder (String login, RowCallback callback) throws SQLException {
+      return forEachRow("SELECT * FROM FoodOrder WHERE login = ?;", callback, login);
+   }//end forEachOrder
+
+   /**
+    * @param login the user login
+    * @param limit the most orders returned
+    * @return the most recent orders of the user, newest first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public QueryResult getRecentOrders (String login, int limit) throws SQLException {
+      return getOrderPage(login, null, limit).getOrders();
+   }//end getRecentOrders
+
+   /**
+    * Method to read one page of the order history of a user, newest
+    * first. The page is located by seeking to the key held in the cursor
+    * rather than by skipping rows, so every page costs the same.
+    *
+    * @param login the user login
+    * @param cursor a cursor of a previously returned page, null for the first page
+    * @param pageSize the most orders on the page
+    * @return the orders of the page and the cursors of its neighbours
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws IllegalArgumentException when the cursor is not valid
+    */
+   public OrderPage getOrderPage (String login, String cursor, int pageSize) throws SQLException {
+      OrderPage.Cursor from = cursor == null ? null : OrderPage.Cursor.decode(cursor);
+      // one row more than asked for tells whether there is a page beyond
+      List<Order> rows;
+      if (from == null)
+         rows = query(ORDER_PAGE_SELECT +
+            "WHERE login = ? ORDER BY orderTimestamp DESC, orderID DESC LIMIT ?;", Order.MAPPER,
+            login, pageSize + 1);
+      else if (from.after)
+         rows = query(ORDER_PAGE_SELECT +
+            "WHERE login = ? AND (orderTimestamp, orderID) < (?::timestamp, ?) " +
+            "ORDER BY orderTimestamp DESC, orderID DESC LIMIT ?;", Order.MAPPER,
+            login, from.orderTimestamp, from.orderID, pageSize + 1);
+      else
+         rows = query(ORDER_PAGE_SELECT +
+            "WHERE login = ? AND (orderTimestamp, orderID) > (?::timestamp, ?) " +
+            "ORDER BY orderTimestamp ASC, orderID ASC LIMIT ?;", Order.MAPPER,
+            login, from.orderTimestamp, from.orderID, pageSize + 1);
+
+      boolean more = rows.size() > pageSize;
+      if (more)
+         rows.remove(rows.size() - 1);
+      boolean backward = from != null && !from.after;
+      if (backward)
+         Collections.reverse(rows);
+
+      // a page reached from a cursor always has a neighbour on the side it was reached from
+      boolean hasNext = backward || more;
+      boolean hasPrevious = from != null && (more || !backward);
+      String next = null, previous = null;
+      if (hasNext && !rows.isEmpty())
+         next = orderKey(true, rows.get(rows.size() - 1)).encode();
+      if (hasPrevious && !rows.isEmpty())
+         previous = orderKey(false, rows.get(0)).encode();
+      List<List<String>> page = new ArrayList<List<String>>(rows.size());
+      for (Order o : rows)
+         page.add(o.toRow());
+      return new OrderPage(new QueryResult(ORDER_PAGE_COLUMNS, page), next, previous);
+   }//end getOrderPage
+
+   /*
+    * @return a cursor on the key of an order
+    **/
+   private static OrderPage.Cursor orderKey(boolean after, Order order) {
+      return new OrderPage.Cursor(after, order.orderTimestamp().toString(), order.orderID());
+   }//end orderKey
+
+   /**
+    * @param orderID the order ID
+    * @return the order row, empty when there is no such order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public QueryResult getOrder (int orderID) throws SQLException {
+      return fetchResult("SELECT * FROM FoodOrder WHERE orderID = ?;", orderID);
+   }//end getOrder
+
+   /**
+    * Method to move one order one step forward, along the same status
+    * chain as advanceOrders.
+    *
+    * @param orderID the order ID
+    * @param status the new order status
+    * @return false when there is no such order or it is not in the status right before status
+    * @throws java.sql.SQLException when failed to execute the update
+    * @throws IllegalArgumentException when status is the first status
+    */
+   public boolean setOrderStatus (int orderID, OrderStatus status) throws SQLException {
+      return !advanceOrders(Arrays.asList(orderID), status).isEmpty();
+   }//end setOrderStatus
+
+   /**
+    * Method to move many orders one step forward at once. A single UPDATE
+    * changes exactly the orders that are currently in the status right
+    * before target; orders that do not exist or are in any other status
+    * are left alone. The sales rollups are updated in the same
+    * transaction.
+    *
+    * @param orderIDs the orders to move
+    * @param target the status to move them to
+    * @return the IDs of the orders that changed
+    * @throws java.sql.SQLException when failed to execute the update
+    * @throws IllegalArgumentException when target is the first status
+    */
+   public List<Integer> advanceOrders (Collection<Integer> orderIDs, OrderStatus target) throws SQLException {
+      final OrderStatus from = target.getPrevious();
+      if (from == null)
+         throw new IllegalArgumentException("Orders cannot be moved back to " + target);
+      if (orderIDs.isEmpty())
+         return new ArrayList<Integer>();
+      return inTransaction("advanceOrders", pc -> {
+         StatementCache cache = pc.getStatementCache();
+         PreparedStatement stmt = cache.prepare(
+            "UPDATE FoodOrder SET orderStatus = ? WHERE orderID = ANY(?) AND orderStatus = ? " +
+            "RETURNING orderID, storeID, orderTimestamp::date, login");
+         try{
+            stmt.setString(1, target.getLabel());
+            stmt.setArray(2, pc.getConnection().createArrayOf("integer", orderIDs.toArray()));
+            stmt.setString(3, from.getLabel());
+            List<Integer> changed = new ArrayList<Integer>();
+            SalesAggregates.DeliveredDelta delta = new SalesAggregates.DeliveredDelta();
+            List<OrderEvents.Event> events = new ArrayList<OrderEvents.Event>();
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()){
+               changed.add(rs.getInt(1));
+               delta.add(rs.getInt(2), rs.getObject(3, LocalDate.class), from.getLabel(), target.getLabel());
+               events.add(new OrderEvents.Event(rs.getInt(1), rs.getInt(2), target.getLabel(), rs.getString(4)));
+            }//end while
+            rs.close();
+            delta.record(pc);
+            OrderEvents.publish(pc, events);
+            return changed;
+         }finally{
+            cache.release(stmt);
+         }//end try
+      });
+   }//end advanceOrders
+
+   /**
+    * Method to check a login and password and open a session for the user.
+    * The role and phone number are read together with the credential check,
+    * so handlers never have to look them up again.
+    *
+    * @param login the user login
+    * @param password the user password
+    * @return the new session, or null when the credentials do not match
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Session authenticate (String login, String password) throws SQLException {
+      User user = queryOne("SELECT " + User.COLUMNS + " FROM Users WHERE login = ? AND password = ?",
+                           User.MAPPER, login, password);
+      if (user == null)
+         return null;
+      return this._sessions.open(login, user.phoneNum(), user.role());
+   }//end authenticate
+
+   /**
+    * @return the registry of live sessions
+    */
+   public SessionRegistry getSessions() {
+      return this._sessions;
+   }//end getSessions
+
+   /**
+    * Method to look up stores in memory, best rated first. See StoreLocator.
+    *
+    * @param state the state, null for every state
+    * @param city the city, null for every city of the state
+    * @param openOnly only return open stores
+    * @param limit the most stores returned, 0 or less for all
+    * @return the matching stores
+    */
+   public List<Store> findStores (String state, String city, boolean openOnly, int limit) {
+      return this._storeLocator.find(state, city, openOnly, limit);
+   }//end findStores
+
+   /**
+    * @return the store locator, for refreshes and metrics
+    */
+   public StoreLocator getStoreLocator() {
+      return this._storeLocator;
+   }//end getStoreLocator
+
+   /**
+    * Method to search the menu in memory by ingredient, type and price.
+    * See IngredientIndex.
+    *
+    * @param filter what to look for
+    * @return the matching items, with the columns of a search result
+    */
+   public QueryResult searchMenu (IngredientIndex.Filter filter) {
+      return IngredientIndex.toResult(this._ingredientIndex.search(filter));
+   }//end searchMenu
+
+   /**
+    * Method to suggest items while an order is placed, from memory. See
+    * ItemRecommender.
+    *
+    * @param cart item names already chosen
+    * @param limit the most items suggested
+    * @return the suggested item names, best first
+    */
+   public List<String> suggestItems (Collection<String> cart, int limit) {
+      return this._recommender.suggest(cart, limit);
+   }//end suggestItems
+
+   /**
+    * @return the recorder of the items users look at
+    */
+   public ViewRecorder getViewRecorder() {
+      return this._viewRecorder;
+   }//end getViewRecorder
+
+   /**
+    * @return the order events, to watch orders, stores and customers
+    */
+   public OrderEvents getOrderEvents() {
+      return this._orderEvents;
+   }//end getOrderEvents
+
+   /**
+    * @return the recommender, for rebuilds and metrics
+    */
+   public ItemRecommender getRecommender() {
+      return this._recommender;
+   }//end getRecommender
+
+   /**
+    * @return the ingredient index, for reloading changed items
+    */
+   public IngredientIndex getIngredientIndex() {
+      return this._ingredientIndex;
+   }//end getIngredientIndex
+
+   /**
+    * @return the menu and store cache, for invalidation and metrics
+    */
+   public MenuCache getMenuCache() {
+      return this._menuCache;
+   }//end getMenuCache
+
+   /**
+    * Method to output an already fetched result to standard out in the same
+    * layout as executeQueryAndPrintResult.
+    *
+    * @param result the result to print
+    * @return the number of rows printed
+    */
+   public static int printResult (QueryResult result) {
+      return newRenderer().render(result);
+   }//end printResult
+
+   /**
+    * @return a renderer for standard out using the current display settings
+    */
+   public static ResultRenderer newRenderer () {
+      return new ResultRenderer(System.out, outputFormat, pageSize, rowLimit, PizzaStore::askForNextPage);
+   }//end newRenderer
+
+   /*
+    * Prints rows through a fresh renderer and returns the rows shown. Paged
+    * output is read whole first, so the connection is back in the pool, and
+    * no transaction is open, while the pager waits for Enter.
+    **/
+   private int printRows (String query, Object[] params) throws SQLException {
+      ResultRenderer renderer = newRenderer();
+      if (pageSize > 0){
+         ResultCollector collector = new ResultCollector();
+         scan(query, params, collector, false, rowLimit);
+         return renderer.render(new QueryResult(collector.columns, collector.result));
+      }//end if
+      try{
+         scan(query, params, renderer, true, 0);
+      }finally{
+         renderer.finish();
+      }//end try
+      return renderer.getRowCount();
+   }//end printRows
+
+   /*
+    * Pager of the console: waits for Enter before showing the next page.
+    **/
+   private static boolean askForNextPage (int rowsShown) {
+      System.out.print("-- " + rowsShown + " rows shown, press Enter for more or q to stop -- ");
+      try{
+         String answer = in.readLine();
+         return answer != null && !answer.trim().equalsIgnoreCase("q");
+      }catch (IOException e){
+         return false;
+      }//end try
+   }//end askForNextPage
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -177,51 +750,791 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+      return scan(query, null, rs -> { }, true, 0);
+   }
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Parameterized variant of executeQuery(String) that runs on a cached
+    * PreparedStatement.
+    *
+    * @param query the SQL template
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+      return scan(query, params, rs -> { }, true, 0);
+   }//end executeQuery
 
-       int rowCount = 0;
+   /**
+    * Method to check whether any row of a table matches a condition. Only
+    * SELECT 1 ... LIMIT 1 is sent, so no row data is transferred.
+    *
+    * @param table the table (or join) to look in
+    * @param where the condition, with ? placeholders
+    * @param params the values bound to the placeholders
+    * @return true when at least one row matches
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists (String table, String where, Object... params) throws SQLException {
+      String query = "SELECT 1 FROM " + table + " WHERE " + where + " LIMIT 1";
+      QueryMetrics.Timer timer = this._metrics.start(query, true);
+      ConnectionPool.PooledConnection pc = acquireRead(timer);
+      try{
+         StatementCache cache = pc.getStatementCache();
+         PreparedStatement stmt = cache.prepare(query);
+         try{
+            bind(stmt, params);
+            ResultSet rs = stmt.executeQuery();
+            boolean found = rs.next();
+            rs.close();
+            timer.rows(found ? 1 : 0);
+            return found;
+         }finally{
+            cache.release(stmt);
+         }//end try
+      }catch (SQLException | RuntimeException e){
+         timer.failed();
+         throw e;
+      }finally{
+         release(pc);
+         timer.end();
+      }//end try
+   }//end exists
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
-   }
+   /**
+    * Method to count the rows of a table that match a condition. The
+    * counting is done by the server with COUNT(*).
+    *
+    * @param table the table (or join) to count in
+    * @param where the condition, with ? placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of matching rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long count (String table, String where, Object... params) throws SQLException {
+      String query = "SELECT COUNT(*) FROM " + table + " WHERE " + where;
+      QueryMetrics.Timer timer = this._metrics.start(query, true);
+      ConnectionPool.PooledConnection pc = acquireRead(timer);
+      try{
+         StatementCache cache = pc.getStatementCache();
+         PreparedStatement stmt = cache.prepare(query);
+         try{
+            bind(stmt, params);
+            ResultSet rs = stmt.executeQuery();
+            long count = rs.next() ? rs.getLong(1) : 0L;
+            rs.close();
+            timer.rows(1);
+            return count;
+         }finally{
+            cache.release(stmt);
+         }//end try
+      }catch (SQLException | RuntimeException e){
+         timer.failed();
+         throw e;
+      }finally{
+         release(pc);
+         timer.end();
+      }//end try
+   }//end count
+
+   /**
+    * Method to stream the rows of a query to a callback. Rows are fetched
+    * from a server-side cursor fetchSize rows at a time, so memory use does
+    * not grow with the size of the result.
+    *
+    * @param query the SQL template
+    * @param callback receives each row in turn
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int forEachRow (String query, RowCallback callback, Object... params) throws SQLException {
+      return scan(query, params, callback, true, 0);
+   }//end forEachRow
+
+   /**
+    * Method to read the rows of a query as typed objects. Columns are
+    * decoded by the mapper with the typed ResultSet accessors, so no
+    * intermediate strings are made. See Item, Order, Store and User for
+    * mappers of whole rows.
+    *
+    * @param query the SQL template
+    * @param mapper maps each row to an object
+    * @param params the values bound to the placeholders
+    * @return the mapped rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> query (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      MappingCollector<T> collector = new MappingCollector<T>(mapper, Integer.MAX_VALUE);
+      scan(query, params, collector, false, 0);
+      return collector.result;
+   }//end query
+
+   /**
+    * Method to read the first row of a query as a typed object; the server
+    * is asked for one row only.
+    *
+    * @param query the SQL template
+    * @param mapper maps the row to an object
+    * @param params the values bound to the placeholders
+    * @return the mapped row, null when the query returned no rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T queryOne (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      MappingCollector<T> collector = new MappingCollector<T>(mapper, 1);
+      scan(query, params, collector, false, 1);
+      return collector.result.isEmpty() ? null : collector.result.get(0);
+   }//end queryOne
+
+   /**
+    * Method to stream the rows of a query through a RowMapper into a
+    * Stream. The stream holds a pooled connection and an open cursor until
+    * it is closed, so it must be used in a try-with-resources block.
+    * SQLExceptions raised while advancing are rethrown as
+    * UncheckedSQLException.
+    *
+    * @param query the SQL template
+    * @param mapper maps each row to an object
+    * @param params the values bound to the placeholders
+    * @return a lazily populated stream of mapped rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> Stream<T> stream (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      // the timer runs until the stream is closed
+      final QueryMetrics.Timer timer = this._metrics.start(query, true);
+      final ConnectionPool.PooledConnection pc;
+      final StatementCache cache;
+      final PreparedStatement stmt;
+      final ResultSet rs;
+      try{
+         pc = acquireRead(timer);
+      }catch (SQLException | RuntimeException e){
+         timer.failed();
+         timer.end();
+         throw e;
+      }//end try
+      cache = pc.getStatementCache();
+      try{
+         pc.getConnection().setAutoCommit(false);
+         stmt = cache.prepare(query);
+         bind(stmt, params);
+         stmt.setFetchSize(this._fetchSize);
+         rs = stmt.executeQuery();
+      }catch (SQLException | RuntimeException e){
+         release(pc);
+         timer.failed();
+         timer.end();
+         throw e;
+      }//end try
+
+      // rows handed out so far
+      final int[] rowNum = new int[1];
+      Spliterator<T> rows = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+
+         public boolean tryAdvance(Consumer<? super T> action) {
+            try{
+               if (!rs.next())
+                  return false;
+               action.accept(mapper.mapRow(rs, rowNum[0]++));
+               return true;
+            }catch (SQLException e){
+               timer.failed();
+               throw new UncheckedSQLException(e);
+            }//end try
+         }
+      };
+      return StreamSupport.stream(rows, false).onClose(() -> {
+         try{
+            rs.close();
+            pc.getConnection().commit();
+         }catch (SQLException e){
+            // ignored, release() rolls back.
+         }finally{
+            cache.release(stmt);
+            release(pc);
+            timer.rows(rowNum[0]);
+            timer.end();
+         }//end try
+      });
+   }//end stream
+
+   /**
+    * @param fetchSize rows fetched per round trip by the streaming cursor
+    */
+   public void setFetchSize(int fetchSize) {
+      this._fetchSize = fetchSize;
+   }//end setFetchSize
+
+   /**
+    * @return rows fetched per round trip by the streaming cursor
+    */
+   public int getFetchSize() {
+      return this._fetchSize;
+   }//end getFetchSize
+
+   /*
+    * Runs query and hands every row to callback. A null params array runs
+    * the query as a plain Statement, otherwise a cached PreparedStatement is
+    * bound to params. With cursor set, the connection is switched out of
+    * autocommit so that the driver reads the result through a cursor,
+    * fetchSize rows at a time; results read whole stay in autocommit and
+    * cost no extra round trips. maxRows caps the rows the server returns,
+    * 0 for all.
+    **/
+   private int scan(String query, Object[] params, RowCallback callback, boolean cursor, int maxRows) throws SQLException {
+      QueryMetrics.Timer timer = this._metrics.start(query, params != null);
+      ConnectionPool.PooledConnection pc = acquireRead(timer);
+      try{
+         Connection conn = pc.getConnection();
+         if (cursor)
+            conn.setAutoCommit(false);
+         StatementCache cache = pc.getStatementCache();
+
+         Statement stmt;
+         ResultSet rs;
+         if (params == null){
+            // creates a statement object
+            stmt = conn.createStatement ();
+         }else{
+            PreparedStatement ps = cache.prepare(query);
+            bind(ps, params);
+            stmt = ps;
+         }//end if
+
+         try{
+            if (cursor)
+               stmt.setFetchSize(this._fetchSize);
+            if (maxRows > 0)
+               stmt.setMaxRows(maxRows);
+
+            // issues the query instruction
+            rs = params == null ? stmt.executeQuery (query) : ((PreparedStatement) stmt).executeQuery();
+            int rowCount = 0;
+            while (!callback.isDone() && rs.next()){
+               callback.processRow(rs);
+               ++rowCount;
+            }//end while
+            rs.close();
+            if (cursor)
+               conn.commit();
+            timer.rows(rowCount);
+            return rowCount;
+         }finally{
+            if (params == null){
+               stmt.close();
+            }else{
+               try{
+                  // the statement is cached, its next user expects no limit
+                  if (maxRows > 0)
+                     stmt.setMaxRows(0);
+               }finally{
+                  cache.release((PreparedStatement) stmt);
+               }//end try
+            }//end if
+         }//end try
+      }catch (SQLException | RuntimeException e){
+         timer.failed();
+         throw e;
+      }finally{
+         // rolls back and restores autocommit if the scan failed midway
+         release(pc);
+         timer.bytes(callback.getBytesDecoded());
+         timer.end();
+      }//end try
+   }//end scan
+
+   /*
+    * Borrows a connection of the primary, adding the time spent waiting
+    * for it to timer.
+    **/
+   private ConnectionPool.PooledConnection acquire(QueryMetrics.Timer timer) throws SQLException {
+      long start = System.nanoTime();
+      try{
+         return this._pool.acquire();
+      }finally{
+         timer.poolWait(System.nanoTime() - start);
+      }//end try
+   }//end acquire
+
+   /*
+    * Borrows a connection for a read from wherever the current route sends
+    * reads, adding the time spent waiting for it to timer.
+    **/
+   private ConnectionPool.PooledConnection acquireRead(QueryMetrics.Timer timer) throws SQLException {
+      long start = System.nanoTime();
+      try{
+         return this._router.acquireRead();
+      }finally{
+         timer.poolWait(System.nanoTime() - start);
+      }//end try
+   }//end acquireRead
+
+   /*
+    * Gives a connection back to the pool it was borrowed from.
+    **/
+   private static void release(ConnectionPool.PooledConnection pc) {
+      if (pc != null)
+         pc.getPool().release(pc);
+   }//end release
+
+   /*
+    * @return a stream appending to the file, or standard error when path is null
+    **/
+   private static PrintStream openLog(String path) throws IOException {
+      return path == null ? System.err : new PrintStream(new FileOutputStream(path, true), true);
+   }//end openLog
+
+   /*
+    * Binds params to the ? placeholders of stmt, in order.
+    **/
+   private static void bind(PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject(i + 1, params[i]);
+   }//end bind
+
+   /*
+    * Copies every row into a list of records.
+    **/
+   private static class ResultCollector implements RowCallback {
+      final List<List<String>> result = new ArrayList<List<String>>();
+      final List<String> columns = new ArrayList<String>();
+      private int numCol = -1;
+      private long bytes = 0;
+
+      public long getBytesDecoded() {
+         return bytes;
+      }
+
+      public void processRow(ResultSet rs) throws SQLException {
+         if (numCol < 0){
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            numCol = rsmd.getColumnCount();
+            for (int i=1; i<=numCol; ++i)
+               columns.add(rsmd.getColumnName(i));
+         }//end if
+         List<String> record = new ArrayList<String>(numCol);
+         for (int i=1; i<=numCol; ++i){
+            String value = rs.getString (i);
+            if (value != null)
+               bytes += value.length();
+            record.add(value);
+         }//end for
+         result.add(record);
+      }
+   }//end ResultCollector
+
+   /*
+    * Maps up to limit rows with a RowMapper.
+    **/
+   private static class MappingCollector<T> implements RowCallback {
+      final List<T> result = new ArrayList<T>();
+      private final RowMapper<T> _mapper;
+      private final int _limit;
+
+      MappingCollector(RowMapper<T> mapper, int limit) {
+         this._mapper = mapper;
+         this._limit = limit;
+      }
+
+      public boolean isDone() {
+         return result.size() >= _limit;
+      }
+
+      public void processRow(ResultSet rs) throws SQLException {
+         result.add(_mapper.mapRow(rs, result.size()));
+      }
+   }//end MappingCollector
+
+   /**
+    * Unchecked wrapper for SQLExceptions raised while a Stream returned by
+    * stream() is being consumed.
+    */
+   public static class UncheckedSQLException extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      public UncheckedSQLException(SQLException cause) {
+         super(cause.getMessage(), cause);
+      }
+
+      public SQLException getCause() {
+         return (SQLException) super.getCause();
+      }
+   }//end UncheckedSQLException
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys.
+    *
+    * currval() is per database session, so with pooled connections it only
+    * sees nextval() calls that ran on the same borrowed connection.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+      String query = String.format("Select currval('%s')", sequence);
+      QueryMetrics.Timer timer = this._metrics.start(query, false);
+      ConnectionPool.PooledConnection pc = acquire(timer);
+      try{
+         Statement stmt = pc.getConnection().createStatement ();
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+         ResultSet rs = stmt.executeQuery (query);
+         int value = -1;
+         if (rs.next()){
+            value = rs.getInt(1);
+            timer.rows(1);
+         }//end if
+         stmt.close ();
+         return value;
+      }catch (SQLException | RuntimeException e){
+         timer.failed();
+         throw e;
+      }finally{
+         release(pc);
+         timer.end();
+      }//end try
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to run several statements as one transaction on a single
+    * borrowed connection. The transaction is committed when work returns
+    * normally and rolled back when it throws.
+    *
+    * @param work the statements to run
+    * @return whatever work returns
+    * @throws java.sql.SQLException when a statement or the commit failed
     */
-   public void cleanup(){
+   public <T> T inTransaction (ConnectionCallback<T> work) throws SQLException {
+      return inTransaction("transaction", work);
+   }//end inTransaction
+
+   /**
+    * Variant of inTransaction(ConnectionCallback) whose time is recorded
+    * in the query metrics under the given name.
+    *
+    * @param name the name of the unit of work in the metrics
+    * @param work the statements to run
+    * @return whatever work returns
+    * @throws java.sql.SQLException when a statement or the commit failed
+    */
+   public <T> T inTransaction (String name, ConnectionCallback<T> work) throws SQLException {
+      QueryMetrics.Timer timer = this._metrics.start(name, true);
+      ConnectionPool.PooledConnection pc = acquire(timer);
       try{
-         if (this._connection != null){
-            this._connection.close ();
+         Connection conn = pc.getConnection();
+         conn.setAutoCommit(false);
+         T result = work.doInConnection(pc);
+         conn.commit();
+         this._router.recordWrite();
+         return result;
+      }catch (SQLException | RuntimeException e){
+         timer.failed();
+         throw e;
+      }finally{
+         // rolls back and restores autocommit if work failed
+         release(pc);
+         timer.end();
+      }//end try
+   }//end inTransaction
+
+   /**
+    * Method to place an order for several items at once. All items are
+    * priced with one query, then the order row and all of its lines are
+    * inserted in a single transaction, the lines as one JDBC batch, and
+    * added to the sales rollups. The order ID is taken from the order ID
+    * allocator, usually without a round trip.
+    *
+    * @param login the customer placing the order
+    * @param storeID the store the order is placed at
+    * @param items item name to quantity, in the order the lines are stored
+    * @return the ID of the new order
+    * @throws java.sql.SQLException when an item is unknown, a quantity is below 1 or the insert failed
+    */
+   public int submitOrder (String login, int storeID, Map<String, Integer> items) throws SQLException {
+      if (items.isEmpty())
+         throw new SQLException("An order needs at least one item");
+      for (Map.Entry<String, Integer> line : items.entrySet())
+         if (line.getValue() == null || line.getValue() < 1)
+            throw new SQLException("Invalid quantity " + line.getValue() + " of " + line.getKey());
+
+      final int orderID = this._orderIds.nextInt();
+      inTransaction("submitOrder", pc -> {
+         Connection conn = pc.getConnection();
+         StatementCache cache = pc.getStatementCache();
+
+         // price every item in one round trip
+         Map<String, BigDecimal> prices = new HashMap<String, BigDecimal>();
+         PreparedStatement priceStmt = cache.prepare("SELECT itemName, price FROM Items WHERE itemName = ANY(?)");
+         try{
+            priceStmt.setArray(1, conn.createArrayOf("text", items.keySet().toArray()));
+            ResultSet rs = priceStmt.executeQuery();
+            while (rs.next())
+               prices.put(rs.getString(1).trim(), rs.getBigDecimal(2));
+            rs.close();
+         }finally{
+            cache.release(priceStmt);
+         }//end try
+
+         BigDecimal total = BigDecimal.ZERO;
+         for (Map.Entry<String, Integer> line : items.entrySet()){
+            BigDecimal price = prices.get(line.getKey().trim());
+            if (price == null)
+               throw new SQLException("Unknown item: " + line.getKey());
+            total = total.add(price.multiply(BigDecimal.valueOf(line.getValue())));
+         }//end for
+
+         // insert the order
+         PreparedStatement orderStmt = cache.prepare(
+            "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) " +
+            "VALUES (?, ?, ?, ?, NOW(), ?)");
+         try{
+            bind(orderStmt, new Object[] { orderID, login, storeID, total, OrderStatus.PENDING.getLabel() });
+            orderStmt.executeUpdate();
+         }finally{
+            cache.release(orderStmt);
+         }//end try
+
+         // insert all lines as one batch
+         PreparedStatement lineStmt = cache.prepare(
+            "INSERT INTO ItemsInOrder (orderID, itemName, quantity) VALUES (?, ?, ?)");
+         try{
+            for (Map.Entry<String, Integer> line : items.entrySet()){
+               lineStmt.setInt(1, orderID);
+               lineStmt.setString(2, line.getKey());
+               lineStmt.setInt(3, line.getValue());
+               lineStmt.addBatch();
+            }//end for
+            lineStmt.executeBatch();
+         }finally{
+            lineStmt.clearBatch();
+            cache.release(lineStmt);
+         }//end try
+
+         SalesAggregates.recordOrder(pc, storeID, total, items);
+         OrderEvents.publish(pc, Arrays.asList(
+            new OrderEvents.Event(orderID, storeID, OrderStatus.PENDING.getLabel(), login)));
+         return orderID;
+      });
+      this._recommender.recordOrder(orderID, items.keySet());
+      return orderID;
+   }//end submitOrder
+
+   /**
+    * Method to read the daily sales of one store from the rollups.
+    *
+    * @param storeID the store
+    * @param from the first day, inclusive
+    * @param to the last day, inclusive
+    * @return day, orders, revenue and delivered orders, one row per day with orders
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public QueryResult getDailySales (int storeID, LocalDate from, LocalDate to) throws SQLException {
+      return fetchResult(
+         "SELECT day, orders, revenue, delivered FROM store_daily_sales " +
+         "WHERE storeID = ? AND day BETWEEN ? AND ? ORDER BY day", storeID, from, to);
+   }//end getDailySales
+
+   /**
+    * Method to read the sales of every store over a range of days from
+    * the rollups.
+    *
+    * @param from the first day, inclusive
+    * @param to the last day, inclusive
+    * @return storeID, orders, revenue and delivered orders, highest revenue first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public QueryResult getSalesByStore (LocalDate from, LocalDate to) throws SQLException {
+      return fetchResult(
+         "SELECT storeID, SUM(orders) AS orders, SUM(revenue) AS revenue, SUM(delivered) AS delivered " +
+         "FROM store_daily_sales WHERE day BETWEEN ? AND ? " +
+         "GROUP BY storeID ORDER BY revenue DESC, storeID", from, to);
+   }//end getSalesByStore
+
+   /**
+    * Method to read the best selling items of a store over a range of days
+    * from the rollups.
+    *
+    * @param storeID the store
+    * @param from the first day, inclusive
+    * @param to the last day, inclusive
+    * @param limit the most items returned
+    * @return itemName and quantity sold, most sold first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public QueryResult getTopItems (int storeID, LocalDate from, LocalDate to, int limit) throws SQLException {
+      return fetchResult(
+         "SELECT itemName, SUM(quantity) AS quantity FROM store_daily_items " +
+         "WHERE storeID = ? AND day BETWEEN ? AND ? " +
+         "GROUP BY itemName ORDER BY quantity DESC, itemName LIMIT ?", storeID, from, to, limit);
+   }//end getTopItems
+
+   /**
+    * Method to recompute the sales rollups of a range of days from the
+    * orders. See SalesAggregates.rebuild.
+    *
+    * @param from the first day, null for the first order
+    * @param to the last day, null for the last order
+    * @return the store and day rows written
+    * @throws java.sql.SQLException when the rebuild failed
+    */
+   public int rebuildSalesAggregates (LocalDate from, LocalDate to) throws SQLException {
+      return inTransaction("rebuildSalesAggregates", pc -> SalesAggregates.rebuild(pc.getConnection(), from, to));
+   }//end rebuildSalesAggregates
+
+   /**
+    * Method to get the ID allocator of an entity, preparing its sequence
+    * on first use. See IdAllocator.
+    *
+    * @param sequence the sequence the IDs are reserved from
+    * @param table the table whose key the IDs are
+    * @param column the key column
+    * @return the allocator, the same one for every call with sequence
+    * @throws java.sql.SQLException when the sequence cannot be prepared
+    */
+   public IdAllocator getIdAllocator (String sequence, String table, String column) throws SQLException {
+      this._idLock.lock();
+      try{
+         IdAllocator ids = this._idAllocators.get(sequence);
+         if (ids == null){
+            ids = new IdAllocator(this._pool, sequence, table, column, ID_BLOCK_SIZE);
+            ids.prepare();
+            this._idAllocators.put(sequence, ids);
          }//end if
-      }catch (SQLException e){
-         // ignored.
+         return ids;
+      }finally{
+         this._idLock.unlock();
       }//end try
+   }//end getIdAllocator
+
+   /*
+    * Moves every ID sequence past the IDs now in its table and drops the
+    * blocks held in memory.
+    **/
+   private void prepareIdAllocators() throws SQLException {
+      this._idLock.lock();
+      try{
+         for (IdAllocator ids : this._idAllocators.values())
+            ids.prepare();
+      }finally{
+         this._idLock.unlock();
+      }//end try
+   }//end prepareIdAllocators
+
+   /**
+    * Method to bulk load a directory of CSV files, one per table, through
+    * COPY. See BulkLoader. Afterwards the sales rollups are rebuilt, the
+    * ID sequences are moved past the loaded rows, the menu cache is
+    * dropped and the store locator is reloaded.
+    *
+    * @param dir the directory holding <table>.csv files
+    * @return table -> rows loaded
+    * @throws java.sql.SQLException when a load failed
+    * @throws java.io.IOException when a file cannot be read
+    */
+   public Map<String, Long> bulkLoad (File dir) throws SQLException, IOException {
+      // one connection stays free for the bookkeeping of the loader
+      int threads = Math.min(LOAD_THREADS, POOL_MAX_SIZE - 1);
+      try{
+         Map<String, Long> loaded = new BulkLoader(this._pool, threads, System.out).load(dir);
+         System.out.println("Rebuilt sales rollups: " + rebuildSalesAggregates(null, null) + " store days");
+         return loaded;
+      }finally{
+         prepareIdAllocators();
+         this._menuCache.invalidateAll();
+         this._storeLocator.reload();
+         this._ingredientIndex.reload();
+         this._recommender.rebuild();
+      }//end try
+   }//end bulkLoad
+
+   /**
+    * @return a snapshot of the connection pool metrics
+    */
+   public ConnectionPool.Stats getPoolStats() {
+      return this._pool.getStats();
+   }//end getPoolStats
+
+   /**
+    * Opens the route of one handler on the current thread: the reads of a
+    * read-only handler may be served by a replica, unless its session
+    * wrote shortly before. Close it when the handler returns.
+    *
+    * @param session the session the handler runs for, null for none
+    * @param readOnly whether the handler only reads
+    * @return the route, to be closed by the same thread
+    */
+   public ReplicaRouter.Scope route(Session session, boolean readOnly) {
+      return this._router.open(session, readOnly);
+   }//end route
+
+   /**
+    * @return the route open on the current thread, null when there is none
+    */
+   public ReplicaRouter.Scope currentRoute() {
+      return this._router.current();
+   }//end currentRoute
+
+   /**
+    * @return a snapshot of the read routing counters and replica states
+    */
+   public ReplicaRouter.Stats getRoutingStats() {
+      return this._router.getStats();
+   }//end getRoutingStats
+
+   /**
+    * @return the asynchronous variants of the data-access methods
+    */
+   public synchronized AsyncPizzaStore async() {
+      if (this._async == null)
+         this._async = new AsyncPizzaStore(this, ASYNC_MAX_CONCURRENCY, ASYNC_VIRTUAL_THREADS);
+      return this._async;
+   }//end async
+
+   /**
+    * @return the per-statement query metrics
+    */
+   public QueryMetrics getMetrics() {
+      return this._metrics;
+   }//end getMetrics
+
+   /**
+    * @return hit/miss counters of the PreparedStatement caches
+    */
+   public StatementCache.Counters getStatementCacheStats() {
+      return this._pool.getStatementCacheCounters();
+   }//end getStatementCacheStats
+
+   /**
+    * Method to close the connection pool and its physical connections.
+    */
+   public void cleanup(){
+      synchronized (this){
+         if (this._async != null){
+            this._async.close();
+         }//end if
+      }//end synchronized
+      if (this._viewRecorder != null){
+         // writes the views still queued while the pool is open
+         this._viewRecorder.close();
+      }//end if
+      if (this._metrics != null){
+         this._metrics.stop();
+      }//end if
+      if (this._storeLocator != null){
+         this._storeLocator.close();
+      }//end if
+      if (this._orderEvents != null){
+         this._orderEvents.close();
+      }//end if
+      if (this._router != null){
+         this._router.close();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -230,12 +1543,16 @@ public class PizzaStore {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      boolean serverMode = args.length == 5 && args[3].equals("--server");
+      boolean loadMode = args.length == 5 && args[3].equals("--load");
+      boolean rebuildMode = (args.length == 4 || args.length == 6) && args[3].equals("--rebuild-sales");
+      if (args.length != 3 && !serverMode && !loadMode && !rebuildMode) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             PizzaStore.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--server <listen port> | --load <csv directory>" +
+            " | --rebuild-sales [<from day> <to day>]]");
          return;
       }//end if
 
@@ -251,6 +1568,28 @@ public class PizzaStore {
          String user = args[2];
          esql = new PizzaStore (dbname, dbport, user, "");
 
+         if (loadMode) {
+            // import <table>.csv files and exit
+            esql.bulkLoad(new File(args[4]));
+            return;
+         }//end if
+
+         if (rebuildMode) {
+            // recompute the sales rollups of all days, or of the given ones, and exit
+            LocalDate from = args.length == 6 ? LocalDate.parse(args[4]) : null;
+            LocalDate to = args.length == 6 ? LocalDate.parse(args[5]) : null;
+            System.out.println("Rebuilt sales rollups: " + esql.rebuildSalesAggregates(from, to) + " store days");
+            return;
+         }//end if
+
+         if (serverMode) {
+            // serve many terminals over a local socket instead of this console
+            final PizzaStoreServer server = new PizzaStoreServer(esql, Integer.parseInt(args[4]));
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+            server.run();
+            return;
+         }//end if
+
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -259,7 +1598,7 @@ public class PizzaStore {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("9. < EXIT\n");
-            String authorisedUser = null;
+            Session authorisedUser = null;
             switch (readChoice()){
                case 1: CreateUser(esql); break;
                case 2: authorisedUser = LogIn(esql); break;
@@ -269,6 +1608,10 @@ public class PizzaStore {
             if (authorisedUser != null) {
               boolean usermenu = true;
               while(usermenu) {
+                if (!esql.getSessions().touch(authorisedUser)) {
+                   System.out.println("Your session has expired, please log in again.\n");
+                   break;
+                }
                 System.out.println("MAIN MENU");
                 System.out.println("---------");
                 System.out.println("1. View Profile");
@@ -287,25 +1630,39 @@ public class PizzaStore {
                 System.out.println("10. Update Menu");
                 System.out.println("11. Update User");
 
+                System.out.println("12. Display Settings");
+                System.out.println("13. Sales Dashboard");
+                System.out.println("14. Watch Orders");
+
                 System.out.println(".........................");
                 System.out.println("20. Log out\n");
-                switch (readChoice()){
-                   case 1: viewProfile(esql); break;
-                   case 2: updateProfile(esql); break;
-                   case 3: viewMenu(esql); break;
-                   case 4: placeOrder(esql); break;
-                   case 5: viewAllOrders(esql); break;
-                   case 6: viewRecentOrders(esql); break;
-                   case 7: viewOrderInfo(esql); break;
-                   case 8: viewStores(esql); break;
-                   case 9: updateOrderStatus(esql); break;
-                   case 10: updateMenu(esql); break;
-                   case 11: updateUser(esql); break;
-
-
-
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
+                int choice = readChoice();
+                // the reads of the viewing screens may be served by a replica
+                ReplicaRouter.Scope route = esql.route(authorisedUser, READ_ONLY_CHOICES.contains(choice));
+                try {
+                   switch (choice){
+                      case 1: viewProfile(esql, authorisedUser); break;
+                      case 2: updateProfile(esql, authorisedUser); break;
+                      case 3: viewMenu(esql, authorisedUser); break;
+                      case 4: placeOrder(esql, authorisedUser); break;
+                      case 5: viewAllOrders(esql, authorisedUser); break;
+                      case 6: viewRecentOrders(esql, authorisedUser); break;
+                      case 7: viewOrderInfo(esql, authorisedUser); break;
+                      case 8: viewStores(esql, authorisedUser); break;
+                      case 9: updateOrderStatus(esql, authorisedUser); break;
+                      case 10: updateMenu(esql, authorisedUser); break;
+                      case 11: updateUser(esql, authorisedUser); break;
+                      case 12: displaySettings(); break;
+                      case 13: viewSalesDashboard(esql, authorisedUser); break;
+                      case 14: watchOrders(esql, authorisedUser); break;
+
+
+
+                      case 20: esql.getSessions().close(authorisedUser); usermenu = false; break;
+                      default : System.out.println("Unrecognized choice!"); break;
+                   }
+                } finally {
+                   route.close();
                 }
               }
             }
@@ -385,9 +1742,9 @@ public class PizzaStore {
          System.out.print("Enter user phone: ");
          String phone = in.nextLine();
 
-         String query = String.format("INSERT INTO USERS (login, password, role, favoriteItems, phoneNum) VALUES ('%s','%s','%s','%s','%s')", login, password, role, favItems, phone);
+         String query = "INSERT INTO USERS (login, password, role, favoriteItems, phoneNum) VALUES (?,?,?,?,?)";
 
-         esql.executeUpdate(query);
+         esql.executeUpdate(query, login, password, role, favItems, phone);
          System.out.println ("User successfully created!");
          System.out.println ("");
       }
@@ -399,10 +1756,10 @@ public class PizzaStore {
   
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return User session or null is the user does not exist
     **/
     
-   public static String LogIn(PizzaStore esql)
+   public static Session LogIn(PizzaStore esql)
    {
       Scanner in = new Scanner(System.in);
       try {
@@ -411,17 +1768,14 @@ public class PizzaStore {
          System.out.print("Enter your password: ");
          String password = in.nextLine();  // Reading user input
 
-         // Construct the query
-         String query = String.format("SELECT * FROM Users WHERE login = '%s' AND password = '%s';", login, password);
-
-         // Execute the query
-         int rows = esql.executeQuery(query);
-         if (rows == 0) {
+         // Check the credentials and load the role in the same query
+         Session session = esql.authenticate(login, password);
+         if (session == null) {
             System.out.println("Invalid login or password.");
             return null;
          }
          System.out.println("Login successful.\n");
-         return login;
+         return session;
       } catch (Exception e) {
          System.err.println("Error logging in: " + e.getMessage());
       }
@@ -431,19 +1785,13 @@ public class PizzaStore {
 
 // Rest of the functions definition go in here
 
-   public static void viewProfile(PizzaStore esql) 
+   public static void viewProfile(PizzaStore esql, Session session) 
    {
-      Scanner in = new Scanner(System.in);
-      
       try {
-         System.out.print("Enter your login: ");
-         String login = in.nextLine();  // Reading user input
-         
-         // Construct the query
-         String query = String.format("SELECT * FROM Users WHERE login = '%s';", login);
+         String login = session.getLogin();
          
          // Execute the query and display the results
-         int rows = esql.executeQueryAndPrintResult(query);
+         int rows = printResult(esql.getProfile(login));
          if (rows == 0) {
             System.out.println("No profile found for the given login.");
          }
@@ -454,12 +1802,11 @@ public class PizzaStore {
       // in.close(); // No need to close explicitly as try-with-resources will handle it
    }
    
-   public static void updateProfile(PizzaStore esql) {
+   public static void updateProfile(PizzaStore esql, Session session) {
       Scanner in = new Scanner(System.in);
       
       try {
-          System.out.print("Enter your login: ");
-          String login = in.nextLine();  // Read user's login
+          String login = session.getLogin();
           
           System.out.println("What would you like to update?");
           System.out.println("1. Favorite Items");
@@ -469,25 +1816,31 @@ public class PizzaStore {
           String choice = in.nextLine();  // Read user's choice
   
           String query = "";
+          String value = "";
           if (choice.equals("1")) {
               System.out.print("Enter new favorite item: ");
-              String favoriteItems = in.nextLine();
-              query = String.format("UPDATE Users SET favoriteItems = '%s' WHERE login = '%s';", favoriteItems, login);
+              value = in.nextLine();
+              query = "UPDATE Users SET favoriteItems = ? WHERE login = ?;";
           } else if (choice.equals("2")) {
               System.out.print("Enter new phone number: ");
-              String phoneNum = in.nextLine();
-              query = String.format("UPDATE Users SET phoneNum = '%s' WHERE login = '%s';", phoneNum, login);
+              value = in.nextLine();
+              query = "UPDATE Users SET phoneNum = ? WHERE login = ?;";
           } else if (choice.equals("3")) {
               System.out.print("Enter new role (e.g., customer, manager, driver): ");
-              String role = in.nextLine();
+              value = in.nextLine();
 
-              query = String.format("UPDATE Users SET role = '%s' WHERE login = '%s';", role, login);
+              query = "UPDATE Users SET role = ? WHERE login = ?;";
           } else {
               System.out.println("Invalid choice. Please try again.");
+              return;
           }
   
           // Execute the update query
-          esql.executeUpdate(query);
+          esql.executeUpdate(query, value, login);
+
+          // Keep live sessions of this login in step with the new profile
+          if (choice.equals("2")) esql.getSessions().updatePhoneNum(login, value.trim());
+          if (choice.equals("3")) esql.getSessions().updateRole(login, value.trim());
           System.out.println("Profile updated successfully.\n");
       } catch (Exception e) {
           System.err.println("Error updating profile: " + e.getMessage());
@@ -495,67 +1848,76 @@ public class PizzaStore {
   }
   
 
-   public static void viewMenu(PizzaStore esql) {
+   public static void viewMenu(PizzaStore esql, Session session) {
       Scanner in = new Scanner(System.in);
       
       try {
          System.out.print("Enter the store ID: ");
          int storeID = Integer.parseInt(in.nextLine());  // Reading user input
+
+         System.out.print("Filter, e.g. 'vegetarian, no mushrooms, type entree, under 12' (press Enter for the full menu): ");
+         String filter = in.nextLine().trim();
+         if (!filter.isEmpty()) {
+            // Searched in the ingredient index, without touching the database
+            QueryResult found = esql.searchMenu(IngredientIndex.Filter.parse(storeID, filter));
+            if (printResult(found) == 0) {
+               System.out.println("No items match the filter.");
+            }
+            esql.getViewRecorder().recordAll(session.getPhoneNum(), found, 0);
+            return;
+         }
          
-         // Construct the query
-         String query = String.format("SELECT DISTINCT i.itemName, i.price, i.description " +
-         "FROM Items i " +
-         "JOIN Store s ON 1=1 " + // This join ensures all items are listed for any store
-         "WHERE s.storeID = %d;", storeID);
-         
-         // Execute the query and display the results
-         int rows = esql.executeQueryAndPrintResult(query);
+         // Served from the menu cache, loaded from the database on a miss
+         QueryResult menu = esql.getMenu(storeID);
+         int rows = printResult(menu);
          if (rows == 0) {
             System.out.println("No menu found for the given store ID.");
          }
+         // Queued for the Views table, written in the background
+         esql.getViewRecorder().recordAll(session.getPhoneNum(), menu, 0);
       } catch (Exception e) {
          System.err.println("Error viewing menu: " + e.getMessage());
       }
    }
 
-   public static void placeOrder(PizzaStore esql) {
+   public static void placeOrder(PizzaStore esql, Session session) {
       Scanner in = new Scanner(System.in);
   
       try {
-          // Get user login
-          System.out.print("Enter your login: ");
-          String login = in.nextLine();
+          String login = session.getLogin();
   
           // Get store ID
           System.out.print("Enter the store ID: ");
           int storeID = Integer.parseInt(in.nextLine());
   
-          // Get item name
-          System.out.print("Enter the item you want to order: ");
-          String itemName = in.nextLine();
-  
-          // Check item price
-          String priceQuery = String.format("SELECT price FROM Items WHERE itemName = '%s'", itemName);
-          double price = Double.parseDouble(esql.executeQueryAndReturnResult(priceQuery).get(0).get(0));
-  
-          // Generate unique orderID (assuming orderID is generated programmatically here)
-          int orderID = (int)(Math.random() * 1000000); // Replace with proper orderID generation logic if necessary
-  
-          // Insert order into FoodOrder
-          String insertOrderQuery = String.format(
-              "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) " +
-              "VALUES (%d, '%s', %d, %.2f, NOW(), 'Pending')",
-              orderID, login, storeID, price
-          );
-          esql.executeUpdate(insertOrderQuery);
+          // Fill the cart until an empty item name is entered
+          Map<String, Integer> cart = new LinkedHashMap<String, Integer>();
+          while (true) {
+              System.out.print("Enter the item you want to order (or press Enter to finish): ");
+              String itemName = in.nextLine().trim();
+              if (itemName.isEmpty()) break;
+
+              System.out.print("Enter the quantity: ");
+              int quantity = Integer.parseInt(in.nextLine().trim());
+              if (quantity <= 0) {
+                  System.out.println("Quantity must be positive.");
+                  continue;
+              }
+              cart.merge(itemName, quantity, Integer::sum);
+
+              // Answered from memory, the order is not placed yet
+              List<String> suggested = esql.suggestItems(cart.keySet(), SUGGESTION_COUNT);
+              if (!suggested.isEmpty()) {
+                  System.out.println("Often ordered together: " + String.join(", ", suggested));
+              }
+          }
+          if (cart.isEmpty()) {
+              System.out.println("No items ordered.");
+              return;
+          }
   
-          // Insert item into ItemsInOrder
-          String insertItemQuery = String.format(
-              "INSERT INTO ItemsInOrder (orderID, itemName, quantity) " +
-              "VALUES (%d, '%s', %d)",
-              orderID, itemName, 1 // Assuming quantity is 1 for a single order
-          );
-          esql.executeUpdate(insertItemQuery);
+          // Price the cart and insert the order with all of its items in one transaction
+          int orderID = esql.submitOrder(login, storeID, cart);
   
           // Display order ID to user
           System.out.println("Order placed successfully! Your order ID is: " + orderID);
@@ -564,38 +1926,53 @@ public class PizzaStore {
       }
   }
    
-   public static void viewAllOrders(PizzaStore esql) {
-      Scanner in = new Scanner(System.in);
-      
+   public static void viewAllOrders(PizzaStore esql, Session session) {
       try {
-         System.out.print("Enter your login: ");
-         String login = in.nextLine();  // Reading user input
-         
-         // Construct the query
-         String query = String.format("SELECT * FROM FoodOrder WHERE login = '%s';", login);
-         
-         // Execute the query and display the results
-         int rows = esql.executeQueryAndPrintResult(query);
-         if (rows == 0) {
+         String login = session.getLogin();
+         int size = pageSize > 0 ? pageSize : ORDER_PAGE_SIZE;
+
+         // Page through the order history; only the cursor of the shown page is kept
+         OrderPage page = esql.getOrderPage(login, null, size);
+         if (page.getOrders().isEmpty()) {
             System.out.println("No orders found for the given login.");
+            return;
+         }
+         int pageNum = 1;
+         while (true) {
+            System.out.println("Page " + pageNum);
+            new ResultRenderer(System.out, outputFormat, 0, 0, null).render(page.getOrders());
+            if (!page.hasNext() && !page.hasPrevious()) {
+               return;
+            }
+            System.out.print((page.hasNext() ? "n = next page, " : "")
+                             + (page.hasPrevious() ? "p = previous page, " : "")
+                             + "Enter to stop: ");
+            String choice = in.readLine();
+            if (choice == null) {
+               return;
+            }
+            choice = choice.trim().toLowerCase();
+            if (choice.equals("n") && page.hasNext()) {
+               page = esql.getOrderPage(login, page.getNextCursor(), size);
+               ++pageNum;
+            } else if (choice.equals("p") && page.hasPrevious()) {
+               page = esql.getOrderPage(login, page.getPreviousCursor(), size);
+               --pageNum;
+            } else if (choice.isEmpty() || choice.equals("q")) {
+               return;
+            }
          }
       } catch (Exception e) {
          System.err.println("Error viewing orders: " + e.getMessage());
       }
    }
    
-   public static void viewRecentOrders(PizzaStore esql) { //most 5 recent orders given a login
-      Scanner in = new Scanner(System.in);
-      
+   public static void viewRecentOrders(PizzaStore esql, Session session) { //most 5 recent orders of the logged in user
       try {
-         System.out.print("Enter your login: ");
-         String login = in.nextLine();  // Reading user input
-         
-         // Construct the query
-         String query = String.format("SELECT * FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC LIMIT 5;", login);
+         String login = session.getLogin();
          
          // Execute the query and display the results
-         int rows = esql.executeQueryAndPrintResult(query);
+         int rows = printResult(esql.getRecentOrders(login, 5));
          if (rows == 0) {
             System.out.println("No recent orders found for the given login.");
          }
@@ -605,18 +1982,15 @@ public class PizzaStore {
 
    }
    
-   public static void viewOrderInfo(PizzaStore esql) {
+   public static void viewOrderInfo(PizzaStore esql, Session session) {
       Scanner in = new Scanner(System.in);
       
       try {
          System.out.print("Enter the order ID: ");
          int orderID = Integer.parseInt(in.nextLine());  // Reading user input
          
-         // Construct the query
-         String query = String.format("SELECT * FROM FoodOrder WHERE orderID = %d;", orderID);
-         
          // Execute the query and display the results
-         int rows = esql.executeQueryAndPrintResult(query);
+         int rows = printResult(esql.getOrder(orderID));
          if (rows == 0) {
             System.out.println("No order found for the given order ID.");
          }
@@ -625,15 +1999,24 @@ public class PizzaStore {
       }
    }
    
-   public static void viewStores(PizzaStore esql) {
-      Scanner in = new Scanner(System.in);
-    
+   public static void viewStores(PizzaStore esql, Session session) {
+    Scanner in = new Scanner(System.in);
+
     try {
-        // Construct the query
-        String query = "SELECT storeID, address, city, state, isOpen, reviewScore FROM store;";
-        
-        // Execute the query and display the results
-        int rows = esql.executeQueryAndPrintResult(query);
+        System.out.print("Enter a city and state (e.g. Riverside, CA), a state, or press Enter for all stores: ");
+        String place = in.nextLine().trim();
+        String city = null, state = null;
+        if (place.contains(",")) {
+            city = place.substring(0, place.lastIndexOf(',')).trim();
+            state = place.substring(place.lastIndexOf(',') + 1).trim();
+        } else if (!place.isEmpty()) {
+            state = place;
+        }
+        System.out.print("Only open stores? (y/N): ");
+        boolean openOnly = in.nextLine().trim().toLowerCase().startsWith("y");
+
+        // Looked up in the store locator, best rated first
+        int rows = printResult(StoreLocator.toResult(esql.findStores(state, city, openOnly, 0)));
         if (rows == 0) {
             System.out.println("No stores found.");
         }
@@ -642,45 +2025,40 @@ public class PizzaStore {
     }
    }
    
-   public static void updateOrderStatus(PizzaStore esql) {
+   public static void updateOrderStatus(PizzaStore esql, Session session) {
       Scanner in = new Scanner(System.in);
   
       try {
-          System.out.print("Enter your login: ");
-          String login = in.nextLine().trim();
-  
-          // Check if user is a manager
-          String roleQuery = String.format("SELECT role FROM Users WHERE login = '%s';", login);
-          List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
-  
-          if (roleResult.isEmpty()) {
-              System.out.println("Login not found.");
-              return;
-          }
-          String role = roleResult.get(0).get(0).trim();
-          if (!role.equalsIgnoreCase("manager")) {
-              System.out.println("Only managers can update order status.");
+          // Only drivers and managers move orders along
+          if (!session.isManager() && !session.isDriver()) {
+              System.out.println("Only drivers and managers can update order status.");
               return;
           }
   
-          System.out.print("Enter the order ID: ");
-          int orderID = Integer.parseInt(in.nextLine().trim());
-  
-          // Check if the order exists
-          String countQuery = String.format("SELECT COUNT(*) FROM FoodOrder WHERE orderID = %d;", orderID);
-          List<List<String>> countResult = esql.executeQueryAndReturnResult(countQuery);
-  
-          if (countResult.isEmpty() || Integer.parseInt(countResult.get(0).get(0)) == 0) {
-              System.out.println("Order not found.");
+          System.out.print("Enter the order IDs, separated by spaces or commas: ");
+          Set<Integer> orderIDs = new LinkedHashSet<Integer>();
+          for (String id : in.nextLine().trim().split("[\\s,]+")) {
+              if (!id.isEmpty()) {
+                  orderIDs.add(Integer.parseInt(id));
+              }
+          }
+          if (orderIDs.isEmpty()) {
+              System.out.println("No orders given.");
               return;
           }
+
+          System.out.print("Enter the new status (Preparing, Out for delivery, Delivered): ");
+          OrderStatus target = OrderStatus.parse(in.nextLine());
   
-          // Construct the query
-          String query = String.format("UPDATE FoodOrder SET orderStatus = 'Delivered' WHERE orderID = %d;", orderID);
-  
-          // Execute the query
-          esql.executeUpdate(query);
-          System.out.println("Order status updated successfully.\n");
+          // One UPDATE moves every order that is one step behind the new status
+          List<Integer> changed = esql.advanceOrders(orderIDs, target);
+          orderIDs.removeAll(changed);
+          System.out.println(changed.size() + " order(s) updated to " + target + ": " + changed);
+          if (!orderIDs.isEmpty()) {
+              System.out.println(orderIDs.size() + " order(s) not found or not " + target.getPrevious()
+                                 + ", left unchanged: " + orderIDs);
+          }
+          System.out.println();
       } catch (Exception e) {
           System.err.println("Error updating order status: " + e.getMessage());
       }
@@ -690,20 +2068,12 @@ public class PizzaStore {
   
   
    
-    public static void updateMenu(PizzaStore esql) {
+    public static void updateMenu(PizzaStore esql, Session session) {
     Scanner in = new Scanner(System.in);
-    System.out.println("login: ");
-    String login = in.nextLine().trim();  // Read user's login and trim whitespace
 
       try {
         // Check if the logged-in user is a manager
-         String roleQuery = String.format("SELECT role FROM Users WHERE login = '%s'", login);
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
-         String temp = roleResult.get(0).get(0).trim();
-         System.out.println(temp);
-
-
-         if (!temp.equalsIgnoreCase("manager")) {
+         if (!session.isManager()) {
             System.out.println("You do not have permission to update menu.");
             return;
         }
@@ -718,10 +2088,7 @@ public class PizzaStore {
             String itemName = in.nextLine().trim();
             
             // Check if item exists
-            String checkQuery = String.format("SELECT * FROM Items WHERE itemName = '%s';", itemName);
-            int count = esql.executeQuery(checkQuery);
-            
-            if (count == 0) {
+            if (!esql.exists("Items", "itemName = ?", itemName)) {
                 System.out.println("Item not found.");
                 return;
             }
@@ -744,16 +2111,20 @@ public class PizzaStore {
 
             StringBuilder updateQuery = new StringBuilder("UPDATE Items SET ");
             List<String> updates = new ArrayList<>();
+            List<Object> values = new ArrayList<>();
 
-            if (ingredients != null) updates.add("ingredients = '" + ingredients + "'");
-            if (typeOfItem != null) updates.add("typeOfItem = '" + typeOfItem + "'");
-            if (price != null) updates.add("price = " + price);
-            if (description != null) updates.add("description = '" + description + "'");
+            if (ingredients != null) { updates.add("ingredients = ?"); values.add(ingredients); }
+            if (typeOfItem != null) { updates.add("typeOfItem = ?"); values.add(typeOfItem); }
+            if (price != null) { updates.add("price = ?"); values.add(price); }
+            if (description != null) { updates.add("description = ?"); values.add(description); }
 
             if (!updates.isEmpty()) {
                 updateQuery.append(String.join(", ", updates));
-                updateQuery.append(String.format(" WHERE itemName = '%s';", itemName));
-                esql.executeUpdate(updateQuery.toString());
+                updateQuery.append(" WHERE itemName = ?;");
+                values.add(itemName);
+                esql.executeUpdate(updateQuery.toString(), values.toArray());
+                esql.getMenuCache().invalidateItem(itemName, false);
+                esql.getIngredientIndex().reloadItem(itemName);
                 System.out.println("Item updated successfully.");
             } else {
                 System.out.println("No updates were made.");
@@ -764,10 +2135,7 @@ public class PizzaStore {
             String itemName = in.nextLine().trim();
 
             // Check if item already exists to avoid duplicates
-            String checkQuery = String.format("SELECT * FROM Items WHERE itemName = '%s';", itemName);
-            int count = esql.executeQuery(checkQuery);
-            
-            if (count > 0) {
+            if (esql.exists("Items", "itemName = ?", itemName)) {
                 System.out.println("Item already exists.");
                 return;
             }
@@ -784,10 +2152,11 @@ public class PizzaStore {
             System.out.print("Enter description: ");
             String description = in.nextLine().trim();
 
-            String insertQuery = String.format("INSERT INTO Items(itemName, ingredients, typeOfItem, price, description) VALUES ('%s', '%s', '%s', %s, '%s');", 
-                                               itemName, ingredients, typeOfItem, price, description);
+            String insertQuery = "INSERT INTO Items(itemName, ingredients, typeOfItem, price, description) VALUES (?, ?, ?, ?, ?);";
             
-            esql.executeUpdate(insertQuery);
+            esql.executeUpdate(insertQuery, itemName, ingredients, typeOfItem, price, description);
+            esql.getMenuCache().invalidateItem(itemName, true);
+            esql.getIngredientIndex().reloadItem(itemName);
             System.out.println("New item added successfully.");
         } else {
             System.out.println("Invalid choice.");
@@ -798,18 +2167,12 @@ public class PizzaStore {
       }
    }
    
-   public static void updateUser(PizzaStore esql) {
+   public static void updateUser(PizzaStore esql, Session session) {
             
    Scanner in = new Scanner(System.in);
-   System.out.println("Manager Login: ");
-   String managerLogin = in.nextLine().trim();
 
     try {
-        String roleQuery = String.format("SELECT role FROM Users WHERE login = '%s'", managerLogin);
-        List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
-        String temp = roleResult.get(0).get(0).trim();
-
-        if (!temp.equalsIgnoreCase("manager")) {
+        if (!session.isManager()) {
             System.out.println("You do not have permission");
             return;
         }
@@ -835,23 +2198,22 @@ public class PizzaStore {
                 String newPhone = in.nextLine().trim();
 
                 // Check if the user already exists
-                String checkUserQuery = String.format("SELECT * FROM Users WHERE login = '%s'", newLogin);
-                if (esql.executeQuery(checkUserQuery) > 0) {
+                if (esql.exists("Users", "login = ?", newLogin)) {
                     System.out.println("User already exists.");
                     return;
                 }
 
-                String insertUserQuery = String.format("INSERT INTO Users (login, password, role, favoriteItems, phoneNum) VALUES ('%s', '%s', '%s', '%s', '%s')", 
-                                                       newLogin, newPassword, newRole, newFavItems, newPhone);
-                esql.executeUpdate(insertUserQuery);
+                String insertUserQuery = "INSERT INTO Users (login, password, role, favoriteItems, phoneNum) VALUES (?, ?, ?, ?, ?)";
+                esql.executeUpdate(insertUserQuery, newLogin, newPassword, newRole, newFavItems, newPhone);
                 System.out.println("New user added successfully.");
                 break;
 
             case 2: // Delete a user
                 System.out.print("Enter the login of the user to delete: ");
                 String loginToDelete = in.nextLine().trim();
-                String deleteUserQuery = String.format("DELETE FROM Users WHERE login = '%s'", loginToDelete);
-                esql.executeUpdate(deleteUserQuery); // No need for return value here
+                String deleteUserQuery = "DELETE FROM Users WHERE login = ?";
+                esql.executeUpdate(deleteUserQuery, loginToDelete); // No need for return value here
+                esql.getSessions().revoke(loginToDelete);
                 System.out.println("Attempt to delete user made.");
                 break;
 
@@ -866,28 +2228,31 @@ public class PizzaStore {
                 int updateChoice = Integer.parseInt(in.nextLine().trim());
 
                 String updateQuery = "";
+                String newValue = "";
                 switch(updateChoice) {
                     case 1:
                         System.out.print("Enter new favorite items: ");
-                        String newFavItemsUpdate = in.nextLine().trim();
-                        updateQuery = String.format("UPDATE Users SET favoriteItems = '%s' WHERE login = '%s'", newFavItemsUpdate, loginToUpdate);
+                        newValue = in.nextLine().trim();
+                        updateQuery = "UPDATE Users SET favoriteItems = ? WHERE login = ?";
                         break;
                     case 2:
                         System.out.print("Enter new role: ");
-                        String newRoleUpdate = in.nextLine().trim();
-                        updateQuery = String.format("UPDATE Users SET role = '%s' WHERE login = '%s'", newRoleUpdate, loginToUpdate);
+                        newValue = in.nextLine().trim();
+                        updateQuery = "UPDATE Users SET role = ? WHERE login = ?";
                         break;
                     case 3:
                         System.out.print("Enter new phone number: ");
-                        String newPhoneUpdate = in.nextLine().trim();
-                        updateQuery = String.format("UPDATE Users SET phoneNum = '%s' WHERE login = '%s'", newPhoneUpdate, loginToUpdate);
+                        newValue = in.nextLine().trim();
+                        updateQuery = "UPDATE Users SET phoneNum = ? WHERE login = ?";
                         break;
                     default:
                         System.out.println("Invalid choice.");
                         return;
                   }
 
-                esql.executeUpdate(updateQuery); // No need for return value here
+                esql.executeUpdate(updateQuery, newValue, loginToUpdate); // No need for return value here
+                if (updateChoice == 2) esql.getSessions().updateRole(loginToUpdate, newValue);
+                if (updateChoice == 3) esql.getSessions().updatePhoneNum(loginToUpdate, newValue);
                 System.out.println("Attempt to update user details made.");
                 break;
 
@@ -901,5 +2266,103 @@ public class PizzaStore {
    }
 
 
+   public static void viewSalesDashboard(PizzaStore esql, Session session) {
+      Scanner in = new Scanner(System.in);
+
+      try {
+         if (!session.isManager()) {
+            System.out.println("You do not have permission to view sales.");
+            return;
+         }
+
+         System.out.print("Enter the number of days to show (default 7): ");
+         String days = in.nextLine().trim();
+         LocalDate to = LocalDate.now();
+         LocalDate from = to.minusDays((days.isEmpty() ? 7 : Math.max(1, Integer.parseInt(days))) - 1);
+
+         System.out.print("Enter a store ID, or press Enter for all stores: ");
+         String store = in.nextLine().trim();
+         if (store.isEmpty()) {
+            // Totals per store, read from the daily rollups
+            System.out.println("Sales of all stores from " + from + " to " + to);
+            if (printResult(esql.getSalesByStore(from, to)) == 0) {
+               System.out.println("No sales in this period.");
+            }
+            return;
+         }
+
+         int storeID = Integer.parseInt(store);
+         System.out.println("Daily sales of store " + storeID + " from " + from + " to " + to);
+         if (printResult(esql.getDailySales(storeID, from, to)) == 0) {
+            System.out.println("No sales in this period.");
+            return;
+         }
+         System.out.println("Top items");
+         printResult(esql.getTopItems(storeID, from, to, 5));
+      } catch (Exception e) {
+         System.err.println("Error viewing sales: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Prints order status changes as they happen until Enter is pressed:
+    * the customer's own orders, or the orders of a store for drivers and
+    * managers
+    **/
+   public static void watchOrders(PizzaStore esql, Session session) {
+      Scanner in = new Scanner(System.in);
+
+      try {
+         OrderEvents.Listener print = event -> System.out.println(LocalTime.now().withNano(0) + "  " + event);
+         OrderEvents.Subscription subscription;
+         if (session.isManager() || session.isDriver()) {
+            System.out.print("Enter the store ID to watch: ");
+            int storeID = Integer.parseInt(in.nextLine().trim());
+            subscription = esql.getOrderEvents().watchStore(storeID, print);
+            System.out.println("Watching the orders of store " + storeID + ", press Enter to stop.");
+         } else {
+            subscription = esql.getOrderEvents().watchCustomer(session.getLogin(), print);
+            System.out.println("Watching your orders, press Enter to stop.");
+         }
+
+         // Events are printed by the dispatcher thread while this one waits
+         try {
+            in.nextLine();
+         } finally {
+            subscription.close();
+         }
+      } catch (Exception e) {
+         System.err.println("Error watching orders: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Chooses how query results are shown: format, page size and row limit
+    **/
+   public static void displaySettings() {
+      Scanner in = new Scanner(System.in);
+
+      try {
+         System.out.println("Current settings: format " + outputFormat + ", page size " + pageSize
+                            + ", row limit " + rowLimit + " (0 = none)");
+         System.out.print("Enter format (aligned, tsv, csv) or press Enter to keep: ");
+         String format = in.nextLine().trim();
+         if (!format.isEmpty()) outputFormat = ResultRenderer.Format.valueOf(format.toUpperCase());
+
+         System.out.print("Enter rows per page (0 = no paging) or press Enter to keep: ");
+         String page = in.nextLine().trim();
+         if (!page.isEmpty()) pageSize = Math.max(0, Integer.parseInt(page));
+
+         System.out.print("Enter the most rows to show (0 = all) or press Enter to keep: ");
+         String limit = in.nextLine().trim();
+         if (!limit.isEmpty()) rowLimit = Math.max(0, Integer.parseInt(limit));
+
+         System.out.println("Display settings updated.\n");
+      } catch (Exception e) {
+         System.err.println("Invalid setting: " + e.getMessage());
+      }
+   }
+
+
 }//end PizzaStore
 
@@ -0,0 +1,655 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class serves many counter terminals and kiosks from one JVM. It
+ * listens on a loopback socket and runs every client connection on its own
+ * virtual thread; all clients share the PizzaStore data-access layer, its
+ * connection pool and its caches.
+ *
+ * The protocol is line based (UTF-8). A request is one line: a command
+ * followed by its arguments, separated by TABs (or by spaces when the line
+ * holds no TAB). Every response starts with a status line, "OK" or
+ * "ERR <message>", followed by zero or more TAB separated data lines and a
+ * line holding a single "." (data lines starting with "." get an extra "."
+ * in front). Tables are sent as a header line followed by the rows.
+ * Responses are sent once complete; only a long one is sent while its
+ * rows are still being read, and when reading them fails after "OK" was
+ * sent, the response ends with a line ".ERR <message>" before the ".".
+ * Between two responses, a connection that WATCHes orders may receive
+ * event lines "EVENT <orderID> <storeID> <status>" (TAB separated) at any
+ * time; they end with the line itself, without ".".
+ *
+ *    LOGIN <login> <password>        opens a session, answers "OK <role>"
+ *    PROFILE                         profile of the logged in user
+ *    MENU <storeID>                  menu of a store
+ *    SEARCH <storeID|*> <filter>     items of a store (or of any store for
+ *                                    "*") matching a filter such as
+ *                                    "vegetarian, no mushrooms, under 12";
+ *                                    the rest of the line is the filter
+ *    STORES                          list of stores
+ *    LOCATE <state|*> [<city>|*] [OPEN]
+ *                                    stores of a state (and city), best
+ *                                    rated first, only open ones with OPEN;
+ *                                    separate the arguments by TABs when
+ *                                    the city holds blanks
+ *    ORDERS                          full order history
+ *    HISTORY [<cursor>]              one page of the order history, newest
+ *                                    first; answers "OK <next> <previous>",
+ *                                    the cursors of the neighbouring pages
+ *                                    ("-" when there is none)
+ *    RECENT                          five most recent orders
+ *    HOME <storeID>                  menu, stores and recent orders, fetched
+ *                                    at the same time; each table follows a
+ *                                    line "# menu", "# stores" or "# orders"
+ *    ORDER <orderID>                 one order
+ *    SUGGEST [<item>...]             items often ordered together with the
+ *                                    given ones, answers "OK <count>" and
+ *                                    one item per line
+ *    PLACE <storeID> <item> <qty>... places an order, answers "OK <orderID>"
+ *    STATUS <orderID> [<status>]     moves an order one step forward to status,
+ *                                    Delivered by default (managers)
+ *    ADVANCE <status> <orderID>...   moves orders one step forward to status
+ *                                    (drivers and managers), answers
+ *                                    "OK <count>" and the changed orderIDs
+ *    SALES [<storeID>|* [<days>]]    sales per day of a store, or per store
+ *                                    for "*" or no store, over the last
+ *                                    days (default 7) (managers)
+ *    TOPITEMS <storeID> [<days>]     best selling items of a store (managers)
+ *    WATCH ORDER <orderID>           pushes the status changes of an order
+ *    WATCH STORE <storeID>           pushes the orders placed at a store and
+ *                                    their status changes (drivers and
+ *                                    managers)
+ *    WATCH MINE                      pushes the orders of the logged in user
+ *                                    and their status changes
+ *    UNWATCH                         stops all watches of the connection
+ *    LOGOUT                          closes the session
+ *    QUIT                            closes the connection
+ *
+ */
+public class PizzaStoreServer {
+
+   // how long a client may stay silent before its connection is dropped
+   static final int CLIENT_TIMEOUT_MS = Integer.getInteger("pizzastore.server.clientTimeoutMs", 1800000);
+
+   // characters of a response held back until it is complete, a longer one is sent as it grows
+   static final int RESPONSE_BUFFER_CHARS = Integer.getInteger("pizzastore.server.responseBufferChars", 65536);
+
+   // events queued for a client that reads them too slowly, newer ones are dropped
+   static final int MAX_PENDING_EVENTS = Integer.getInteger("pizzastore.server.maxPendingEvents", 1000);
+
+   // commands that only read, and may therefore be served by a replica
+   static final Set<String> READ_ONLY_COMMANDS = new HashSet<String>(Arrays.asList(
+      "PROFILE", "MENU", "STORES", "ORDERS", "HISTORY", "RECENT", "HOME", "SALES", "TOPITEMS"));
+
+   private final PizzaStore _esql;
+   private final int _port;
+   private final ExecutorService _clients;
+   private volatile ServerSocket _serverSocket;
+
+   /**
+    * @param esql the shared data-access layer
+    * @param port the loopback port to listen on
+    */
+   public PizzaStoreServer(PizzaStore esql, int port) {
+      this._esql = esql;
+      this._port = port;
+      this._clients = VirtualThreads.newThreadPerTaskExecutor("pizzastore-client");
+   }//end PizzaStoreServer
+
+   /**
+    * Accepts clients until stop() is called. Each client is served on its
+    * own thread.
+    *
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public void run() throws IOException {
+      this._serverSocket = new ServerSocket(this._port, 512, InetAddress.getLoopbackAddress());
+      System.out.println("Serving clients on " + this._serverSocket.getLocalSocketAddress()
+                         + (VirtualThreads.isSupported() ? " (virtual threads)" : " (platform threads)"));
+      try{
+         while (!this._serverSocket.isClosed()){
+            final Socket client;
+            try{
+               client = this._serverSocket.accept();
+            }catch (SocketException e){
+               break; // closed by stop()
+            }//end try
+            this._clients.execute(() -> serve(client));
+         }//end while
+      }finally{
+         stop();
+      }//end try
+   }//end run
+
+   /**
+    * Stops accepting clients and waits briefly for open requests to finish.
+    */
+   public void stop() {
+      try{
+         if (this._serverSocket != null)
+            this._serverSocket.close();
+      }catch (IOException e){
+         // ignored.
+      }//end try
+      this._clients.shutdown();
+      try{
+         this._clients.awaitTermination(5, TimeUnit.SECONDS);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end stop
+
+   /*
+    * Serves one client connection until it quits or disconnects.
+    **/
+   private void serve(Socket client) {
+      Session session = null;
+      Watches watches = null;
+      try (Socket socket = client;
+           BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+           Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))){
+         socket.setSoTimeout(CLIENT_TIMEOUT_MS);
+         Response out = new Response(writer);
+         watches = new Watches(out);
+         String line;
+         while ((line = reader.readLine()) != null){
+            String[] args = line.indexOf('\t') >= 0 ? line.split("\t") : line.trim().split("\\s+");
+            String command = args[0].toUpperCase();
+            if (command.isEmpty())
+               continue;
+            // a response is never interleaved with event lines
+            out.lock();
+            try{
+               if (command.equals("QUIT")){
+                  out.ok("Bye").end();
+                  writer.flush();
+                  break;
+               }//end if
+               out.begin();
+               // the reads of the viewing commands may be served by a replica
+               ReplicaRouter.Scope route = this._esql.route(session, READ_ONLY_COMMANDS.contains(command));
+               try{
+                  session = handle(command, args, session, out, watches);
+               }catch (SQLException | RuntimeException e){
+                  out.error(e.getMessage());
+               }finally{
+                  route.close();
+               }//end try
+               writer.flush();
+            }finally{
+               out.unlock();
+            }//end try
+         }//end while
+      }catch (IOException e){
+         // client went away.
+      }finally{
+         if (watches != null)
+            watches.close();
+         this._esql.getSessions().close(session);
+      }//end try
+   }//end serve
+
+   /*
+    * Runs one command and writes its response.
+    * @return the session of the client after the command
+    **/
+   private Session handle(String command, String[] args, Session session, Response out, Watches watches)
+         throws SQLException, IOException {
+      if (command.equals("LOGIN")){
+         need(args, 3);
+         watches.close();
+         this._esql.getSessions().close(session);
+         Session s = this._esql.authenticate(args[1], args[2]);
+         if (s == null)
+            out.error("Invalid login or password.");
+         else
+            out.ok(s.getRole()).end();
+         return s;
+      }//end if
+
+      if (!this._esql.getSessions().touch(session)){
+         out.error("Not logged in.");
+         return null;
+      }//end if
+
+      switch (command){
+         case "LOGOUT":
+            watches.close();
+            this._esql.getSessions().close(session);
+            out.ok("Logged out.").end();
+            return null;
+         case "PROFILE":
+            out.ok().table(this._esql.getProfile(session.getLogin())).end();
+            break;
+         case "MENU":
+            need(args, 2);
+            QueryResult menu = this._esql.getMenu(Integer.parseInt(args[1]));
+            out.ok().table(menu).end();
+            this._esql.getViewRecorder().recordAll(session.getPhoneNum(), menu, 0);
+            break;
+         case "SEARCH":
+            need(args, 3);
+            Integer store = args[1].equals("*") ? null : Integer.valueOf(args[1]);
+            String filter = String.join(" ", Arrays.copyOfRange(args, 2, args.length));
+            QueryResult found = this._esql.searchMenu(IngredientIndex.Filter.parse(store, filter));
+            out.ok().table(found).end();
+            this._esql.getViewRecorder().recordAll(session.getPhoneNum(), found, 0);
+            break;
+         case "STORES":
+            out.ok().table(this._esql.getStores()).end();
+            break;
+         case "LOCATE":
+            need(args, 2);
+            boolean openOnly = args[args.length - 1].equalsIgnoreCase("OPEN");
+            int places = openOnly ? args.length - 2 : args.length - 1;
+            String state = args[1].equals("*") ? null : args[1];
+            String city = places > 1 && !args[2].equals("*") ? args[2] : null;
+            out.ok().table(StoreLocator.toResult(this._esql.findStores(state, city, openOnly, 0))).end();
+            break;
+         case "ORDERS":
+            // rows are sent as they are read from the cursor once they outgrow the buffer
+            out.ok();
+            this._esql.forEachOrder(session.getLogin(), out.rowWriter());
+            out.end();
+            break;
+         case "HISTORY":
+            OrderPage page = this._esql.getOrderPage(session.getLogin(), args.length > 1 ? args[1] : null,
+                                                     PizzaStore.ORDER_PAGE_SIZE);
+            out.ok((page.hasNext() ? page.getNextCursor() : "-") + " "
+                   + (page.hasPrevious() ? page.getPreviousCursor() : "-"))
+               .table(page.getOrders()).end();
+            break;
+         case "HOME":
+            need(args, 2);
+            Map<String, QueryResult> home;
+            try{
+               home = this._esql.async().getHomeScreen(session.getLogin(), Integer.parseInt(args[1])).join();
+            }catch (CompletionException e){
+               if (e.getCause() instanceof SQLException)
+                  throw (SQLException) e.getCause();
+               throw e;
+            }//end try
+            out.ok();
+            for (Map.Entry<String, QueryResult> part : home.entrySet()){
+               out.line(Arrays.asList("# " + part.getKey()));
+               out.table(part.getValue());
+            }//end for
+            out.end();
+            break;
+         case "RECENT":
+            out.ok().table(this._esql.getRecentOrders(session.getLogin(), 5)).end();
+            break;
+         case "ORDER":
+            need(args, 2);
+            out.ok().table(this._esql.getOrder(Integer.parseInt(args[1]))).end();
+            break;
+         case "PLACE":
+            need(args, 4);
+            if (args.length % 2 != 0){
+               out.error("Every item needs a quantity.");
+               break;
+            }//end if
+            Map<String, Integer> cart = new LinkedHashMap<String, Integer>();
+            for (int i = 2; i + 1 < args.length; i += 2){
+               int quantity = Integer.parseInt(args[i + 1]);
+               if (quantity <= 0){
+                  out.error("Quantity must be positive: " + args[i]);
+                  return session;
+               }//end if
+               cart.merge(args[i], quantity, Integer::sum);
+            }//end for
+            int orderID = this._esql.submitOrder(session.getLogin(), Integer.parseInt(args[1]), cart);
+            out.ok(String.valueOf(orderID)).end();
+            break;
+         case "STATUS":
+            need(args, 2);
+            if (!session.isManager()){
+               out.error("Only managers can update order status.");
+               break;
+            }//end if
+            // the status may span several words when the line holds no TAB
+            OrderStatus status = args.length > 2 ? OrderStatus.parse(String.join(" ", Arrays.asList(args).subList(2, args.length)))
+                                                 : OrderStatus.DELIVERED;
+            if (this._esql.setOrderStatus(Integer.parseInt(args[1]), status))
+               out.ok("Order status updated.").end();
+            else
+               out.error("Order not found or not " + status.getPrevious() + ".");
+            break;
+         case "SALES":
+         case "TOPITEMS":
+            if (!session.isManager()){
+               out.error("Only managers can view sales.");
+               break;
+            }//end if
+            if (command.equals("TOPITEMS"))
+               need(args, 2);
+            // the optional day count follows the store
+            LocalDate to = LocalDate.now();
+            LocalDate from = to.minusDays(Math.max(1, args.length > 2 ? Integer.parseInt(args[2]) : 7) - 1);
+            if (command.equals("TOPITEMS"))
+               out.ok().table(this._esql.getTopItems(Integer.parseInt(args[1]), from, to, 10)).end();
+            else if (args.length < 2 || args[1].equals("*"))
+               out.ok().table(this._esql.getSalesByStore(from, to)).end();
+            else
+               out.ok().table(this._esql.getDailySales(Integer.parseInt(args[1]), from, to)).end();
+            break;
+         case "SUGGEST":
+            List<String> suggested = this._esql.suggestItems(Arrays.asList(args).subList(1, args.length),
+                                                             Math.max(1, PizzaStore.SUGGESTION_COUNT));
+            out.ok(String.valueOf(suggested.size()));
+            for (String item : suggested)
+               out.line(Arrays.asList(item));
+            out.end();
+            break;
+         case "ADVANCE":
+            need(args, 3);
+            if (!session.isManager() && !session.isDriver()){
+               out.error("Only drivers and managers can update order status.");
+               break;
+            }//end if
+            // the status may span several words when the line holds no TAB
+            int first = 1;
+            while (first < args.length && !args[first].matches("\\d+"))
+               ++first;
+            OrderStatus target = OrderStatus.parse(String.join(" ", Arrays.asList(args).subList(1, first)));
+            List<Integer> orderIDs = new ArrayList<Integer>();
+            for (int i = first; i < args.length; ++i)
+               orderIDs.add(Integer.valueOf(args[i]));
+            List<Integer> changed = this._esql.advanceOrders(orderIDs, target);
+            out.ok(String.valueOf(changed.size()));
+            for (Integer id : changed)
+               out.line(Arrays.asList(id.toString()));
+            out.end();
+            break;
+         case "WATCH":
+            need(args, 2);
+            OrderEvents events = this._esql.getOrderEvents();
+            switch (args[1].toUpperCase()){
+               case "ORDER":
+                  need(args, 3);
+                  watches.add(events.watchOrder(Integer.parseInt(args[2]), watches));
+                  break;
+               case "STORE":
+                  need(args, 3);
+                  if (!session.isManager() && !session.isDriver()){
+                     out.error("Only drivers and managers can watch a store.");
+                     return session;
+                  }//end if
+                  watches.add(events.watchStore(Integer.parseInt(args[2]), watches));
+                  break;
+               case "MINE":
+                  watches.add(events.watchCustomer(session.getLogin(), watches));
+                  break;
+               default:
+                  out.error("WATCH ORDER <orderID>, WATCH STORE <storeID> or WATCH MINE");
+                  return session;
+            }//end switch
+            out.ok("Watching.").end();
+            break;
+         case "UNWATCH":
+            watches.close();
+            out.ok("Stopped watching.").end();
+            break;
+         default:
+            out.error("Unknown command " + command);
+      }//end switch
+      return session;
+   }//end handle
+
+   private static void need(String[] args, int count) {
+      if (args.length < count)
+         throw new IllegalArgumentException("Expected " + (count - 1) + " argument(s) for " + args[0]);
+   }//end need
+
+   /*
+    * The watches of one client connection. Events are queued by the
+    * dispatcher thread and written, in order, by one task at a time on
+    * the client executor, so a slow client never holds up the dispatcher.
+    **/
+   private class Watches implements OrderEvents.Listener {
+      private final Response _out;
+      private final List<OrderEvents.Subscription> _subscriptions = new ArrayList<OrderEvents.Subscription>();
+      private final ConcurrentLinkedQueue<OrderEvents.Event> _pending = new ConcurrentLinkedQueue<OrderEvents.Event>();
+      private final AtomicInteger _size = new AtomicInteger();
+      private final AtomicBoolean _draining = new AtomicBoolean();
+
+      Watches(Response out) {
+         this._out = out;
+      }
+
+      synchronized void add(OrderEvents.Subscription s) {
+         this._subscriptions.add(s);
+      }
+
+      synchronized void close() {
+         for (OrderEvents.Subscription s : this._subscriptions)
+            s.close();
+         this._subscriptions.clear();
+      }
+
+      public void onEvent(OrderEvents.Event event) {
+         if (this._size.incrementAndGet() > MAX_PENDING_EVENTS){
+            this._size.decrementAndGet();
+            return;
+         }//end if
+         this._pending.add(event);
+         if (this._draining.compareAndSet(false, true)){
+            try{
+               PizzaStoreServer.this._clients.execute(this::drain);
+            }catch (RejectedExecutionException e){
+               // the server is stopping.
+            }//end try
+         }//end if
+      }
+
+      private void drain() {
+         try{
+            while (true){
+               OrderEvents.Event event;
+               while ((event = this._pending.poll()) != null){
+                  this._size.decrementAndGet();
+                  this._out.event(event);
+               }//end while
+               this._draining.set(false);
+               // an event queued after the last poll but before the reset is picked up here
+               if (this._pending.isEmpty() || !this._draining.compareAndSet(false, true))
+                  return;
+            }//end while
+         }catch (IOException e){
+            // client went away; serve() closes the watches.
+            this._pending.clear();
+            this._size.set(0);
+            this._draining.set(false);
+         }//end try
+      }
+   }//end Watches
+
+   /*
+    * Writes the framed response of one request.
+    **/
+   private static class Response {
+      private final Writer _writer;
+      // held while a request is answered or an event written; a lock rather
+      // than synchronized, so a virtual thread waiting on the database
+      // does not pin its carrier
+      private final ReentrantLock _lock = new ReentrantLock();
+      // the part of the current response not sent yet
+      private final StringBuilder _buffer = new StringBuilder();
+      // set once "OK" was written and until the response ends
+      private boolean _open = false;
+      // set once part of the open response was sent
+      private boolean _sent = false;
+      // set once the current request got its response
+      private boolean _answered = false;
+
+      Response(Writer writer) {
+         this._writer = writer;
+      }
+
+      void lock() {
+         this._lock.lock();
+      }
+
+      void unlock() {
+         this._lock.unlock();
+      }
+
+      /*
+       * Starts the response to a new request.
+       **/
+      void begin() {
+         this._buffer.setLength(0);
+         this._open = false;
+         this._sent = false;
+         this._answered = false;
+      }
+
+      Response ok() throws IOException {
+         return ok(null);
+      }
+
+      Response ok(String message) throws IOException {
+         this._open = true;
+         this._buffer.append(message == null ? "OK\n" : "OK " + message + "\n");
+         return this;
+      }
+
+      /*
+       * Answers the request with an error. The rows of an open response are
+       * dropped, unless some were sent already; then the response ends with
+       * ".ERR". An error after the response ended is not sent at all.
+       **/
+      void error(String message) throws IOException {
+         if (this._answered && !this._open)
+            return;
+         String text = message == null ? "" : message.replace('\n', ' ');
+         if (this._sent){
+            this._buffer.append(".ERR ").append(text).append("\n.\n");
+            this._writer.write(this._buffer.toString());
+         }else{
+            this._writer.write("ERR " + text + "\n.\n");
+         }//end if
+         this._buffer.setLength(0);
+         this._open = false;
+         this._answered = true;
+      }
+
+      Response table(QueryResult result) throws IOException {
+         line(result.getColumns());
+         for (List<String> record : result.getRows())
+            line(record);
+         return this;
+      }
+
+      void end() throws IOException {
+         this._buffer.append(".\n");
+         this._writer.write(this._buffer.toString());
+         this._buffer.setLength(0);
+         this._open = false;
+         this._answered = true;
+      }
+
+      void event(OrderEvents.Event e) throws IOException {
+         this._lock.lock();
+         try{
+            this._writer.write(format(Arrays.asList("EVENT", String.valueOf(e.orderID), String.valueOf(e.storeID), e.status)));
+            this._writer.flush();
+         }finally{
+            this._lock.unlock();
+         }//end try
+      }
+
+      /*
+       * Streams rows of a query as data lines, preceded by a header line.
+       **/
+      RowCallback rowWriter() {
+         return new RowCallback() {
+            private int numCol = -1;
+            private long bytes = 0;
+
+            public long getBytesDecoded() {
+               return bytes;
+            }
+
+            public void processRow(ResultSet rs) throws SQLException {
+               try{
+                  if (numCol < 0){
+                     ResultSetMetaData rsmd = rs.getMetaData();
+                     numCol = rsmd.getColumnCount();
+                     String[] header = new String[numCol];
+                     for (int i = 1; i <= numCol; ++i)
+                        header[i - 1] = rsmd.getColumnName(i);
+                     line(Arrays.asList(header));
+                  }//end if
+                  String[] record = new String[numCol];
+                  for (int i = 1; i <= numCol; ++i){
+                     record[i - 1] = rs.getString(i);
+                     if (record[i - 1] != null)
+                        bytes += record[i - 1].length();
+                  }//end for
+                  line(Arrays.asList(record));
+               }catch (IOException e){
+                  throw new SQLException("Client connection lost", e);
+               }//end try
+            }
+         };
+      }
+
+      /*
+       * Adds a data line to the response, sending what was held back when
+       * it grew past RESPONSE_BUFFER_CHARS.
+       **/
+      private void line(List<String> values) throws IOException {
+         this._buffer.append(format(values));
+         if (this._buffer.length() >= RESPONSE_BUFFER_CHARS){
+            this._writer.write(this._buffer.toString());
+            this._buffer.setLength(0);
+            this._sent = true;
+         }//end if
+      }
+
+      private static String format(List<String> values) {
+         StringBuilder sb = new StringBuilder();
+         for (int i = 0; i < values.size(); ++i){
+            if (i > 0)
+               sb.append('\t');
+            String v = values.get(i);
+            sb.append(v == null ? "" : v.trim().replace('\t', ' ').replace('\n', ' '));
+         }//end for
+         if (sb.length() > 0 && sb.charAt(0) == '.')
+            sb.insert(0, '.');
+         sb.append('\n');
+         return sb.toString();
+      }
+   }//end Response
+
+}//end PizzaStoreServer
@@ -0,0 +1,479 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class collects per-statement metrics of the data-access layer.
+ * Statements are grouped by their normalized SQL template: string and
+ * numeric literals become ?, and blanks are collapsed, so
+ * "SELECT * FROM Users WHERE login = 'bob'" and the same query for any
+ * other login share one entry. Every template counts its calls, errors,
+ * rows, decoded bytes and time spent waiting for a pooled connection,
+ * and keeps a latency histogram with the p50, p99 and maximum.
+ *
+ * The histograms are log-linear like HdrHistogram: every power of two is
+ * split into 16 buckets, so a percentile is exact to within 1/16 (about
+ * 6%) at any magnitude, and recording is one atomic increment.
+ *
+ * Statements slower than the slow-query threshold are written, with their
+ * normalized SQL, to the slow-query log. The metrics are exposed through
+ * JMX (see QueryMetricsMXBean) and can be dumped as a text table
+ * periodically.
+ *
+ */
+public class QueryMetrics implements QueryMetricsMXBean {
+
+   // templates tracked at most; further templates are counted as OTHER
+   static final int MAX_TEMPLATES = 1000;
+   static final String OTHER = "(other statements)";
+
+   private final ConcurrentHashMap<String, Template> _templates = new ConcurrentHashMap<String, Template>();
+
+   // SQL of parameterized statements -> template, skips normalizing the same string again
+   private final ConcurrentHashMap<String, Template> _bySql = new ConcurrentHashMap<String, Template>();
+
+   private final long _slowNanos;
+   private final PrintStream _slowLog;
+   private final LongAdder _slowQueries = new LongAdder();
+
+   private ScheduledExecutorService _dumper = null;
+   private ObjectName _jmxName = null;
+
+   /**
+    * @param slowMillis statements taking at least this long are logged, negative disables the log
+    * @param slowLog where slow statements are logged
+    */
+   public QueryMetrics(long slowMillis, PrintStream slowLog) {
+      this._slowNanos = slowMillis < 0 ? Long.MAX_VALUE : slowMillis * 1000000L;
+      this._slowLog = slowLog;
+   }//end QueryMetrics
+
+   /**
+    * Starts timing one statement. The timer must be ended with end(), in a
+    * finally block.
+    *
+    * @param sql the statement, or the name of a unit of work
+    * @param parameterized true when sql is a template whose values are bound
+    *        separately; such strings are normalized only once
+    * @return the timer of the statement
+    */
+   public Timer start(String sql, boolean parameterized) {
+      Template t = parameterized ? this._bySql.get(sql) : null;
+      if (t == null){
+         t = template(normalize(sql));
+         if (parameterized && this._bySql.size() < MAX_TEMPLATES)
+            this._bySql.putIfAbsent(sql, t);
+      }//end if
+      return new Timer(t);
+   }//end start
+
+   private Template template(String normalized) {
+      Template t = this._templates.get(normalized);
+      if (t != null)
+         return t;
+      if (this._templates.size() >= MAX_TEMPLATES)
+         normalized = OTHER;
+      return this._templates.computeIfAbsent(normalized, Template::new);
+   }//end template
+
+   public long getQueryCount() {
+      long n = 0;
+      for (Template t : this._templates.values())
+         n += t.count.sum();
+      return n;
+   }//end getQueryCount
+
+   public long getErrorCount() {
+      long n = 0;
+      for (Template t : this._templates.values())
+         n += t.errors.sum();
+      return n;
+   }//end getErrorCount
+
+   public long getSlowQueryCount() {
+      return this._slowQueries.sum();
+   }//end getSlowQueryCount
+
+   public long getSlowQueryThresholdMillis() {
+      return this._slowNanos == Long.MAX_VALUE ? -1L : this._slowNanos / 1000000L;
+   }//end getSlowQueryThresholdMillis
+
+   public List<TemplateStats> getTemplates() {
+      List<TemplateStats> stats = new ArrayList<TemplateStats>();
+      for (Template t : this._templates.values())
+         if (t.count.sum() > 0)
+            stats.add(t.snapshot());
+      stats.sort((a, b) -> Long.compare(b.getTotalMicros(), a.getTotalMicros()));
+      return stats;
+   }//end getTemplates
+
+   public String dump() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("query metrics at %s: %d statements, %d errors, %d slow%n",
+                              LocalDateTime.now().withNano(0), getQueryCount(), getErrorCount(),
+                              getSlowQueryCount()));
+      sb.append(String.format("%10s %7s %10s %10s %10s %10s %12s %12s %10s  %s%n", "count", "errors",
+                              "mean ms", "p50 ms", "p99 ms", "max ms", "rows", "bytes", "wait ms", "statement"));
+      for (TemplateStats s : getTemplates())
+         sb.append(String.format("%10d %7d %10.3f %10.3f %10.3f %10.3f %12d %12d %10.3f  %s%n", s.getCount(),
+                                 s.getErrors(), s.getMeanMicros() / 1e3, s.getP50Micros() / 1e3,
+                                 s.getP99Micros() / 1e3, s.getMaxMicros() / 1e3, s.getRows(), s.getBytes(),
+                                 s.getPoolWaitMicros() / 1e3, s.getTemplate()));
+      return sb.toString();
+   }//end dump
+
+   public void reset() {
+      for (Template t : this._templates.values())
+         t.reset();
+      this._slowQueries.reset();
+   }//end reset
+
+   /**
+    * Prints dump() every period until stop() is called.
+    *
+    * @param periodSeconds seconds between dumps
+    * @param out where the dumps are printed
+    */
+   public synchronized void startDump(long periodSeconds, PrintStream out) {
+      if (this._dumper != null || periodSeconds <= 0)
+         return;
+      this._dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "pizzastore-metrics-dump");
+         t.setDaemon(true);
+         return t;
+      });
+      this._dumper.scheduleAtFixedRate(() -> out.print(dump()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+   }//end startDump
+
+   /**
+    * Registers the metrics with the platform MBean server. A failure is
+    * reported and otherwise ignored; metrics keep being collected.
+    *
+    * @param name the name key of the MBean, e.g. the database name
+    */
+   public synchronized void register(String name) {
+      try{
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName on = new ObjectName("pizzastore:type=QueryMetrics,name=" + ObjectName.quote(name));
+         if (server.isRegistered(on))
+            server.unregisterMBean(on);
+         server.registerMBean(this, on);
+         this._jmxName = on;
+      }catch (JMException e){
+         System.err.println("Query metrics are not available over JMX: " + e.getMessage());
+      }//end try
+   }//end register
+
+   /**
+    * Stops the periodic dump and unregisters the MBean.
+    */
+   public synchronized void stop() {
+      if (this._dumper != null)
+         this._dumper.shutdownNow();
+      this._dumper = null;
+      if (this._jmxName != null){
+         try{
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this._jmxName);
+         }catch (JMException e){
+            // ignored, already gone.
+         }//end try
+         this._jmxName = null;
+      }//end if
+   }//end stop
+
+   private void slow(Template t, long nanos, long waitNanos, long rows, boolean failed) {
+      this._slowQueries.increment();
+      if (this._slowLog == null)
+         return;
+      this._slowLog.println(String.format("%s slow query: %.3f ms (pool wait %.3f ms), %d rows%s: %s",
+                                          LocalDateTime.now(), nanos / 1e6, waitNanos / 1e6, rows,
+                                          failed ? ", failed" : "", t.sql));
+   }//end slow
+
+   /**
+    * Reduces a statement to its template: string and numeric literals are
+    * replaced by ?, runs of blanks by one space, and a trailing ; is
+    * dropped. Identifiers, quoted identifiers and keywords are kept.
+    *
+    * @param sql the statement
+    * @return the normalized template
+    */
+   static String normalize(String sql) {
+      StringBuilder sb = new StringBuilder(sql.length());
+      int n = sql.length();
+      int i = 0;
+      while (i < n){
+         char c = sql.charAt(i);
+         if (c == '\''){
+            // string literal, '' is an escaped quote
+            ++i;
+            while (i < n){
+               if (sql.charAt(i) == '\''){
+                  if (i + 1 < n && sql.charAt(i + 1) == '\''){
+                     i += 2;
+                     continue;
+                  }//end if
+                  break;
+               }//end if
+               ++i;
+            }//end while
+            ++i;
+            sb.append('?');
+         }else if (c == '"'){
+            int end = sql.indexOf('"', i + 1);
+            end = end < 0 ? n : end + 1;
+            sb.append(sql, i, end);
+            i = end;
+         }else if (Character.isWhitespace(c)){
+            while (i < n && Character.isWhitespace(sql.charAt(i)))
+               ++i;
+            if (sb.length() > 0)
+               sb.append(' ');
+         }else if (Character.isDigit(c) && !partOfWord(sb)){
+            while (i < n && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.'))
+               ++i;
+            sb.append('?');
+         }else if (Character.isLetter(c) || c == '_'){
+            while (i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_' || sql.charAt(i) == '$'))
+               sb.append(sql.charAt(i++));
+         }else{
+            sb.append(c);
+            ++i;
+         }//end if
+      }//end while
+      int end = sb.length();
+      while (end > 0 && (sb.charAt(end - 1) == ';' || sb.charAt(end - 1) == ' '))
+         --end;
+      sb.setLength(end);
+      return sb.toString();
+   }//end normalize
+
+   private static boolean partOfWord(StringBuilder sb) {
+      if (sb.length() == 0)
+         return false;
+      char last = sb.charAt(sb.length() - 1);
+      return Character.isLetterOrDigit(last) || last == '_' || last == '$';
+   }//end partOfWord
+
+   /**
+    * Measures one statement. Not thread safe; a timer belongs to the
+    * thread running the statement.
+    */
+   public final class Timer {
+      private final Template _template;
+      private final long _start = System.nanoTime();
+      private long _waitNanos = 0;
+      private long _rows = 0;
+      private long _bytes = 0;
+      private boolean _failed = false;
+
+      Timer(Template template) {
+         this._template = template;
+      }
+
+      /**
+       * @param nanos time spent waiting for a pooled connection
+       */
+      public void poolWait(long nanos) {
+         this._waitNanos += nanos;
+      }
+
+      /**
+       * @param rows rows returned or affected
+       */
+      public void rows(long rows) {
+         this._rows += rows;
+      }
+
+      /**
+       * @param bytes bytes of column values decoded
+       */
+      public void bytes(long bytes) {
+         this._bytes += bytes;
+      }
+
+      /**
+       * Marks the statement as failed.
+       */
+      public void failed() {
+         this._failed = true;
+      }
+
+      /**
+       * Records the statement.
+       */
+      public void end() {
+         long nanos = System.nanoTime() - this._start;
+         this._template.record(nanos, this._waitNanos, this._rows, this._bytes, this._failed);
+         if (nanos >= QueryMetrics.this._slowNanos)
+            slow(this._template, nanos, this._waitNanos, this._rows, this._failed);
+      }
+   }//end Timer
+
+   /*
+    * The live counters of one template.
+    **/
+   private static class Template {
+      final String sql;
+      final LongAdder count = new LongAdder();
+      final LongAdder errors = new LongAdder();
+      final LongAdder rows = new LongAdder();
+      final LongAdder bytes = new LongAdder();
+      final LongAdder waitNanos = new LongAdder();
+      final LongAdder totalNanos = new LongAdder();
+      final AtomicLong maxNanos = new AtomicLong();
+      final Histogram micros = new Histogram();
+
+      Template(String sql) {
+         this.sql = sql;
+      }
+
+      void record(long nanos, long wait, long rowCount, long byteCount, boolean failed) {
+         this.count.increment();
+         if (failed)
+            this.errors.increment();
+         this.rows.add(rowCount);
+         this.bytes.add(byteCount);
+         this.waitNanos.add(wait);
+         this.totalNanos.add(nanos);
+         this.micros.record(nanos / 1000L);
+         long max;
+         while (nanos > (max = this.maxNanos.get()))
+            if (this.maxNanos.compareAndSet(max, nanos))
+               break;
+      }
+
+      void reset() {
+         this.count.reset();
+         this.errors.reset();
+         this.rows.reset();
+         this.bytes.reset();
+         this.waitNanos.reset();
+         this.totalNanos.reset();
+         this.maxNanos.set(0L);
+         this.micros.reset();
+      }
+
+      TemplateStats snapshot() {
+         return new TemplateStats(this.sql, this.count.sum(), this.errors.sum(), this.rows.sum(),
+                                  this.bytes.sum(), this.waitNanos.sum() / 1000L, this.totalNanos.sum() / 1000L,
+                                  this.micros.percentile(0.50), this.micros.percentile(0.99),
+                                  this.maxNanos.get() / 1000L);
+      }
+   }//end Template
+
+   /*
+    * Log-linear histogram of non-negative values: 16 buckets per power of
+    * two, values below 16 exact.
+    **/
+   static class Histogram {
+      static final int SUB_BITS = 4;
+      static final int SUB_BUCKETS = 1 << SUB_BITS;
+      static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+      private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+
+      void record(long value) {
+         this._counts.incrementAndGet(bucket(Math.max(0L, value)));
+      }
+
+      /**
+       * @return the highest value of the bucket holding the p-th fraction of the values
+       */
+      long percentile(double p) {
+         long total = 0;
+         for (int i = 0; i < BUCKETS; ++i)
+            total += this._counts.get(i);
+         if (total == 0)
+            return 0L;
+         long rank = (long) Math.ceil(p * total);
+         long seen = 0;
+         for (int i = 0; i < BUCKETS; ++i){
+            seen += this._counts.get(i);
+            if (seen >= Math.max(1L, rank))
+               return i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+         }//end for
+         return Long.MAX_VALUE;
+      }
+
+      void reset() {
+         for (int i = 0; i < BUCKETS; ++i)
+            this._counts.set(i, 0L);
+      }
+
+      static int bucket(long v) {
+         if (v < SUB_BUCKETS)
+            return (int) v;
+         int exp = 63 - Long.numberOfLeadingZeros(v);
+         int sub = (int) ((v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+         return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+      }
+
+      static long lowerBound(int bucket) {
+         if (bucket < SUB_BUCKETS)
+            return bucket;
+         int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+         int sub = bucket % SUB_BUCKETS;
+         return ((long) (SUB_BUCKETS + sub)) << (exp - SUB_BITS);
+      }
+   }//end Histogram
+
+   /**
+    * Snapshot of the metrics of one template. Times are in microseconds.
+    */
+   public static class TemplateStats {
+      private final String _template;
+      private final long _count;
+      private final long _errors;
+      private final long _rows;
+      private final long _bytes;
+      private final long _poolWaitMicros;
+      private final long _totalMicros;
+      private final long _p50Micros;
+      private final long _p99Micros;
+      private final long _maxMicros;
+
+      TemplateStats(String template, long count, long errors, long rows, long bytes, long poolWaitMicros,
+                    long totalMicros, long p50Micros, long p99Micros, long maxMicros) {
+         this._template = template;
+         this._count = count;
+         this._errors = errors;
+         this._rows = rows;
+         this._bytes = bytes;
+         this._poolWaitMicros = poolWaitMicros;
+         this._totalMicros = totalMicros;
+         this._p50Micros = Math.min(p50Micros, maxMicros);
+         this._p99Micros = Math.min(p99Micros, maxMicros);
+         this._maxMicros = maxMicros;
+      }
+
+      public String getTemplate() { return this._template; }
+      public long getCount() { return this._count; }
+      public long getErrors() { return this._errors; }
+      public long getRows() { return this._rows; }
+      public long getBytes() { return this._bytes; }
+      public long getPoolWaitMicros() { return this._poolWaitMicros; }
+      public long getTotalMicros() { return this._totalMicros; }
+      public long getP50Micros() { return this._p50Micros; }
+      public long getP99Micros() { return this._p99Micros; }
+      public long getMaxMicros() { return this._maxMicros; }
+
+      public double getMeanMicros() {
+         return this._count == 0 ? 0.0 : (double) this._totalMicros / this._count;
+      }
+   }//end TemplateStats
+
+}//end QueryMetrics
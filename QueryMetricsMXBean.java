@@ -0,0 +1,45 @@
+import java.util.List;
+
+/**
+ * Management interface of QueryMetrics, registered with the platform
+ * MBean server as pizzastore:type=QueryMetrics,name=<database>.
+ *
+ */
+public interface QueryMetricsMXBean {
+
+   /**
+    * @return the statements run since the last reset
+    */
+   long getQueryCount();
+
+   /**
+    * @return the statements that failed since the last reset
+    */
+   long getErrorCount();
+
+   /**
+    * @return the statements slower than the slow-query threshold since the last reset
+    */
+   long getSlowQueryCount();
+
+   /**
+    * @return the slow-query threshold in milliseconds
+    */
+   long getSlowQueryThresholdMillis();
+
+   /**
+    * @return the metrics of every statement template, busiest first
+    */
+   List<QueryMetrics.TemplateStats> getTemplates();
+
+   /**
+    * @return the metrics of every statement template as a text table
+    */
+   String dump();
+
+   /**
+    * Clears every counter and histogram.
+    */
+   void reset();
+
+}//end QueryMetricsMXBean
@@ -0,0 +1,40 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class holds a fully read query result: the column names and the
+ * rows as lists of attribute values. It is immutable, so it can be shared
+ * between sessions, for example by MenuCache.
+ *
+ */
+public class QueryResult {
+
+   private final List<String> _columns;
+   private final List<List<String>> _rows;
+
+   /**
+    * @param columns the column names, in select-list order
+    * @param rows the records, each a list of attribute values
+    */
+   public QueryResult(List<String> columns, List<List<String>> rows) {
+      this._columns = Collections.unmodifiableList(columns);
+      this._rows = Collections.unmodifiableList(rows);
+   }//end QueryResult
+
+   public List<String> getColumns() {
+      return this._columns;
+   }
+
+   public List<List<String>> getRows() {
+      return this._rows;
+   }
+
+   public int size() {
+      return this._rows.size();
+   }
+
+   public boolean isEmpty() {
+      return this._rows.isEmpty();
+   }
+
+}//end QueryResult
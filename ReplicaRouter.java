@@ -0,0 +1,285 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class decides which database a statement runs on when reads are
+ * split between a primary and read replicas. Writes, and every read that
+ * is not inside a read-only route, go to the primary. Reads inside a
+ * read-only route are spread round-robin over the replicas that passed
+ * their last health check, and fall back to the primary when none did.
+ *
+ * A route is opened per handler with open() and closed when the handler
+ * returns; it is held per thread, so the data-access methods pick it up
+ * without being told. A write made inside a route is recorded on its
+ * session, and for readYourWritesMillis afterwards the reads of that
+ * session stay on the primary, so a user sees an order right after
+ * placing it even when the replicas lag behind.
+ *
+ */
+public class ReplicaRouter {
+
+   // how long the health check query may take on a replica (seconds)
+   private static final int CHECK_TIMEOUT_SECONDS = 2;
+
+   private final ConnectionPool _primary;
+   private final Replica[] _replicas;
+   private final long _maxLagMillis;
+   private final long _readYourWritesMillis;
+   private final ScheduledExecutorService _checker;
+
+   // route of the handler running on the current thread
+   private final ThreadLocal<Scope> _route = new ThreadLocal<Scope>();
+
+   private final AtomicInteger _next = new AtomicInteger();
+   private final AtomicLong _primaryReads = new AtomicLong();
+   private final AtomicLong _pinnedReads = new AtomicLong();
+   private final AtomicLong _fallbacks = new AtomicLong();
+
+   /**
+    * Creates a router and checks every replica once before returning.
+    *
+    * @param primary the pool of the primary database
+    * @param replicas JDBC URL -> pool of each replica, possibly none
+    * @param checkIntervalMillis time between two health checks of the replicas
+    * @param maxLagMillis replay lag above which a replica is skipped, 0 ignores lag
+    * @param readYourWritesMillis how long a session reads from the primary after a write, 0 never
+    */
+   public ReplicaRouter(ConnectionPool primary, Map<String, ConnectionPool> replicas,
+                        long checkIntervalMillis, long maxLagMillis, long readYourWritesMillis) {
+      this._primary = primary;
+      this._maxLagMillis = maxLagMillis;
+      this._readYourWritesMillis = readYourWritesMillis;
+      this._replicas = new Replica[replicas.size()];
+      int i = 0;
+      for (Map.Entry<String, ConnectionPool> r : replicas.entrySet())
+         this._replicas[i++] = new Replica(r.getKey(), r.getValue());
+
+      if (this._replicas.length == 0){
+         this._checker = null;
+         return;
+      }//end if
+      checkReplicas();
+      this._checker = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "pizzastore-replica-check");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = Math.max(100L, checkIntervalMillis);
+      this._checker.scheduleWithFixedDelay(this::checkReplicas, period, period, TimeUnit.MILLISECONDS);
+   }//end ReplicaRouter
+
+   /**
+    * Opens a route for the work of one handler on the current thread. The
+    * route must be closed by the same thread, normally with
+    * try-with-resources; the route that was open before is restored.
+    *
+    * @param session the session the work is done for, null for none
+    * @param readOnly whether the reads of the work may be served by a replica
+    * @return the route
+    */
+   public Scope open(Session session, boolean readOnly) {
+      Scope scope = new Scope(session, readOnly, this._route.get());
+      this._route.set(scope);
+      return scope;
+   }//end open
+
+   /**
+    * @return the route open on the current thread, null when there is none
+    */
+   public Scope current() {
+      return this._route.get();
+   }//end current
+
+   /**
+    * Borrows a connection for a read. It comes from a healthy replica when
+    * the current route is read-only and its session did not write
+    * recently, otherwise from the primary.
+    *
+    * @return a pooled connection, released to its own pool
+    * @throws java.sql.SQLException when no connection could be borrowed
+    */
+   public ConnectionPool.PooledConnection acquireRead() throws SQLException {
+      Scope scope = this._route.get();
+      if (scope == null || !scope.readOnly || this._replicas.length == 0){
+         this._primaryReads.incrementAndGet();
+         return this._primary.acquire();
+      }//end if
+      if (scope.session != null && this._readYourWritesMillis > 0
+          && System.currentTimeMillis() - scope.session.getLastWriteAt() < this._readYourWritesMillis){
+         this._pinnedReads.incrementAndGet();
+         return this._primary.acquire();
+      }//end if
+
+      int start = Math.floorMod(this._next.getAndIncrement(), this._replicas.length);
+      for (int i = 0; i < this._replicas.length; ++i){
+         Replica r = this._replicas[(start + i) % this._replicas.length];
+         if (!r.healthy)
+            continue;
+         try{
+            ConnectionPool.PooledConnection pc = r.pool.acquire();
+            r.reads.incrementAndGet();
+            return pc;
+         }catch (SQLException e){
+            // taken out of rotation until the next check succeeds
+            markDown(r, e.getMessage());
+         }//end try
+      }//end for
+      this._fallbacks.incrementAndGet();
+      return this._primary.acquire();
+   }//end acquireRead
+
+   /**
+    * Records that the current route changed the database, which keeps the
+    * reads of its session on the primary for a while.
+    */
+   public void recordWrite() {
+      Scope scope = this._route.get();
+      if (scope != null && scope.session != null)
+         scope.session.markWrite();
+   }//end recordWrite
+
+   /**
+    * @return a point-in-time copy of the routing counters and replica states
+    */
+   public Stats getStats() {
+      List<String> replicas = new ArrayList<String>();
+      for (Replica r : this._replicas)
+         replicas.add(String.format("%s %s lag=%dms reads=%d", r.url, r.healthy ? "up" : "down",
+                                    r.lagMillis, r.reads.get()));
+      return new Stats(this._primaryReads.get(), this._pinnedReads.get(), this._fallbacks.get(), replicas);
+   }//end getStats
+
+   /**
+    * Stops the health checks and closes the replica pools. The primary
+    * pool belongs to the caller and is left open.
+    */
+   public void close() {
+      if (this._checker != null)
+         this._checker.shutdownNow();
+      for (Replica r : this._replicas)
+         r.pool.close();
+   }//end close
+
+   /*
+    * Runs the health check query on every replica and updates its state.
+    * A replica is healthy when the query answers in time and, with a lag
+    * limit, its last replayed transaction is recent enough.
+    **/
+   private void checkReplicas() {
+      for (Replica r : this._replicas){
+         ConnectionPool.PooledConnection pc = null;
+         try{
+            pc = r.pool.acquire();
+            Statement stmt = pc.getConnection().createStatement();
+            stmt.setQueryTimeout(CHECK_TIMEOUT_SECONDS);
+            ResultSet rs = stmt.executeQuery(
+               "SELECT CASE WHEN pg_is_in_recovery() " +
+               "THEN COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) " +
+               "ELSE 0 END");
+            rs.next();
+            long lag = rs.getLong(1);
+            rs.close();
+            stmt.close();
+            r.lagMillis = lag;
+            if (this._maxLagMillis > 0 && lag > this._maxLagMillis)
+               markDown(r, "replay lag " + lag + " ms");
+            else
+               markUp(r);
+         }catch (SQLException | RuntimeException e){
+            markDown(r, e.getMessage());
+         }finally{
+            if (pc != null)
+               r.pool.release(pc);
+         }//end try
+      }//end for
+   }//end checkReplicas
+
+   private void markDown(Replica r, String reason) {
+      if (r.healthy || !r.checked)
+         System.err.println("Replica " + r.url + " is out of rotation: " + reason);
+      r.healthy = false;
+      r.checked = true;
+   }//end markDown
+
+   private void markUp(Replica r) {
+      if (!r.healthy && r.checked)
+         System.err.println("Replica " + r.url + " is back in rotation");
+      r.healthy = true;
+      r.checked = true;
+   }//end markUp
+
+   /**
+    * The routing of the handler running on a thread. Closing it restores
+    * the route that was open before.
+    */
+   public final class Scope implements AutoCloseable {
+      final Session session;
+      final boolean readOnly;
+      private final Scope _previous;
+
+      private Scope(Session session, boolean readOnly, Scope previous) {
+         this.session = session;
+         this.readOnly = readOnly;
+         this._previous = previous;
+      }
+
+      public void close() {
+         if (this._previous == null)
+            ReplicaRouter.this._route.remove();
+         else
+            ReplicaRouter.this._route.set(this._previous);
+      }
+   }//end Scope
+
+   /*
+    * A replica pool and its last known state.
+    **/
+   private static class Replica {
+      final String url;
+      final ConnectionPool pool;
+      final AtomicLong reads = new AtomicLong();
+      volatile boolean healthy = false;
+      volatile boolean checked = false;
+      volatile long lagMillis = 0L;
+
+      Replica(String url, ConnectionPool pool) {
+         this.url = url;
+         this.pool = pool;
+      }
+   }//end Replica
+
+   /**
+    * Snapshot of the routing counters.
+    */
+   public static class Stats {
+      public final long primaryReads;
+      public final long pinnedReads;
+      public final long fallbacks;
+      public final List<String> replicas;
+
+      Stats(long primaryReads, long pinnedReads, long fallbacks, List<String> replicas) {
+         this.primaryReads = primaryReads;
+         this.pinnedReads = pinnedReads;
+         this.fallbacks = fallbacks;
+         this.replicas = replicas;
+      }
+
+      public String toString() {
+         StringBuilder sb = new StringBuilder(String.format(
+            "routing: primaryReads=%d pinnedReads=%d fallbacks=%d", primaryReads, pinnedReads, fallbacks));
+         for (String r : replicas)
+            sb.append("\n  replica ").append(r);
+         return sb.toString();
+      }
+   }//end Stats
+
+}//end ReplicaRouter
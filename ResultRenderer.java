@@ -0,0 +1,279 @@
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class renders query results for the terminal. Rows are formatted
+ * into a reusable per-thread buffer that is written to the output stream
+ * in large chunks, instead of one print call per cell, and the column
+ * names are read from the metadata once per result.
+ *
+ * Three formats are supported: ALIGNED pads every column to the widest
+ * value seen so far (widths are computed one block of rows at a time, so
+ * memory stays bounded), TSV separates values with TABs and CSV quotes
+ * values as RFC 4180 asks. Output can be cut after rowLimit rows, and
+ * with a pageSize and a Pager the rows are shown one page at a time.
+ *
+ * A renderer can be used as the RowCallback of a streaming query; call
+ * finish() once the query is done.
+ *
+ */
+public class ResultRenderer implements RowCallback {
+
+   public enum Format { ALIGNED, TSV, CSV }
+
+   /**
+    * Decides, after every full page, whether to show the next one.
+    */
+   public interface Pager {
+      /**
+       * @param rowsShown rows rendered so far
+       * @return false to stop rendering
+       */
+      boolean nextPage(int rowsShown);
+   }//end Pager
+
+   // buffered characters are written out once the buffer holds this many
+   static final int FLUSH_THRESHOLD = 64 * 1024;
+
+   // rows per width block of ALIGNED output when not paging
+   static final int ALIGN_BLOCK_ROWS = 500;
+
+   static final String NULL_TEXT = "null";
+
+   private static final ThreadLocal<StringBuilder> BUFFERS = ThreadLocal.withInitial(
+      () -> new StringBuilder(FLUSH_THRESHOLD + 4096));
+
+   private final PrintStream _out;
+   private final Charset _charset;
+   private final Format _format;
+   private final int _pageSize;
+   private final int _rowLimit;
+   private final Pager _pager;
+   private final StringBuilder _buf = BUFFERS.get();
+
+   private String[] _columns = null;
+   private int[] _widths = null;
+   private final List<String[]> _block = new ArrayList<String[]>();
+   private int _rowCount = 0;
+   private long _bytesDecoded = 0;
+   private boolean _stopped = false;
+
+   /**
+    * @param out the stream to write to
+    * @param format the output format
+    * @param pageSize rows per page, 0 for no paging
+    * @param rowLimit the most rows rendered, 0 for no limit
+    * @param pager asked after every page whether to go on, may be null
+    */
+   public ResultRenderer(PrintStream out, Format format, int pageSize, int rowLimit, Pager pager) {
+      this._out = out;
+      this._charset = Charset.defaultCharset();
+      this._format = format;
+      this._pageSize = pageSize;
+      this._rowLimit = rowLimit;
+      this._pager = pager;
+      this._buf.setLength(0);
+   }//end ResultRenderer
+
+   public void processRow(ResultSet rs) throws SQLException {
+      if (this._columns == null){
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         String[] columns = new String[rsmd.getColumnCount ()];
+         for (int i = 0; i < columns.length; ++i)
+            columns[i] = rsmd.getColumnName(i + 1);
+         start(columns);
+      }//end if
+      String[] record = new String[this._columns.length];
+      for (int i = 0; i < record.length; ++i){
+         record[i] = rs.getString(i + 1);
+         if (record[i] != null)
+            this._bytesDecoded += record[i].length();
+      }//end for
+      row(record);
+   }//end processRow
+
+   /**
+    * @return true once the row limit was reached or the pager said stop
+    */
+   public boolean isDone() {
+      return this._stopped;
+   }//end isDone
+
+   /**
+    * Renders a result that was already read into memory.
+    *
+    * @param result the result to render
+    * @return the number of rows rendered
+    */
+   public int render(QueryResult result) {
+      if (!result.isEmpty()){
+         start(result.getColumns().toArray(new String[0]));
+         for (List<String> record : result.getRows()){
+            if (this._stopped)
+               break;
+            row(record.toArray(new String[0]));
+         }//end for
+      }//end if
+      finish();
+      return this._rowCount;
+   }//end render
+
+   /**
+    * Writes out whatever is still buffered. Must be called once the last
+    * row was handed to the renderer.
+    */
+   public void finish() {
+      renderBlock();
+      flush();
+   }//end finish
+
+   public long getBytesDecoded() {
+      return this._bytesDecoded;
+   }//end getBytesDecoded
+
+   /**
+    * @return the number of rows rendered
+    */
+   public int getRowCount() {
+      return this._rowCount;
+   }//end getRowCount
+
+   private void start(String[] columns) {
+      this._columns = columns;
+      if (this._format == Format.ALIGNED){
+         this._widths = new int[columns.length];
+         for (int i = 0; i < columns.length; ++i)
+            this._widths[i] = columns[i].length();
+      }else{
+         line(columns);
+      }//end if
+   }//end start
+
+   private void row(String[] record) {
+      ++this._rowCount;
+      if (this._format == Format.ALIGNED){
+         for (int i = 0; i < record.length; ++i){
+            record[i] = record[i] == null ? NULL_TEXT : rtrim(record[i]);
+            this._widths[i] = Math.max(this._widths[i], record[i].length());
+         }//end for
+         this._block.add(record);
+         int blockRows = this._pageSize > 0 ? this._pageSize : ALIGN_BLOCK_ROWS;
+         if (this._block.size() >= blockRows)
+            renderBlock();
+      }else{
+         line(record);
+         if (this._buf.length() >= FLUSH_THRESHOLD)
+            flush();
+      }//end if
+
+      if (this._rowLimit > 0 && this._rowCount >= this._rowLimit){
+         this._stopped = true;
+         return;
+      }//end if
+      if (this._pageSize > 0 && this._pager != null && this._rowCount % this._pageSize == 0){
+         renderBlock();
+         flush();
+         if (!this._pager.nextPage(this._rowCount))
+            this._stopped = true;
+      }//end if
+   }//end row
+
+   /*
+    * Writes the buffered ALIGNED rows, preceded by the header on the
+    * first block.
+    **/
+   private void renderBlock() {
+      if (this._format != Format.ALIGNED || this._columns == null)
+         return;
+      if (this._rowCount == this._block.size()){
+         line(this._columns);
+         for (int i = 0; i < this._widths.length; ++i){
+            if (i > 0)
+               this._buf.append("-+-");
+            repeat('-', this._widths[i]);
+         }//end for
+         this._buf.append('\n');
+      }//end if
+      for (String[] record : this._block){
+         line(record);
+         if (this._buf.length() >= FLUSH_THRESHOLD)
+            flush();
+      }//end for
+      this._block.clear();
+   }//end renderBlock
+
+   private void line(String[] values) {
+      StringBuilder buf = this._buf;
+      for (int i = 0; i < values.length; ++i){
+         String v = values[i];
+         switch (this._format){
+            case ALIGNED:
+               if (i > 0)
+                  buf.append(" | ");
+               buf.append(v);
+               if (i < values.length - 1)
+                  repeat(' ', this._widths[i] - v.length());
+               break;
+            case TSV:
+               if (i > 0)
+                  buf.append('\t');
+               buf.append(v == null ? NULL_TEXT : v);
+               break;
+            case CSV:
+               if (i > 0)
+                  buf.append(',');
+               if (v != null)
+                  csv(v);
+               break;
+         }//end switch
+      }//end for
+      buf.append('\n');
+   }//end line
+
+   private void csv(String v) {
+      boolean quote = false;
+      for (int i = 0; i < v.length() && !quote; ++i){
+         char c = v.charAt(i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }//end for
+      if (!quote){
+         this._buf.append(v);
+         return;
+      }//end if
+      this._buf.append('"');
+      for (int i = 0; i < v.length(); ++i){
+         char c = v.charAt(i);
+         if (c == '"')
+            this._buf.append('"');
+         this._buf.append(c);
+      }//end for
+      this._buf.append('"');
+   }//end csv
+
+   private void repeat(char c, int count) {
+      for (int i = 0; i < count; ++i)
+         this._buf.append(c);
+   }//end repeat
+
+   private void flush() {
+      if (this._buf.length() == 0)
+         return;
+      byte[] bytes = this._buf.toString().getBytes(this._charset);
+      this._out.write(bytes, 0, bytes.length);
+      this._out.flush();
+      this._buf.setLength(0);
+   }//end flush
+
+   private static String rtrim(String s) {
+      int end = s.length();
+      while (end > 0 && s.charAt(end - 1) == ' ')
+         --end;
+      return end == s.length() ? s : s.substring(0, end);
+   }//end rtrim
+
+}//end ResultRenderer
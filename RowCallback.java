@@ -0,0 +1,36 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Receives the rows of a streamed query one at a time. The ResultSet is
+ * only valid for the duration of the call.
+ *
+ */
+public interface RowCallback {
+
+   /**
+    * @param rs the result set, positioned on the current row
+    * @throws java.sql.SQLException when a column cannot be read
+    */
+   void processRow(ResultSet rs) throws SQLException;
+
+   /**
+    * Checked before every row; returning true stops the scan early and
+    * closes the cursor without reading the remaining rows.
+    *
+    * @return true when no more rows are wanted
+    */
+   default boolean isDone() {
+      return false;
+   }
+
+   /**
+    * Read by the query metrics once the scan is over.
+    *
+    * @return the characters of column values decoded so far, 0 when not counted
+    */
+   default long getBytesDecoded() {
+      return 0L;
+   }
+
+}//end RowCallback
@@ -0,0 +1,35 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a ResultSet to an object. Used by the streaming
+ * query API of PizzaStore, which hands rows to the mapper one at a time
+ * instead of materializing the whole result.
+ *
+ * @param <T> the type each row is mapped to
+ */
+public interface RowMapper<T> {
+
+   /**
+    * @param rs the result set, positioned on the row to map
+    * @param rowNum the 0-based number of the row
+    * @return the mapped object
+    * @throws java.sql.SQLException when a column cannot be read
+    */
+   T mapRow(ResultSet rs, int rowNum) throws SQLException;
+
+   /**
+    * Reads a text column without the blanks CHAR columns and hand-typed
+    * values are padded with.
+    *
+    * @param rs the result set, positioned on a row
+    * @param column the 1-based column
+    * @return the trimmed value, null for NULL
+    * @throws java.sql.SQLException when the column cannot be read
+    */
+   static String text(ResultSet rs, int column) throws SQLException {
+      String s = rs.getString(column);
+      return s == null ? null : s.trim();
+   }
+
+}//end RowMapper
@@ -0,0 +1,208 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class keeps the per-store, per-day sales rollups the manager
+ * dashboards read. store_daily_sales holds the orders, the revenue and
+ * the delivered orders of every store and day, store_daily_items the
+ * quantity sold of every item. Both are changed in the transaction that
+ * places an order or changes its status, so they always agree with
+ * FoodOrder and a dashboard reads one row per store and day instead of
+ * every order.
+ *
+ * The rows of a store and day are locked by every order placed there
+ * that day until its transaction ends. Rows are always locked in
+ * (storeID, day, itemName) order, so concurrent transactions wait for
+ * each other instead of deadlocking. rebuild() recomputes the rollups of
+ * a range of days from the orders, e.g. after a bulk load.
+ *
+ */
+public class SalesAggregates {
+
+   static final String CREATE_SALES =
+      "CREATE TABLE IF NOT EXISTS store_daily_sales (" +
+      "storeID INTEGER NOT NULL, " +
+      "day DATE NOT NULL, " +
+      "orders INTEGER NOT NULL DEFAULT 0, " +
+      "revenue NUMERIC(14,2) NOT NULL DEFAULT 0, " +
+      "delivered INTEGER NOT NULL DEFAULT 0, " +
+      "PRIMARY KEY (storeID, day))";
+
+   static final String CREATE_ITEMS =
+      "CREATE TABLE IF NOT EXISTS store_daily_items (" +
+      "storeID INTEGER NOT NULL, " +
+      "day DATE NOT NULL, " +
+      "itemName TEXT NOT NULL, " +
+      "quantity BIGINT NOT NULL DEFAULT 0, " +
+      "PRIMARY KEY (storeID, day, itemName))";
+
+   // the all-store dashboard reads a range of days across every store
+   static final String CREATE_DAY_INDEX =
+      "CREATE INDEX IF NOT EXISTS store_daily_sales_day_idx ON store_daily_sales (day)";
+
+   // the order status that counts as delivered
+   static final String DELIVERED = OrderStatus.DELIVERED.getLabel();
+
+   /**
+    * Creates the rollup tables and fills them from the existing orders;
+    * the step of the schema migration that introduces them.
+    *
+    * @param c the connection, inside the transaction of the migration
+    * @throws java.sql.SQLException when a statement fails
+    */
+   public static void create(Connection c) throws SQLException {
+      try (Statement stmt = c.createStatement()){
+         stmt.execute(CREATE_SALES);
+         stmt.execute(CREATE_ITEMS);
+         stmt.execute(CREATE_DAY_INDEX);
+      }//end try
+      rebuild(c, null, null);
+   }//end create
+
+   /**
+    * Adds an order placed today to the rollups.
+    *
+    * @param pc the connection, inside the transaction that inserts the order
+    * @param storeID the store the order is placed at
+    * @param total the total price of the order
+    * @param items item name to quantity
+    * @throws java.sql.SQLException when a statement fails
+    */
+   public static void recordOrder(ConnectionPool.PooledConnection pc, int storeID, BigDecimal total,
+                                  Map<String, Integer> items) throws SQLException {
+      StatementCache cache = pc.getStatementCache();
+      // CURRENT_DATE is fixed for the transaction, the day of the order's NOW()
+      PreparedStatement sales = cache.prepare(
+         "INSERT INTO store_daily_sales AS s (storeID, day, orders, revenue) VALUES (?, CURRENT_DATE, 1, ?) " +
+         "ON CONFLICT (storeID, day) DO UPDATE SET orders = s.orders + 1, revenue = s.revenue + EXCLUDED.revenue");
+      try{
+         sales.setInt(1, storeID);
+         sales.setBigDecimal(2, total);
+         sales.executeUpdate();
+      }finally{
+         cache.release(sales);
+      }//end try
+
+      PreparedStatement lines = cache.prepare(
+         "INSERT INTO store_daily_items AS s (storeID, day, itemName, quantity) VALUES (?, CURRENT_DATE, ?, ?) " +
+         "ON CONFLICT (storeID, day, itemName) DO UPDATE SET quantity = s.quantity + EXCLUDED.quantity");
+      try{
+         for (Map.Entry<String, Integer> line : new TreeMap<String, Integer>(items).entrySet()){
+            lines.setInt(1, storeID);
+            lines.setString(2, line.getKey());
+            lines.setLong(3, line.getValue());
+            lines.addBatch();
+         }//end for
+         lines.executeBatch();
+      }finally{
+         lines.clearBatch();
+         cache.release(lines);
+      }//end try
+   }//end recordOrder
+
+   /**
+    * Collects the orders that became delivered or stopped being
+    * delivered, counted per store and day, so that record() changes each
+    * rollup row once and in key order.
+    */
+   public static class DeliveredDelta {
+      private final TreeMap<Integer, TreeMap<LocalDate, int[]>> _changes =
+         new TreeMap<Integer, TreeMap<LocalDate, int[]>>();
+
+      /**
+       * Notes a status change of an order.
+       *
+       * @param storeID the store of the order
+       * @param day the day the order was placed
+       * @param previous the status before the change
+       * @param status the status after the change
+       */
+      public void add(int storeID, LocalDate day, String previous, String status) {
+         int delta = (isDelivered(status) ? 1 : 0) - (isDelivered(previous) ? 1 : 0);
+         if (delta != 0)
+            this._changes.computeIfAbsent(storeID, k -> new TreeMap<LocalDate, int[]>())
+                         .computeIfAbsent(day, k -> new int[1])[0] += delta;
+      }//end add
+
+      /**
+       * Applies the collected changes to store_daily_sales.
+       *
+       * @param pc the connection, inside the transaction that changed the statuses
+       * @throws java.sql.SQLException when a statement fails
+       */
+      public void record(ConnectionPool.PooledConnection pc) throws SQLException {
+         if (this._changes.isEmpty())
+            return;
+         StatementCache cache = pc.getStatementCache();
+         PreparedStatement stmt = cache.prepare(
+            "UPDATE store_daily_sales SET delivered = delivered + ? WHERE storeID = ? AND day = ?");
+         try{
+            for (Map.Entry<Integer, TreeMap<LocalDate, int[]>> store : this._changes.entrySet())
+               for (Map.Entry<LocalDate, int[]> day : store.getValue().entrySet()){
+                  if (day.getValue()[0] == 0)
+                     continue;
+                  stmt.setInt(1, day.getValue()[0]);
+                  stmt.setInt(2, store.getKey());
+                  stmt.setObject(3, day.getKey());
+                  stmt.addBatch();
+               }//end for
+            stmt.executeBatch();
+         }finally{
+            stmt.clearBatch();
+            cache.release(stmt);
+         }//end try
+      }//end record
+
+      private static boolean isDelivered(String status) {
+         return status != null && status.trim().equalsIgnoreCase(DELIVERED);
+      }
+   }//end DeliveredDelta
+
+   /**
+    * Recomputes the rollups of a range of days from FoodOrder and
+    * ItemsInOrder. The rollup tables are locked for the rebuild, so orders
+    * placed meanwhile wait and are added on top once it committed.
+    *
+    * @param c the connection, inside a transaction
+    * @param from the first day rebuilt, null for the first order
+    * @param to the last day rebuilt, null for the last order
+    * @return the store and day rows written
+    * @throws java.sql.SQLException when a statement fails
+    */
+   public static int rebuild(Connection c, LocalDate from, LocalDate to) throws SQLException {
+      try (Statement lock = c.createStatement()){
+         lock.execute("LOCK TABLE store_daily_sales, store_daily_items IN EXCLUSIVE MODE");
+      }//end try
+      String range = "BETWEEN COALESCE(?::date, '-infinity') AND COALESCE(?::date, 'infinity')";
+      run(c, "DELETE FROM store_daily_sales WHERE day " + range, from, to);
+      run(c, "DELETE FROM store_daily_items WHERE day " + range, from, to);
+      int rows = run(c,
+         "INSERT INTO store_daily_sales (storeID, day, orders, revenue, delivered) " +
+         "SELECT storeID, orderTimestamp::date, COUNT(*), COALESCE(SUM(totalPrice), 0), " +
+         "COUNT(*) FILTER (WHERE lower(trim(orderStatus)) = lower('" + DELIVERED + "')) " +
+         "FROM FoodOrder WHERE storeID IS NOT NULL AND orderTimestamp::date " + range + " " +
+         "GROUP BY 1, 2", from, to);
+      run(c,
+         "INSERT INTO store_daily_items (storeID, day, itemName, quantity) " +
+         "SELECT o.storeID, o.orderTimestamp::date, i.itemName, SUM(i.quantity) " +
+         "FROM FoodOrder o JOIN ItemsInOrder i ON i.orderID = o.orderID " +
+         "WHERE o.storeID IS NOT NULL AND i.itemName IS NOT NULL AND o.orderTimestamp::date " + range + " " +
+         "GROUP BY 1, 2, 3", from, to);
+      return rows;
+   }//end rebuild
+
+   private static int run(Connection c, String sql, LocalDate from, LocalDate to) throws SQLException {
+      try (PreparedStatement stmt = c.prepareStatement(sql)){
+         stmt.setObject(1, from);
+         stmt.setObject(2, to);
+         return stmt.executeUpdate();
+      }//end try
+   }//end run
+
+}//end SalesAggregates
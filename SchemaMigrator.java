@@ -0,0 +1,306 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * This class brings the database schema up to date when the application
+ * starts. Every schema change is a numbered Migration; the versions that
+ * were applied are recorded in the schema_version table, and on startup
+ * the missing ones are applied in order, each in its own transaction
+ * together with its schema_version row. A Postgres advisory lock makes
+ * concurrently starting instances wait for each other instead of applying
+ * the same migration twice.
+ *
+ * A migration that fails because a table or column it works on does not
+ * exist (e.g. on a database created from phase2.sql, whose tables are
+ * named differently) is rolled back, reported and skipped; it is tried
+ * again on the next start. Any other failure stops the migration.
+ *
+ * Whenever migrations were applied, the size of every table (with its
+ * indexes and TOAST data) before and after is printed.
+ *
+ */
+public class SchemaMigrator {
+
+   /**
+    * One schema change.
+    */
+   public interface Step {
+      /**
+       * @param c the connection, inside the transaction of the migration
+       * @throws java.sql.SQLException when a statement fails
+       */
+      void apply(Connection c) throws SQLException;
+   }//end Step
+
+   /**
+    * A numbered schema change.
+    */
+   public static class Migration {
+      final int version;
+      final String description;
+      final Step step;
+
+      public Migration(int version, String description, Step step) {
+         this.version = version;
+         this.description = description;
+         this.step = step;
+      }
+   }//end Migration
+
+   // SQLStates of a missing table and a missing column
+   static final String UNDEFINED_TABLE = "42P01";
+   static final String UNDEFINED_COLUMN = "42703";
+
+   // arbitrary key of the advisory lock held while migrating
+   static final long LOCK_KEY = 0x50697a7a61L;
+
+   // tables the application queries
+   static final List<String> TABLES = Arrays.asList("users", "items", "store", "foodorder", "itemsinorder");
+
+   // free-text columns that become TEXT; the other CHAR columns keep their length as VARCHAR
+   static final Set<String> TEXT_COLUMNS = new TreeSet<String>(Arrays.asList("favoriteitems", "ingredients", "description"));
+
+   // money columns that become NUMERIC
+   static final Set<String> MONEY_COLUMNS = new TreeSet<String>(Arrays.asList("price", "totalprice"));
+
+   private final ConnectionPool _pool;
+   private final List<Migration> _migrations;
+
+   /**
+    * @param pool the pool to borrow the migrating connection from
+    * @param migrations the migrations, in any order
+    */
+   public SchemaMigrator(ConnectionPool pool, List<Migration> migrations) {
+      this._pool = pool;
+      this._migrations = new ArrayList<Migration>(migrations);
+      this._migrations.sort((a, b) -> Integer.compare(a.version, b.version));
+   }//end SchemaMigrator
+
+   /**
+    * @return the migrations of the application schema
+    */
+   public static List<Migration> migrations() {
+      List<Migration> m = new ArrayList<Migration>();
+      // the column types go first, so the indexes are built once on the rewritten tables
+      m.add(new Migration(1, "VARCHAR and TEXT columns, NUMERIC prices", SchemaMigrator::compactColumns));
+      m.add(new Migration(2, "order history index", sql(
+         // getRecentOrders and the order history read every column, so the
+         // index carries them all and the query never visits the table;
+         // orderID breaks timestamp ties, so the (orderTimestamp, orderID)
+         // seek of OrderPage is an index range scan in either direction.
+         // Users and Items are read by their primary keys.
+         "CREATE INDEX IF NOT EXISTS foodorder_login_timestamp_id_idx " +
+         "ON FoodOrder (login, orderTimestamp DESC, orderID DESC) " +
+         "INCLUDE (storeID, totalPrice, orderStatus)")));
+      m.add(new Migration(3, "daily sales rollups", SalesAggregates::create));
+      m.add(new Migration(4, "item views", sql(
+         ViewRecorder.CREATE_VIEWS,
+         // a Views table of another design is left alone and reported
+         "SELECT phoneNum, itemName FROM Views LIMIT 0")));
+      return m;
+   }//end migrations
+
+   /**
+    * Applies every migration that is not recorded as applied yet.
+    *
+    * @return the number of migrations applied
+    * @throws java.sql.SQLException when a migration fails; the failed one is rolled back
+    */
+   public int migrate() throws SQLException {
+      ConnectionPool.PooledConnection pc = this._pool.acquire();
+      Connection c = pc.getConnection();
+      try{
+         try (Statement stmt = c.createStatement()){
+            stmt.execute(
+               "CREATE TABLE IF NOT EXISTS schema_version (" +
+               "version INTEGER PRIMARY KEY, " +
+               "description TEXT NOT NULL, " +
+               "installed_at TIMESTAMP NOT NULL DEFAULT now(), " +
+               "execution_ms BIGINT NOT NULL)");
+            stmt.execute("SELECT pg_advisory_lock(" + LOCK_KEY + ")");
+         }//end try
+         try{
+            Set<Integer> installed = installedVersions(c);
+            List<Migration> pending = new ArrayList<Migration>();
+            for (Migration m : this._migrations)
+               if (!installed.contains(m.version))
+                  pending.add(m);
+            if (pending.isEmpty())
+               return 0;
+
+            int current = installed.isEmpty() ? 0 : Collections.max(installed);
+            int latest = current;
+            int applied = 0;
+            Map<String, Long> before = tableSizes(c);
+            for (Migration m : pending){
+               try{
+                  apply(c, m);
+               }catch (SQLException e){
+                  if (!UNDEFINED_TABLE.equals(e.getSQLState()) && !UNDEFINED_COLUMN.equals(e.getSQLState()))
+                     throw e;
+                  String cause = e.getCause() == null ? e.getMessage() : e.getCause().getMessage();
+                  System.err.println("Skipped migration " + m.version + " (" + m.description + "), "
+                                     + "tried again on the next start: " + cause.replaceAll("\\s+", " "));
+                  continue;
+               }//end try
+               latest = Math.max(latest, m.version);
+               ++applied;
+            }//end for
+            if (applied > 0)
+               report(current, latest, before, tableSizes(c));
+            return applied;
+         }finally{
+            try (Statement stmt = c.createStatement()){
+               stmt.execute("SELECT pg_advisory_unlock(" + LOCK_KEY + ")");
+            }//end try
+         }//end try
+      }finally{
+         this._pool.release(pc);
+      }//end try
+   }//end migrate
+
+   private void apply(Connection c, Migration m) throws SQLException {
+      long start = System.nanoTime();
+      c.setAutoCommit(false);
+      try{
+         m.step.apply(c);
+         try (PreparedStatement ps = c.prepareStatement(
+                 "INSERT INTO schema_version (version, description, execution_ms) VALUES (?, ?, ?)")){
+            ps.setInt(1, m.version);
+            ps.setString(2, m.description);
+            ps.setLong(3, (System.nanoTime() - start) / 1000000L);
+            ps.executeUpdate();
+         }//end try
+         c.commit();
+      }catch (SQLException e){
+         c.rollback();
+         throw new SQLException("Migration " + m.version + " (" + m.description + ") failed: "
+                                + e.getMessage(), e.getSQLState(), e);
+      }finally{
+         c.setAutoCommit(true);
+      }//end try
+   }//end apply
+
+   private static Set<Integer> installedVersions(Connection c) throws SQLException {
+      Set<Integer> versions = new TreeSet<Integer>();
+      try (Statement stmt = c.createStatement();
+           ResultSet rs = stmt.executeQuery("SELECT version FROM schema_version")){
+         while (rs.next())
+            versions.add(rs.getInt(1));
+      }//end try
+      return versions;
+   }//end installedVersions
+
+   /*
+    * @return table name -> total size in bytes, for the tables of the current schema
+    **/
+   private static Map<String, Long> tableSizes(Connection c) throws SQLException {
+      Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+      try (Statement stmt = c.createStatement();
+           ResultSet rs = stmt.executeQuery(
+              "SELECT c.relname, pg_total_relation_size(c.oid) FROM pg_class c " +
+              "JOIN pg_namespace n ON n.oid = c.relnamespace " +
+              "WHERE c.relkind = 'r' AND n.nspname = current_schema() AND c.relname <> 'schema_version' " +
+              "ORDER BY c.relname")){
+         while (rs.next())
+            sizes.put(rs.getString(1), rs.getLong(2));
+      }//end try
+      return sizes;
+   }//end tableSizes
+
+   private static void report(int from, int to, Map<String, Long> before, Map<String, Long> after) {
+      System.out.println("Migrated schema from version " + from + " to " + to);
+      System.out.println(String.format("  %-20s %12s %12s", "table", "before", "after"));
+      long totalBefore = 0, totalAfter = 0;
+      for (Map.Entry<String, Long> e : after.entrySet()){
+         long b = before.getOrDefault(e.getKey(), 0L);
+         long a = e.getValue();
+         totalBefore += b;
+         totalAfter += a;
+         System.out.println(String.format("  %-20s %12s %12s", e.getKey(), size(b), size(a)));
+      }//end for
+      System.out.println(String.format("  %-20s %12s %12s", "total", size(totalBefore), size(totalAfter)));
+   }//end report
+
+   private static String size(long bytes) {
+      if (bytes < 1024)
+         return bytes + " B";
+      if (bytes < 1024 * 1024)
+         return String.format("%.1f kB", bytes / 1024.0);
+      return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+   }//end size
+
+   /*
+    * @return a step that runs the statements in order
+    **/
+   static Step sql(String... statements) {
+      return c -> {
+         try (Statement stmt = c.createStatement()){
+            for (String s : statements)
+               stmt.execute(s);
+         }//end try
+      };
+   }//end sql
+
+   /*
+    * Turns the blank-padded CHAR columns of the application tables into
+    * VARCHAR of the same length (free text into TEXT), which drops the
+    * padding from every stored value, and moves floating point prices to
+    * NUMERIC(10,2). The column types are read from the catalog, so
+    * databases that were created with other widths, or that are already
+    * converted, are handled too. Every table is rewritten by a single
+    * ALTER TABLE. Nothing is changed unless all the tables exist.
+    **/
+   private static void compactColumns(Connection c) throws SQLException {
+      try (PreparedStatement ps = c.prepareStatement(
+              "SELECT string_agg(t, ', ') FROM unnest(?::text[]) t WHERE to_regclass(t) IS NULL")){
+         ps.setArray(1, c.createArrayOf("text", TABLES.toArray()));
+         try (ResultSet rs = ps.executeQuery()){
+            if (rs.next() && rs.getString(1) != null)
+               throw new SQLException("There is no table " + rs.getString(1), UNDEFINED_TABLE);
+         }//end try
+      }//end try
+
+      Map<String, List<String>> changes = new LinkedHashMap<String, List<String>>();
+      try (PreparedStatement ps = c.prepareStatement(
+              "SELECT table_name, column_name, data_type, character_maximum_length " +
+              "FROM information_schema.columns " +
+              "WHERE table_schema = current_schema() AND table_name = ANY(?) " +
+              "AND data_type IN ('character', 'real', 'double precision') " +
+              "ORDER BY table_name, ordinal_position")){
+         ps.setArray(1, c.createArrayOf("text", TABLES.toArray()));
+         try (ResultSet rs = ps.executeQuery()){
+            while (rs.next()){
+               String table = rs.getString(1);
+               String column = rs.getString(2);
+               String type;
+               if (rs.getString(3).equals("character"))
+                  type = TEXT_COLUMNS.contains(column) ? "TEXT" : "VARCHAR(" + rs.getInt(4) + ")";
+               else if (MONEY_COLUMNS.contains(column))
+                  type = "NUMERIC(10,2)";
+               else
+                  continue;
+               changes.computeIfAbsent(table, t -> new ArrayList<String>())
+                      .add("ALTER COLUMN " + column + " TYPE " + type);
+            }//end while
+         }//end try
+      }//end try
+
+      try (Statement stmt = c.createStatement()){
+         for (Map.Entry<String, List<String>> e : changes.entrySet())
+            stmt.execute("ALTER TABLE " + e.getKey() + " " + String.join(", ", e.getValue()));
+      }//end try
+   }//end compactColumns
+
+}//end SchemaMigrator
@@ -0,0 +1,101 @@
+/**
+ * This class describes an authenticated user session. It is created by
+ * LogIn and passed to every handler, so handlers know who is acting and
+ * with which role without asking the database again.
+ *
+ * The phone number and role are updated in place by SessionRegistry when
+ * a profile or user update changes them. The time of the last write made
+ * on behalf of the session is kept so that its reads can stay on the
+ * primary database for a while after it (see ReplicaRouter).
+ *
+ */
+public class Session {
+
+   private final String _token;
+   private final String _login;
+   private volatile String _phoneNum;
+   private volatile String _role;
+   private final long _createdAt = System.currentTimeMillis();
+   private volatile long _expiresAt;
+   private volatile boolean _revoked = false;
+   private volatile long _lastWriteAt = 0L;
+
+   Session(String token, String login, String phoneNum, String role, long expiresAt) {
+      this._token = token;
+      this._login = login;
+      this._phoneNum = phoneNum;
+      this._role = role;
+      this._expiresAt = expiresAt;
+   }//end Session
+
+   public String getToken() {
+      return this._token;
+   }
+
+   public String getLogin() {
+      return this._login;
+   }
+
+   public String getPhoneNum() {
+      return this._phoneNum;
+   }
+
+   public String getRole() {
+      return this._role;
+   }
+
+   public long getCreatedAt() {
+      return this._createdAt;
+   }
+
+   public long getExpiresAt() {
+      return this._expiresAt;
+   }
+
+   /**
+    * @return when the session last changed the database, 0 when it never did
+    */
+   public long getLastWriteAt() {
+      return this._lastWriteAt;
+   }
+
+   public boolean isManager() {
+      return "manager".equalsIgnoreCase(this._role);
+   }
+
+   public boolean isDriver() {
+      return "driver".equalsIgnoreCase(this._role);
+   }
+
+   /**
+    * @return true until the session expired, was closed or was revoked
+    */
+   public boolean isActive() {
+      return !this._revoked && System.currentTimeMillis() < this._expiresAt;
+   }
+
+   void setPhoneNum(String phoneNum) {
+      this._phoneNum = phoneNum;
+   }
+
+   void setRole(String role) {
+      this._role = role;
+   }
+
+   void extendTo(long expiresAt) {
+      this._expiresAt = expiresAt;
+   }
+
+   void markWrite() {
+      this._lastWriteAt = System.currentTimeMillis();
+   }
+
+   void revoke() {
+      this._revoked = true;
+   }
+
+   public String toString() {
+      return this._login + " (" + this._role + ")";
+   }
+
+}//end Session
@@ -0,0 +1,117 @@
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps every live Session, keyed by its token. Sessions expire
+ * after ttlMillis without activity. Profile and user updates report role
+ * and phone number changes here so that sessions of the affected login see
+ * them immediately, and deleting a user revokes its sessions.
+ *
+ */
+public class SessionRegistry {
+
+   private final long _ttlMillis;
+   private final ConcurrentHashMap<String, Session> _sessions = new ConcurrentHashMap<String, Session>();
+
+   /**
+    * @param ttlMillis idle time after which a session expires
+    */
+   public SessionRegistry(long ttlMillis) {
+      this._ttlMillis = ttlMillis;
+   }//end SessionRegistry
+
+   /**
+    * Opens a session for a user whose credentials were just checked.
+    *
+    * @param login the user login
+    * @param phoneNum the user phone number
+    * @param role the user role
+    * @return the new session
+    */
+   public Session open(String login, String phoneNum, String role) {
+      purgeExpired();
+      Session session = new Session(UUID.randomUUID().toString(), login, phoneNum, role,
+                                    System.currentTimeMillis() + this._ttlMillis);
+      this._sessions.put(session.getToken(), session);
+      return session;
+   }//end open
+
+   /**
+    * @param token the session token
+    * @return the live session with that token, or null
+    */
+   public Session get(String token) {
+      Session session = this._sessions.get(token);
+      return touch(session) ? session : null;
+   }//end get
+
+   /**
+    * Extends an active session by another ttl.
+    *
+    * @param session the session to extend
+    * @return false when the session has expired or was revoked
+    */
+   public boolean touch(Session session) {
+      if (session == null)
+         return false;
+      if (!session.isActive()){
+         this._sessions.remove(session.getToken(), session);
+         return false;
+      }//end if
+      session.extendTo(System.currentTimeMillis() + this._ttlMillis);
+      return true;
+   }//end touch
+
+   /**
+    * Ends a session, e.g. on log out.
+    *
+    * @param session the session to end
+    */
+   public void close(Session session) {
+      if (session == null)
+         return;
+      session.revoke();
+      this._sessions.remove(session.getToken(), session);
+   }//end close
+
+   /**
+    * Applies a role change to every session of the login.
+    */
+   public void updateRole(String login, String role) {
+      for (Session session : this._sessions.values())
+         if (session.getLogin().equals(login))
+            session.setRole(role);
+   }//end updateRole
+
+   /**
+    * Applies a phone number change to every session of the login.
+    */
+   public void updatePhoneNum(String login, String phoneNum) {
+      for (Session session : this._sessions.values())
+         if (session.getLogin().equals(login))
+            session.setPhoneNum(phoneNum);
+   }//end updatePhoneNum
+
+   /**
+    * Ends every session of the login, e.g. when the user is deleted.
+    */
+   public void revoke(String login) {
+      for (Session session : this._sessions.values())
+         if (session.getLogin().equals(login))
+            close(session);
+   }//end revoke
+
+   /**
+    * @return the number of live sessions
+    */
+   public int size() {
+      return this._sessions.size();
+   }//end size
+
+   private void purgeExpired() {
+      for (Session session : this._sessions.values())
+         if (!session.isActive())
+            this._sessions.remove(session.getToken(), session);
+   }//end purgeExpired
+
+}//end SessionRegistry
@@ -0,0 +1,145 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the most recently used PreparedStatements of one
+ * physical connection, keyed by their SQL template. Reusing the same
+ * PreparedStatement lets the driver switch to a named server-side
+ * statement, so Postgres parses and plans the template once per
+ * connection instead of once per call.
+ *
+ * A cache belongs to exactly one connection and is only touched by the
+ * session that currently borrowed that connection, so it needs no locking.
+ * Statements handed out by prepare() are owned by the cache and must not
+ * be closed by the caller.
+ *
+ */
+public class StatementCache {
+
+   private final Connection _connection;
+   private final int _capacity;
+   private final Counters _counters;
+
+   // access-ordered so the eldest entry is the least recently used one
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   /**
+    * Creates an empty cache for the given connection.
+    *
+    * @param connection the connection the statements are prepared on
+    * @param capacity maximum number of statements kept open
+    * @param counters hit/miss counters shared by all caches of a pool
+    */
+   public StatementCache(Connection connection, int capacity, Counters counters) {
+      this._connection = connection;
+      this._capacity = capacity;
+      this._counters = counters;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= StatementCache.this._capacity)
+               return false;
+            StatementCache.this._counters.evictions.incrementAndGet();
+            closeQuietly(eldest.getValue());
+            return true;
+         }
+      };
+   }//end StatementCache
+
+   /**
+    * Returns the cached PreparedStatement for the SQL template, preparing
+    * it on a miss. Parameters left over from a previous use are cleared.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @return a ready to bind statement owned by this cache
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement ps = this._statements.get(sql);
+      if (ps != null && !ps.isClosed()){
+         this._counters.hits.incrementAndGet();
+         ps.clearParameters();
+         return ps;
+      }//end if
+
+      this._counters.misses.incrementAndGet();
+      ps = this._connection.prepareStatement(sql);
+      if (this._capacity > 0)
+         this._statements.put(sql, ps);
+      return ps;
+   }//end prepare
+
+   /**
+    * Hands a statement obtained from prepare() back. Cached statements stay
+    * open for the next call; with caching disabled the statement is closed.
+    *
+    * @param ps a statement returned by prepare()
+    */
+   public void release(PreparedStatement ps) {
+      if (this._capacity <= 0)
+         closeQuietly(ps);
+   }//end release
+
+   /**
+    * @return the number of statements currently held
+    */
+   public int size() {
+      return this._statements.size();
+   }//end size
+
+   /**
+    * Closes every cached statement.
+    */
+   public void close() {
+      Iterator<PreparedStatement> it = this._statements.values().iterator();
+      while (it.hasNext()){
+         closeQuietly(it.next());
+         it.remove();
+      }//end while
+   }//end close
+
+   private static void closeQuietly(PreparedStatement ps) {
+      try{
+         ps.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+   /**
+    * Hit, miss and eviction counters, shared by every cache of a pool.
+    */
+   public static class Counters {
+      final AtomicLong hits = new AtomicLong();
+      final AtomicLong misses = new AtomicLong();
+      final AtomicLong evictions = new AtomicLong();
+
+      public long getHits() {
+         return this.hits.get();
+      }
+
+      public long getMisses() {
+         return this.misses.get();
+      }
+
+      public long getEvictions() {
+         return this.evictions.get();
+      }
+
+      public double getHitRatio() {
+         long h = getHits();
+         long total = h + getMisses();
+         return total == 0 ? 0.0 : (double) h / total;
+      }
+
+      public String toString() {
+         return String.format("statements: hits=%d misses=%d evictions=%d hitRatio=%.3f",
+                              getHits(), getMisses(), getEvictions(), getHitRatio());
+      }
+   }//end Counters
+
+}//end StatementCache
@@ -0,0 +1,34 @@
+/**
+ * One row of Store, read with typed accessors instead of as strings.
+ *
+ * @param open isOpen read as a flag: yes, y, true, t, 1 and open are open
+ * @param reviewScore NaN when the store has no score
+ */
+public record Store(int storeID, String address, String city, String state, boolean open, float reviewScore) {
+
+   // the select list MAPPER reads, by position
+   public static final String COLUMNS = "storeID, address, city, state, isOpen, reviewScore";
+
+   public static final RowMapper<Store> MAPPER = (rs, rowNum) -> {
+      // a REAL kept as float prints 4.1 as 4.1, widened to double it is 4.099999904632568
+      float score = rs.getFloat(6);
+      // wasNull() answers for the column read last
+      boolean noScore = rs.wasNull();
+      boolean open = isOpen(rs.getString(5));
+      return new Store(rs.getInt(1), RowMapper.text(rs, 2), RowMapper.text(rs, 3), RowMapper.text(rs, 4),
+                       open, noScore ? Float.NaN : score);
+   };
+
+   static boolean isOpen(String s) {
+      if (s == null)
+         return false;
+      s = s.trim().toLowerCase();
+      return s.equals("yes") || s.equals("y") || s.equals("true") || s.equals("t") || s.equals("1") || s.equals("open");
+   }//end isOpen
+
+   public String toString() {
+      return this.storeID + " " + this.address + ", " + this.city + ", " + this.state
+             + (this.open ? " (open)" : " (closed)");
+   }
+
+}//end Store
@@ -0,0 +1,318 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class answers store lookups such as "open stores in Riverside, CA,
+ * best rated first" from memory. Every store has a slot; there is a
+ * bitmap of the slots of every state and of every city, one of the open
+ * stores, and the slots ordered by reviewScore. A lookup intersects the
+ * bitmaps and walks the rating order, without touching the database.
+ *
+ * The index is immutable and replaced as a whole, so lookups never lock.
+ * It is refreshed in the background from the rows that changed since the
+ * last refresh: every refresh remembers the oldest transaction still
+ * running when it read, and the next one only reads rows whose xmin is
+ * not older than that. Deleted rows leave no xmin behind, so a changed
+ * row count (or a wrapped around transaction counter) reloads the whole
+ * table instead.
+ *
+ */
+public class StoreLocator {
+
+   // the store list as the console shows it
+   static final List<String> COLUMNS = Arrays.asList("storeid", "address", "city", "state", "isopen", "reviewscore");
+
+   private final ConnectionPool _pool;
+   private final ScheduledExecutorService _refresher;
+
+   // the current index, replaced by every refresh that found changes
+   private volatile Index _index = Index.EMPTY;
+
+   // metrics
+   private final AtomicLong _lookups = new AtomicLong();
+   private final AtomicLong _refreshes = new AtomicLong();
+   private final AtomicLong _reloads = new AtomicLong();
+   private final AtomicLong _rowsRead = new AtomicLong();
+
+   /**
+    * Loads every store and starts the background refresh.
+    *
+    * @param pool the pool the stores are read through
+    * @param refreshMillis time between two refreshes, 0 or less refreshes only on request
+    * @throws java.sql.SQLException when the stores cannot be loaded
+    */
+   public StoreLocator(ConnectionPool pool, long refreshMillis) throws SQLException {
+      this._pool = pool;
+      reload();
+      if (refreshMillis <= 0){
+         this._refresher = null;
+         return;
+      }//end if
+      this._refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "pizzastore-store-locator");
+         t.setDaemon(true);
+         return t;
+      });
+      this._refresher.scheduleWithFixedDelay(() -> {
+         try{
+            refresh();
+         }catch (SQLException | RuntimeException e){
+            System.err.println("Store locator refresh failed: " + e.getMessage());
+         }//end try
+      }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+   }//end StoreLocator
+
+   /**
+    * Finds stores, best rated first. State and city are matched ignoring
+    * case and surrounding blanks.
+    *
+    * @param state the state, null for every state
+    * @param city the city, null for every city of the state
+    * @param openOnly only return open stores
+    * @param limit the most stores returned, 0 or less for all
+    * @return the matching stores
+    */
+   public List<Store> find(String state, String city, boolean openOnly, int limit) {
+      this._lookups.incrementAndGet();
+      Index index = this._index;
+      BitSet match;
+      if (city != null)
+         match = index.byCity.get(cityKey(state, city));
+      else if (state != null)
+         match = index.byState.get(key(state));
+      else
+         match = index.all;
+      List<Store> found = new ArrayList<Store>();
+      if (match == null)
+         return found;
+      if (openOnly){
+         match = (BitSet) match.clone();
+         match.and(index.open);
+      }//end if
+      int max = limit > 0 ? limit : Integer.MAX_VALUE;
+      for (int i = 0; i < index.byRating.length && found.size() < max; ++i){
+         int slot = index.byRating[i];
+         if (match.get(slot))
+            found.add(index.stores[slot]);
+      }//end for
+      return found;
+   }//end find
+
+   /**
+    * @param storeID the store
+    * @return the store, null when there is none
+    */
+   public Store get(int storeID) {
+      Integer slot = this._index.slotOf.get(storeID);
+      return slot == null ? null : this._index.stores[slot];
+   }//end get
+
+   /**
+    * @return the number of stores in the index
+    */
+   public int size() {
+      return this._index.stores.length;
+   }
+
+   /**
+    * Reads the stores changed since the last refresh and replaces the
+    * index when there were any.
+    *
+    * @throws java.sql.SQLException when the stores cannot be read
+    */
+   public synchronized void refresh() throws SQLException {
+      read(false);
+   }//end refresh
+
+   /**
+    * Reads every store and replaces the index.
+    *
+    * @throws java.sql.SQLException when the stores cannot be read
+    */
+   public synchronized void reload() throws SQLException {
+      read(true);
+   }//end reload
+
+   /**
+    * Stops the background refresh.
+    */
+   public void close() {
+      if (this._refresher != null)
+         this._refresher.shutdownNow();
+   }//end close
+
+   /**
+    * @param stores stores as returned by find()
+    * @return the stores with the columns of the store list
+    */
+   public static QueryResult toResult(List<Store> stores) {
+      List<List<String>> rows = new ArrayList<List<String>>(stores.size());
+      for (Store s : stores)
+         rows.add(Arrays.asList(String.valueOf(s.storeID()), s.address(), s.city(), s.state(),
+                                s.open() ? "yes" : "no",
+                                Float.isNaN(s.reviewScore()) ? null : String.valueOf(s.reviewScore())));
+      return new QueryResult(COLUMNS, rows);
+   }//end toResult
+
+   public String toString() {
+      return String.format("stores: %d indexed lookups=%d refreshes=%d reloads=%d rowsRead=%d",
+                           size(), this._lookups.get(), this._refreshes.get(), this._reloads.get(),
+                           this._rowsRead.get());
+   }
+
+   /*
+    * Reads the changed (or all) stores and the row count from one
+    * snapshot, together with the oldest transaction running at the time,
+    * which becomes the watermark of the next refresh.
+    **/
+   private void read(boolean all) throws SQLException {
+      Index current = this._index;
+      ConnectionPool.PooledConnection pc = this._pool.acquire();
+      try{
+         Connection c = pc.getConnection();
+         c.setAutoCommit(false);
+         while (true){
+            Statement stmt = c.createStatement();
+            stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            ResultSet rs = stmt.executeQuery(
+               "SELECT txid_snapshot_xmin(txid_current_snapshot()) % 4294967296, (SELECT COUNT(*) FROM Store)");
+            rs.next();
+            long watermark = rs.getLong(1);
+            long count = rs.getLong(2);
+            rs.close();
+            stmt.close();
+
+            // xmin is a 32 bit counter; once it wrapped around every row is read again
+            all = all || watermark < current.watermark;
+            PreparedStatement select = c.prepareStatement(
+               "SELECT " + Store.COLUMNS + " FROM Store" +
+               (all ? "" : " WHERE xmin::text::bigint >= ?"));
+            if (!all)
+               select.setLong(1, current.watermark);
+            rs = select.executeQuery();
+            List<Store> changed = new ArrayList<Store>();
+            while (rs.next())
+               changed.add(Store.MAPPER.mapRow(rs, changed.size()));
+            rs.close();
+            select.close();
+            c.commit();
+            this._rowsRead.addAndGet(changed.size());
+
+            Map<Integer, Store> stores = new LinkedHashMap<Integer, Store>();
+            if (!all)
+               for (Store s : current.stores)
+                  stores.put(s.storeID(), s);
+            for (Store s : changed)
+               stores.put(s.storeID(), s);
+            if (!all && stores.size() != count){
+               // rows were deleted, which only a full read shows
+               all = true;
+               continue;
+            }//end if
+
+            if (all)
+               this._reloads.incrementAndGet();
+            else
+               this._refreshes.incrementAndGet();
+            if (all || !changed.isEmpty())
+               this._index = new Index(stores.values(), watermark);
+            else
+               this._index = current.withWatermark(watermark);
+            return;
+         }//end while
+      }finally{
+         this._pool.release(pc);
+      }//end try
+   }//end read
+
+   private static String key(String s) {
+      return s == null ? "" : s.trim().toLowerCase();
+   }
+
+   private static String cityKey(String state, String city) {
+      return key(state) + "|" + key(city);
+   }
+
+   /*
+    * An immutable snapshot of the stores and their bitmaps. A city is
+    * looked up under "state|city", or "|city" when no state is given.
+    **/
+   private static class Index {
+      static final Index EMPTY = new Index(new ArrayList<Store>(), 0L);
+
+      final Store[] stores;
+      final Map<Integer, Integer> slotOf;
+      final Map<String, BitSet> byState;
+      final Map<String, BitSet> byCity;
+      final BitSet all;
+      final BitSet open;
+      final int[] byRating;
+      final long watermark;
+
+      Index(Iterable<Store> stores, long watermark) {
+         List<Store> list = new ArrayList<Store>();
+         for (Store s : stores)
+            list.add(s);
+         this.stores = list.toArray(new Store[0]);
+         this.slotOf = new HashMap<Integer, Integer>();
+         this.byState = new HashMap<String, BitSet>();
+         this.byCity = new HashMap<String, BitSet>();
+         this.all = new BitSet(this.stores.length);
+         this.open = new BitSet(this.stores.length);
+         for (int slot = 0; slot < this.stores.length; ++slot){
+            Store s = this.stores[slot];
+            this.slotOf.put(s.storeID(), slot);
+            this.all.set(slot);
+            if (s.open())
+               this.open.set(slot);
+            this.byState.computeIfAbsent(key(s.state()), k -> new BitSet()).set(slot);
+            this.byCity.computeIfAbsent(cityKey(s.state(), s.city()), k -> new BitSet()).set(slot);
+            this.byCity.computeIfAbsent(cityKey(null, s.city()), k -> new BitSet()).set(slot);
+         }//end for
+
+         // best rated first, unrated last, ties by storeID
+         Integer[] order = new Integer[this.stores.length];
+         for (int i = 0; i < order.length; ++i)
+            order[i] = i;
+         final Store[] st = this.stores;
+         Arrays.sort(order, Comparator.<Integer>comparingDouble(
+                               i -> Float.isNaN(st[i].reviewScore()) ? Double.POSITIVE_INFINITY : -st[i].reviewScore())
+                           .thenComparingInt(i -> st[i].storeID()));
+         this.byRating = new int[order.length];
+         for (int i = 0; i < order.length; ++i)
+            this.byRating[i] = order[i];
+         this.watermark = watermark;
+      }//end Index
+
+      private Index(Index other, long watermark) {
+         this.stores = other.stores;
+         this.slotOf = other.slotOf;
+         this.byState = other.byState;
+         this.byCity = other.byCity;
+         this.all = other.all;
+         this.open = other.open;
+         this.byRating = other.byRating;
+         this.watermark = watermark;
+      }
+
+      Index withWatermark(long watermark) {
+         return new Index(this, watermark);
+      }
+   }//end Index
+
+}//end StoreLocator
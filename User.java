@@ -0,0 +1,13 @@
+/**
+ * One row of Users, read with typed accessors instead of as strings. The
+ * password is never read into it.
+ */
+public record User(String login, String role, String favoriteItems, String phoneNum) {
+
+   // the select list MAPPER reads, by position
+   public static final String COLUMNS = "login, role, favoriteItems, phoneNum";
+
+   public static final RowMapper<User> MAPPER = (rs, rowNum) -> new User(
+      RowMapper.text(rs, 1), RowMapper.text(rs, 2), RowMapper.text(rs, 3), RowMapper.text(rs, 4));
+
+}//end User
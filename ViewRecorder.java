@@ -0,0 +1,265 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class records the items users look at in the Views table without
+ * slowing down browsing. record() only puts the view on a bounded
+ * lock-free queue; a background thread writes the queued views in
+ * batches, each one INSERT ... ON CONFLICT DO NOTHING, every flushMillis
+ * or as soon as a batch is full.
+ *
+ * Views is a set of (phoneNum, itemName) pairs, so a view already recorded
+ * is skipped in memory for windowMillis instead of being sent again. When
+ * the queue is full new views are dropped and counted: a lost view costs a
+ * suggestion, never an order. close() writes what is still queued.
+ *
+ */
+public class ViewRecorder {
+
+   static final String CREATE_VIEWS =
+      "CREATE TABLE IF NOT EXISTS Views (" +
+      "phoneNum VARCHAR(20) NOT NULL, " +
+      "itemName VARCHAR(50) NOT NULL REFERENCES Items (itemName) ON DELETE CASCADE ON UPDATE CASCADE, " +
+      "PRIMARY KEY (phoneNum, itemName))";
+
+   // views of items deleted meanwhile are left out instead of failing the batch
+   static final String INSERT_VIEWS =
+      "INSERT INTO Views (phoneNum, itemName) " +
+      "SELECT v.p, v.i FROM unnest(?::text[], ?::text[]) AS v(p, i) " +
+      "WHERE EXISTS (SELECT 1 FROM Items WHERE itemName = v.i) " +
+      "ON CONFLICT DO NOTHING";
+
+   // SQLStates of a missing table and a missing column
+   static final String UNDEFINED_TABLE = "42P01";
+   static final String UNDEFINED_COLUMN = "42703";
+
+   private final ConnectionPool _pool;
+   private final int _capacity;
+   private final int _batchSize;
+   private final long _windowMillis;
+   private final ScheduledExecutorService _flusher;
+
+   private final ConcurrentLinkedQueue<String[]> _queue = new ConcurrentLinkedQueue<String[]>();
+   private final AtomicInteger _queued = new AtomicInteger();
+   // set while a flush for a full batch is scheduled
+   private final AtomicBoolean _flushRequested = new AtomicBoolean();
+
+   // "phoneNum|itemName" -> when it was last queued
+   private final ConcurrentHashMap<String, Long> _recent = new ConcurrentHashMap<String, Long>();
+
+   private volatile boolean _closed = false;
+
+   // set when there is no Views table of this design (the migration was skipped)
+   private volatile boolean _disabled = false;
+
+   // metrics
+   private final AtomicLong _recorded = new AtomicLong();
+   private final AtomicLong _deduplicated = new AtomicLong();
+   private final AtomicLong _dropped = new AtomicLong();
+   private final AtomicLong _written = new AtomicLong();
+   private final AtomicLong _batches = new AtomicLong();
+   private final AtomicLong _failed = new AtomicLong();
+
+   /**
+    * Starts the background writer.
+    *
+    * @param pool the pool of the primary, which the views are written through
+    * @param capacity the most views queued, newer ones are dropped
+    * @param batchSize the most views written by one statement; a full batch is written at once
+    * @param flushMillis time between two writes of the queued views
+    * @param windowMillis how long a recorded view is not queued again
+    */
+   public ViewRecorder(ConnectionPool pool, int capacity, int batchSize, long flushMillis, long windowMillis) {
+      if (capacity < 1 || batchSize < 1)
+         throw new IllegalArgumentException("Invalid view queue: capacity " + capacity + ", batch " + batchSize);
+      this._pool = pool;
+      this._capacity = capacity;
+      this._batchSize = batchSize;
+      this._windowMillis = windowMillis;
+      this._flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "pizzastore-view-recorder");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = Math.max(10L, flushMillis);
+      this._flusher.scheduleWithFixedDelay(this::flushQuietly, period, period, TimeUnit.MILLISECONDS);
+   }//end ViewRecorder
+
+   /**
+    * Records that a user looked at an item. Never blocks and never touches
+    * the database.
+    *
+    * @param phoneNum the phone number of the user, as in Users
+    * @param itemName the item
+    */
+   public void record(String phoneNum, String itemName) {
+      if (phoneNum == null || itemName == null || this._closed || this._disabled)
+         return;
+      phoneNum = phoneNum.trim();
+      itemName = itemName.trim();
+      long now = System.currentTimeMillis();
+      String key = phoneNum + "|" + itemName;
+      Long last = this._recent.get(key);
+      if (last != null && now - last < this._windowMillis){
+         this._deduplicated.incrementAndGet();
+         return;
+      }//end if
+      // of two threads recording the same view, only the one that replaced the old time queues it
+      if (last == null ? this._recent.putIfAbsent(key, now) != null : !this._recent.replace(key, last, now)){
+         this._deduplicated.incrementAndGet();
+         return;
+      }//end if
+      if (this._queued.incrementAndGet() > this._capacity){
+         this._queued.decrementAndGet();
+         this._recent.remove(key, now);
+         this._dropped.incrementAndGet();
+         return;
+      }//end if
+      this._queue.add(new String[] { phoneNum, itemName });
+      this._recorded.incrementAndGet();
+      if (this._queued.get() >= this._batchSize && this._flushRequested.compareAndSet(false, true)){
+         try{
+            this._flusher.execute(this::flushQuietly);
+         }catch (RuntimeException e){
+            // closing; close() writes the queue.
+            this._flushRequested.set(false);
+         }//end try
+      }//end if
+   }//end record
+
+   /**
+    * Records that a user looked at the items of a result.
+    *
+    * @param phoneNum the phone number of the user, as in Users
+    * @param result a result whose column itemColumn holds item names
+    * @param itemColumn the 0-based column of the item names
+    */
+   public void recordAll(String phoneNum, QueryResult result, int itemColumn) {
+      for (List<String> row : result.getRows())
+         if (row.size() > itemColumn)
+            record(phoneNum, row.get(itemColumn));
+   }//end recordAll
+
+   /**
+    * Writes every queued view.
+    *
+    * @return the views written, not counting ones that were there already
+    * @throws java.sql.SQLException when a batch could not be written; its views are lost
+    */
+   public synchronized long flush() throws SQLException {
+      this._flushRequested.set(false);
+      long written = 0;
+      while (true){
+         List<String[]> batch = new ArrayList<String[]>(Math.min(this._batchSize, Math.max(1, this._queued.get())));
+         String[] view;
+         while (batch.size() < this._batchSize && (view = this._queue.poll()) != null){
+            this._queued.decrementAndGet();
+            batch.add(view);
+         }//end while
+         if (batch.isEmpty())
+            break;
+         written += write(batch);
+      }//end while
+      expire();
+      return written;
+   }//end flush
+
+   /**
+    * Stops the background writer and writes what is still queued.
+    */
+   public void close() {
+      this._closed = true;
+      this._flusher.shutdown();
+      try{
+         this._flusher.awaitTermination(5, TimeUnit.SECONDS);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+      flushQuietly();
+   }//end close
+
+   public String toString() {
+      return String.format("views: queued=%d recorded=%d deduplicated=%d dropped=%d written=%d batches=%d failed=%d",
+                           this._queued.get(), this._recorded.get(), this._deduplicated.get(), this._dropped.get(),
+                           this._written.get(), this._batches.get(), this._failed.get());
+   }//end toString
+
+   private void flushQuietly() {
+      try{
+         flush();
+      }catch (SQLException | RuntimeException e){
+         System.err.println("Writing item views failed: " + e.getMessage());
+      }//end try
+   }//end flushQuietly
+
+   /*
+    * Writes one batch with a single statement.
+    **/
+   private int write(List<String[]> batch) throws SQLException {
+      String[] phones = new String[batch.size()];
+      String[] items = new String[batch.size()];
+      for (int i = 0; i < phones.length; ++i){
+         phones[i] = batch.get(i)[0];
+         items[i] = batch.get(i)[1];
+      }//end for
+      ConnectionPool.PooledConnection pc = this._pool.acquire();
+      try{
+         Connection c = pc.getConnection();
+         StatementCache cache = pc.getStatementCache();
+         PreparedStatement stmt = cache.prepare(INSERT_VIEWS);
+         try{
+            stmt.setArray(1, c.createArrayOf("text", phones));
+            stmt.setArray(2, c.createArrayOf("text", items));
+            int written = stmt.executeUpdate();
+            this._batches.incrementAndGet();
+            this._written.addAndGet(written);
+            return written;
+         }finally{
+            cache.release(stmt);
+         }//end try
+      }catch (SQLException | RuntimeException e){
+         this._failed.addAndGet(batch.size());
+         String state = e instanceof SQLException ? ((SQLException) e).getSQLState() : null;
+         if (UNDEFINED_TABLE.equals(state) || UNDEFINED_COLUMN.equals(state)){
+            // no Views table, or one of another design such as phase2.sql's
+            System.err.println("There is no Views(phoneNum, itemName) table, item views are not recorded");
+            this._disabled = true;
+            this._queue.clear();
+            this._queued.set(0);
+            return 0;
+         }//end if
+         // written views of the batch may be recorded again
+         for (String[] view : batch)
+            this._recent.remove(view[0] + "|" + view[1]);
+         throw e;
+      }finally{
+         this._pool.release(pc);
+      }//end try
+   }//end write
+
+   /*
+    * Forgets the views recorded longer ago than the window, so the map
+    * does not grow with every view ever made.
+    **/
+   private void expire() {
+      long oldest = System.currentTimeMillis() - this._windowMillis;
+      Iterator<Map.Entry<String, Long>> it = this._recent.entrySet().iterator();
+      while (it.hasNext())
+         if (it.next().getValue() < oldest)
+            it.remove();
+   }//end expire
+
+}//end ViewRecorder
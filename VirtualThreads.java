@@ -0,0 +1,48 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class creates thread-per-task executors that run on virtual threads
+ * when the JVM supports them (Java 21 and later) and fall back to a cached
+ * pool of daemon platform threads on older JVMs, so the code still builds
+ * and runs on the Java 17 machines in the lab.
+ *
+ */
+public class VirtualThreads {
+
+   private VirtualThreads() {
+   }
+
+   /**
+    * @param name prefix for the names of fallback platform threads
+    * @return an executor starting one (virtual) thread per task
+    */
+   public static ExecutorService newThreadPerTaskExecutor(String name) {
+      try{
+         Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) factory.invoke(null);
+      }catch (ReflectiveOperationException e){
+         final AtomicInteger count = new AtomicInteger();
+         return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         });
+      }//end try
+   }//end newThreadPerTaskExecutor
+
+   /**
+    * @return true when tasks run on virtual threads
+    */
+   public static boolean isSupported() {
+      try{
+         Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return true;
+      }catch (NoSuchMethodException e){
+         return false;
+      }//end try
+   }//end isSupported
+
+}//end VirtualThreads
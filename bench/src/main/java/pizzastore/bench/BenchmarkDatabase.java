@@ -0,0 +1,155 @@
+package pizzastore.bench;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The database the benchmarks run against. By default an embedded Postgres
+ * is started with its data directory under target/, so seeded datasets
+ * survive between forks and runs. Pass -Dbench.port=<port> (and optionally
+ * -Dbench.user, -Dbench.password) to use a locally started server instead.
+ *
+ * Every dataset size gets its own database, pizzastore_<orders>, created
+ * from schema.sql and filled with generate_series on first use: 100
+ * customers own the orders in equal shares, with one line per order.
+ * Orders the benchmarks place get IDs above the seeded ones and are
+ * deleted again by removePlacedOrders, so a dataset keeps its size.
+ */
+final class BenchmarkDatabase {
+
+   static final int CUSTOMERS = 100;
+   static final int ITEMS = 50;
+   static final int STORES = 20;
+
+   private static BenchmarkDatabase instance;
+
+   private final EmbeddedPostgres _embedded;
+   private final int _port;
+   private final String _user;
+   private final String _password;
+
+   private BenchmarkDatabase(EmbeddedPostgres embedded, int port, String user, String password) {
+      this._embedded = embedded;
+      this._port = port;
+      this._user = user;
+      this._password = password;
+   }
+
+   /**
+    * @return the shared database of this JVM, started on first use
+    */
+   static synchronized BenchmarkDatabase get() throws IOException {
+      if (instance == null){
+         String port = System.getProperty("bench.port");
+         if (port != null){
+            instance = new BenchmarkDatabase(null, Integer.parseInt(port),
+                                             System.getProperty("bench.user", "postgres"),
+                                             System.getProperty("bench.password", ""));
+         }else{
+            File dataDir = new File(System.getProperty("bench.dataDir", "target/pgdata"));
+            EmbeddedPostgres pg = EmbeddedPostgres.builder()
+                                                  .setDataDirectory(dataDir)
+                                                  .setCleanDataDirectory(false)
+                                                  .start();
+            instance = new BenchmarkDatabase(pg, pg.getPort(), "postgres", "");
+         }//end if
+      }//end if
+      return instance;
+   }
+
+   int getPort() {
+      return this._port;
+   }
+
+   String getUser() {
+      return this._user;
+   }
+
+   String getPassword() {
+      return this._password;
+   }
+
+   /**
+    * Creates and seeds the database of a dataset size unless it exists.
+    *
+    * @param orders the number of orders in the dataset
+    * @return the database name
+    */
+   String seed(int orders) throws SQLException, IOException {
+      String dbname = "pizzastore_" + orders;
+      try (Connection c = connect("postgres"); Statement stmt = c.createStatement()){
+         ResultSet rs = stmt.executeQuery("SELECT 1 FROM pg_database WHERE datname = '" + dbname + "'");
+         if (!rs.next())
+            stmt.executeUpdate("CREATE DATABASE " + dbname);
+      }
+
+      try (Connection c = connect(dbname); Statement stmt = c.createStatement()){
+         stmt.execute(readSchema());
+         stmt.execute("CREATE TABLE IF NOT EXISTS BenchSeed (orders BIGINT NOT NULL)");
+         ResultSet rs = stmt.executeQuery("SELECT orders FROM BenchSeed");
+         if (rs.next() && rs.getLong(1) == orders){
+            // left behind by a run that did not get to its teardown
+            removePlacedOrders(dbname, orders);
+            return dbname;
+         }
+
+         System.out.println("Seeding " + dbname + " with " + orders + " orders...");
+         // CASCADE also empties the tables that reference these, e.g. Views
+         stmt.execute("TRUNCATE ItemsInOrder, FoodOrder, Users, Items, Store, BenchSeed CASCADE");
+         stmt.execute("INSERT INTO Users (login, password, role, favoriteItems, phoneNum) "
+                      + "SELECT 'user' || g, 'pw', 'customer', '', lpad(g::text, 10, '0') "
+                      + "FROM generate_series(1, " + CUSTOMERS + ") g");
+         stmt.execute("INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) "
+                      + "SELECT 'item' || g, 'cheese, tomato, basil', 'entree', 5 + g % 10, 'item number ' || g "
+                      + "FROM generate_series(1, " + ITEMS + ") g");
+         stmt.execute("INSERT INTO Store (storeID, address, city, state, isOpen, reviewScore) "
+                      + "SELECT g, g || ' Main St', 'Riverside', 'CA', 'yes', 3 + (g % 20) / 10.0 "
+                      + "FROM generate_series(1, " + STORES + ") g");
+         stmt.execute("INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) "
+                      + "SELECT g, 'user' || (1 + g % " + CUSTOMERS + "), 1 + g % " + STORES + ", "
+                      + "5 + g % 10, now() - g * interval '1 minute', 'Delivered' "
+                      + "FROM generate_series(1, " + orders + ") g");
+         stmt.execute("INSERT INTO ItemsInOrder (orderID, itemName, quantity) "
+                      + "SELECT g, 'item' || (1 + g % " + ITEMS + "), 1 "
+                      + "FROM generate_series(1, " + orders + ") g");
+         stmt.execute("INSERT INTO BenchSeed VALUES (" + orders + ")");
+         stmt.execute("ANALYZE");
+      }
+      return dbname;
+   }
+
+   /**
+    * Deletes the orders placed on top of a seeded dataset.
+    *
+    * @param dbname the database of the dataset
+    * @param orders the number of orders it was seeded with
+    * @return the number of orders deleted
+    */
+   int removePlacedOrders(String dbname, int orders) throws SQLException {
+      try (Connection c = connect(dbname); Statement stmt = c.createStatement()){
+         stmt.executeUpdate("DELETE FROM ItemsInOrder WHERE orderID > " + orders);
+         return stmt.executeUpdate("DELETE FROM FoodOrder WHERE orderID > " + orders);
+      }
+   }
+
+   private Connection connect(String dbname) throws SQLException {
+      return DriverManager.getConnection("jdbc:postgresql://localhost:" + this._port + "/" + dbname,
+                                         this._user, this._password);
+   }
+
+   private static String readSchema() throws IOException {
+      try (InputStream in = BenchmarkDatabase.class.getResourceAsStream("/schema.sql")){
+         return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+      }
+   }
+
+}
@@ -0,0 +1,28 @@
+package pizzastore.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. Accepts the usual JMH command line and
+ * always attaches the GC profiler, so allocation rates of the
+ * result-materialization paths are part of every report.
+ */
+public final class BenchmarkMain {
+
+   private BenchmarkMain() {
+   }
+
+   public static void main(String[] args) throws Exception {
+      CommandLineOptions cmd = new CommandLineOptions(args);
+      Options options = new OptionsBuilder()
+            .parent(cmd)
+            .addProfiler(GCProfiler.class)
+            .build();
+      new Runner(options).run();
+   }
+
+}
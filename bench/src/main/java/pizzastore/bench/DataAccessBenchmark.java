@@ -0,0 +1,128 @@
+package pizzastore.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the PizzaStore data-access layer against seeded datasets of
+ * 10k, 1M and 10M orders: materializing and printing the order history of
+ * one customer (1% of all orders), reading the first and a deep page of
+ * that history, placing an order and logging in.
+ *
+ * Run through BenchmarkMain, which adds the GC profiler so every result
+ * also reports gc.alloc.rate.norm, the bytes allocated per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DataAccessBenchmark {
+
+   private static final String HISTORY = "SELECT * FROM FoodOrder WHERE login = ?;";
+
+   private static final int PAGE_SIZE = 10;
+
+   // the deep page benchmark reads this page, or the last one of smaller histories
+   private static final int DEEP_PAGE = 1000;
+
+   @Param({"10000", "1000000", "10000000"})
+   public int orders;
+
+   private BenchmarkDatabase db;
+   private String dbname;
+   private PizzaStoreHandle esql;
+   private PrintStream stdout;
+   private String deepCursor;
+
+   @Setup(Level.Trial)
+   public void setup() throws Throwable {
+      this.db = BenchmarkDatabase.get();
+      this.dbname = this.db.seed(this.orders);
+      this.esql = new PizzaStoreHandle(this.dbname, this.db.getPort(), this.db.getUser(), this.db.getPassword());
+
+      // walk to the deep page once; the benchmark then seeks to it directly
+      String cursor = null;
+      for (int page = 1; page < DEEP_PAGE; ++page){
+         String next = this.esql.orderPage("user1", cursor, PAGE_SIZE);
+         if (next == null)
+            break;
+         cursor = next;
+      }
+      this.deepCursor = cursor;
+
+      // executeQueryAndPrintResult writes to standard out; measure the
+      // formatting, not the terminal
+      this.stdout = System.out;
+      System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+   }
+
+   // placeOrder would otherwise grow the dataset from one iteration (and
+   // one run) to the next
+   @TearDown(Level.Iteration)
+   public void removePlacedOrders() throws Throwable {
+      this.db.removePlacedOrders(this.dbname, this.orders);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws Throwable {
+      System.setOut(this.stdout);
+      this.esql.cleanup();
+   }
+
+   @Benchmark
+   public List<List<String>> executeQueryAndReturnResult() throws Throwable {
+      return this.esql.executeQueryAndReturnResult(HISTORY, "user1");
+   }
+
+   @Benchmark
+   public int executeQueryAndPrintResult() throws Throwable {
+      return this.esql.executeQueryAndPrintResult(HISTORY, "user1");
+   }
+
+   @Benchmark
+   public String firstOrderPage() throws Throwable {
+      return this.esql.orderPage("user1", null, PAGE_SIZE);
+   }
+
+   @Benchmark
+   public String deepOrderPage() throws Throwable {
+      return this.esql.orderPage("user1", this.deepCursor, PAGE_SIZE);
+   }
+
+   @Benchmark
+   public int placeOrder() throws Throwable {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      Map<String, Integer> cart = new LinkedHashMap<String, Integer>();
+      for (int i = 0; i < 3; ++i)
+         cart.merge("item" + (1 + random.nextInt(BenchmarkDatabase.ITEMS)), 1, Integer::sum);
+      return this.esql.submitOrder("user" + (1 + random.nextInt(BenchmarkDatabase.CUSTOMERS)),
+                                   1 + random.nextInt(BenchmarkDatabase.STORES), cart);
+   }
+
+   @Benchmark
+   public boolean login() throws Throwable {
+      return this.esql.login("user" + (1 + ThreadLocalRandom.current().nextInt(BenchmarkDatabase.CUSTOMERS)), "pw");
+   }
+
+}
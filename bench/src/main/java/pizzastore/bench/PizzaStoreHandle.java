@@ -0,0 +1,101 @@
+package pizzastore.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calls into PizzaStore, which lives in the default package. Java code in
+ * a named package cannot name default-package classes and JMH refuses
+ * benchmarks in the default package, so the benchmarks go through these
+ * method handles. They are static finals, so the JIT inlines them like
+ * direct calls.
+ */
+final class PizzaStoreHandle {
+
+   private static final MethodHandle NEW;
+   private static final MethodHandle RETURN_RESULT;
+   private static final MethodHandle PRINT_RESULT;
+   private static final MethodHandle SUBMIT_ORDER;
+   private static final MethodHandle GET_ORDER_PAGE;
+   private static final MethodHandle NEXT_CURSOR;
+   private static final MethodHandle AUTHENTICATE;
+   private static final MethodHandle GET_SESSIONS;
+   private static final MethodHandle CLOSE_SESSION;
+   private static final MethodHandle CLEANUP;
+
+   static {
+      try{
+         MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+         Class<?> store = Class.forName("PizzaStore");
+         Class<?> session = Class.forName("Session");
+         Class<?> registry = Class.forName("SessionRegistry");
+         Class<?> page = Class.forName("OrderPage");
+         NEW = lookup.findConstructor(store, MethodType.methodType(void.class,
+               String.class, String.class, String.class, String.class));
+         RETURN_RESULT = lookup.findVirtual(store, "executeQueryAndReturnResult",
+               MethodType.methodType(List.class, String.class, Object[].class));
+         PRINT_RESULT = lookup.findVirtual(store, "executeQueryAndPrintResult",
+               MethodType.methodType(int.class, String.class, Object[].class));
+         SUBMIT_ORDER = lookup.findVirtual(store, "submitOrder",
+               MethodType.methodType(int.class, String.class, int.class, Map.class));
+         GET_ORDER_PAGE = lookup.findVirtual(store, "getOrderPage",
+               MethodType.methodType(page, String.class, String.class, int.class));
+         NEXT_CURSOR = lookup.findVirtual(page, "getNextCursor", MethodType.methodType(String.class));
+         AUTHENTICATE = lookup.findVirtual(store, "authenticate",
+               MethodType.methodType(session, String.class, String.class));
+         GET_SESSIONS = lookup.findVirtual(store, "getSessions", MethodType.methodType(registry));
+         CLOSE_SESSION = lookup.findVirtual(registry, "close", MethodType.methodType(void.class, session));
+         CLEANUP = lookup.findVirtual(store, "cleanup", MethodType.methodType(void.class));
+      }catch (ReflectiveOperationException e){
+         throw new ExceptionInInitializerError(e);
+      }//end try
+   }
+
+   private final Object _esql;
+
+   PizzaStoreHandle(String dbname, int port, String user, String passwd) throws Throwable {
+      this._esql = NEW.invoke(dbname, String.valueOf(port), user, passwd);
+   }
+
+   @SuppressWarnings("unchecked")
+   List<List<String>> executeQueryAndReturnResult(String query, Object... params) throws Throwable {
+      return (List<List<String>>) RETURN_RESULT.invoke(this._esql, query, params);
+   }
+
+   int executeQueryAndPrintResult(String query, Object... params) throws Throwable {
+      return (int) PRINT_RESULT.invoke(this._esql, query, params);
+   }
+
+   int submitOrder(String login, int storeID, Map<String, Integer> items) throws Throwable {
+      return (int) SUBMIT_ORDER.invoke(this._esql, login, storeID, items);
+   }
+
+   /**
+    * Reads one page of the order history.
+    *
+    * @return the cursor of the following page, null on the last page
+    */
+   String orderPage(String login, String cursor, int pageSize) throws Throwable {
+      return (String) NEXT_CURSOR.invoke(GET_ORDER_PAGE.invoke(this._esql, login, cursor, pageSize));
+   }
+
+   /**
+    * Runs the login path and closes the session again so the registry does
+    * not grow during the benchmark.
+    */
+   boolean login(String login, String password) throws Throwable {
+      Object session = AUTHENTICATE.invoke(this._esql, login, password);
+      if (session == null)
+         return false;
+      CLOSE_SESSION.invoke(GET_SESSIONS.invoke(this._esql), session);
+      return true;
+   }
+
+   void cleanup() throws Throwable {
+      CLEANUP.invoke(this._esql);
+   }
+
+}
@@ -0,0 +1,51 @@
+-- Tables queried by PizzaStore.java, used to seed the benchmark databases.
+-- (phase2.sql holds the phase 2 ER design, whose table and column names
+-- differ from the ones the application queries.)
+CREATE TABLE IF NOT EXISTS Users (
+    login CHAR(50) NOT NULL,
+    password CHAR(30) NOT NULL,
+    role CHAR(20) NOT NULL,
+    favoriteItems CHAR(400),
+    phoneNum CHAR(20) UNIQUE,
+    PRIMARY KEY (login)
+);
+
+CREATE TABLE IF NOT EXISTS Items (
+    itemName CHAR(50) NOT NULL,
+    ingredients CHAR(300) NOT NULL,
+    typeOfItem CHAR(40) NOT NULL,
+    price REAL NOT NULL,
+    description CHAR(400),
+    PRIMARY KEY (itemName)
+);
+
+CREATE TABLE IF NOT EXISTS Store (
+    storeID INTEGER NOT NULL,
+    address CHAR(40) NOT NULL,
+    city CHAR(40) NOT NULL,
+    state CHAR(40) NOT NULL,
+    isOpen CHAR(5) NOT NULL,
+    reviewScore REAL,
+    PRIMARY KEY (storeID)
+);
+
+CREATE TABLE IF NOT EXISTS FoodOrder (
+    orderID INTEGER NOT NULL,
+    login CHAR(50) NOT NULL,
+    storeID INTEGER NOT NULL,
+    totalPrice REAL NOT NULL,
+    orderTimestamp TIMESTAMP NOT NULL,
+    orderStatus CHAR(50) NOT NULL,
+    PRIMARY KEY (orderID),
+    FOREIGN KEY (login) REFERENCES Users(login),
+    FOREIGN KEY (storeID) REFERENCES Store(storeID)
+);
+
+CREATE TABLE IF NOT EXISTS ItemsInOrder (
+    orderID INTEGER NOT NULL,
+    itemName CHAR(50) NOT NULL,
+    quantity INTEGER NOT NULL,
+    PRIMARY KEY (orderID, itemName),
+    FOREIGN KEY (orderID) REFERENCES FoodOrder(orderID),
+    FOREIGN KEY (itemName) REFERENCES Items(itemName)
+);